@@ -0,0 +1,451 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Records the requests an HTTPServer handles: an access log, and counters and latency histograms to monitor.
+	Request threads only update counters and add the request to a queue.
+	This thread formats and writes the log in batches, so a slow disk never holds up a request.
+	When the queue is full the log line is dropped (see dropped()), the counters are always updated.
+	<p>Log lines are the Common Log Format (the bytes are the whole response, with its header), followed by
+	the route (see HTTPServer.route()), the bytes received, and the time to first byte and total time in microseconds:
+	<code>127.0.0.1 - - [19/Oct/2026:11:55:33 +0000] "GET /key/a HTTP/1.1" 200 312 route=/key/{key} in=61 ttfb=85 time=97</code>
+	<p>Times start when the request header has been read.
+	The time to first byte ends when the handler starts the response (writes the status line),
+	the total time ends when the handler is done and the body has been read.
+	<p>metrics() serves the counters in the Prometheus text format (ie <code>router.mount("/metrics", accessLog.metrics())</code>).
+	Counters are kept for each method, route and status. Requests without a route are counted under the route "".
+	Once there are too many combinations, new ones are counted under method and route OTHER with status 0.
+*/
+public class AccessLog extends Thread {
+	/** Starts writing the access log.
+		@param log			Where to write the log, or null to only count
+		@param maxQueued	The most log lines waiting to be written, more are dropped
+	*/
+	public AccessLog(OutputStream log, int maxQueued) {
+		_log= log;
+		_queue= (null == log) ? null : new ArrayBlockingQueue<_Entry>(maxQueued);
+		_series= new ConcurrentHashMap<String, _Series>();
+		_latency= new AtomicLongArray(_kBuckets);
+		_firstByte= new AtomicLongArray(_kBuckets);
+		_requests= new AtomicLong();
+		_latencyNanoseconds= new AtomicLong();
+		_firstByteNanoseconds= new AtomicLong();
+		_dropped= new AtomicLong();
+		_done= false;
+		_exception= null;
+		setDaemon(true);
+		if(null != log) {
+			start();
+		}
+	}
+	/** Records a request.
+		Does not block, the log line is queued for this thread to write.
+		@param client				The client's address
+		@param method				The request method
+		@param uri					The request URI (path and query)
+		@param version				The http version (ie HTTP/1.1)
+		@param route				The pattern that handled the request (see HTTPServer.route()), or null
+		@param status				The response status, 0 if there was no response
+		@param bytesIn				The bytes of the request, header and body
+		@param bytesOut				The bytes of the response, header and body
+		@param firstByteNanoseconds	The time until the response was started, 0 if it was not
+		@param totalNanoseconds		The time to handle the request
+	*/
+	public void record(String client, String method, String uri, String version, String route, int status,
+						long bytesIn, long bytesOut, long firstByteNanoseconds, long totalNanoseconds) {
+		String	routeName= (null == route) ? "" : route;
+		String	key= method+" "+status+" "+routeName;
+		_Series	series= _series.get(key);
+
+		if(null == series) {
+			if(_series.size() >= _kMaxSeries) { // clients choose the method and path, do not let them use up memory
+				key= _kOther+" 0 "+_kOther;
+				series= new _Series(_kOther, 0, _kOther);
+			} else {
+				series= new _Series(method, status, routeName);
+			}
+			_Series	existing= _series.putIfAbsent(key, series);
+
+			if(null != existing) {
+				series= existing;
+			}
+		}
+		series.count.incrementAndGet();
+		series.nanoseconds.addAndGet(totalNanoseconds);
+		series.bytesIn.addAndGet(bytesIn);
+		series.bytesOut.addAndGet(bytesOut);
+		_requests.incrementAndGet();
+		_latencyNanoseconds.addAndGet(totalNanoseconds);
+		_latency.incrementAndGet(_bucket(totalNanoseconds));
+		if(firstByteNanoseconds > 0) {
+			_firstByteNanoseconds.addAndGet(firstByteNanoseconds);
+			_firstByte.incrementAndGet(_bucket(firstByteNanoseconds));
+		}
+		if( (null != _queue) && !_queue.offer(new _Entry(System.currentTimeMillis() - totalNanoseconds / 1000000,
+															client, method, uri, version, route, status, bytesIn, bytesOut,
+															firstByteNanoseconds / 1000, totalNanoseconds / 1000)) ) {
+			_dropped.incrementAndGet();
+		}
+	}
+	/** The number of requests recorded.
+		@return	The number of requests
+	*/
+	public long requests() {
+		return _requests.get();
+	}
+	/** The number of log lines that were not written because the queue was full.
+		@return	The number of requests missing from the log
+	*/
+	public long dropped() {
+		return _dropped.get();
+	}
+	/** The last error writing the log.
+		@return	The last exception writing the log, or null if there have been none
+	*/
+	public IOException exception() {
+		return _exception;
+	}
+	/** A handler that serves the counters, in the Prometheus text format.
+		@return	A handler to mount (ie at /metrics)
+	*/
+	public HTTPServer.Handler metrics() {
+		return new _Metrics();
+	}
+	/** Writes the log lines that are queued, then stops.
+	*/
+	public void terminate() {
+		_done= true;
+		interrupt();
+	}
+	/** The log writer thread.
+		Waits for a log line, then writes it with all the others that are queued in one write.
+	*/
+	public void run() {
+		ArrayList<_Entry>		batch= new ArrayList<_Entry>(_kBatchSize);
+		ByteArrayOutputStream	lines= new ByteArrayOutputStream();
+		SimpleDateFormat		format= new SimpleDateFormat(_kDateFormat, Locale.US);
+		long					second= -1;
+		String					date= null;
+
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		while(!_done || !_queue.isEmpty()) {
+			try	{
+				_Entry	first= _queue.poll(_kPollSeconds, TimeUnit.SECONDS);
+
+				if(null == first) {
+					continue;
+				}
+				batch.add(first);
+				_queue.drainTo(batch, _kBatchSize - 1);
+				for(_Entry entry : batch) {
+					if(entry.milliseconds / 1000 != second) { // the date only changes once a second
+						second= entry.milliseconds / 1000;
+						date= format.format(new Date(second * 1000));
+					}
+					lines.write(entry.line(date).getBytes("UTF-8"));
+				}
+				lines.writeTo(_log);
+				_log.flush();
+			} catch(InterruptedException exception) {
+				// terminate(), write what is left
+			} catch(IOException exception) {
+				_exception= exception;
+			}
+			batch.clear();
+			lines.reset();
+		}
+	}
+	/** The number of latency buckets, bucket n counts times under 2^n microseconds (the last counts the rest) */
+	private static final int	_kBuckets= 32;
+	/** The most method, status and route combinations counted separately */
+	private static final int	_kMaxSeries= 1000;
+	/** The method and route requests are counted under, with status 0, once there are _kMaxSeries */
+	private static final String	_kOther= "OTHER";
+	/** The most log lines written at once */
+	private static final int	_kBatchSize= 512;
+	/** How long to wait for a log line before checking for terminate() */
+	private static final int	_kPollSeconds= 1;
+	/** The Common Log Format date */
+	private static final String	_kDateFormat= "dd/MMM/yyyy:HH:mm:ss Z";
+	/** Where the log is written, or null */
+	private OutputStream								_log;
+	/** The log lines waiting to be written, or null if there is no log */
+	private ArrayBlockingQueue<_Entry>					_queue;
+	/** The counters for each method, status and route */
+	private ConcurrentHashMap<String, _Series>			_series;
+	/** The number of requests in each total time bucket */
+	private AtomicLongArray								_latency;
+	/** The number of requests in each time to first byte bucket */
+	private AtomicLongArray								_firstByte;
+	/** The number of requests */
+	private AtomicLong									_requests;
+	/** The total of the request times */
+	private AtomicLong									_latencyNanoseconds;
+	/** The total of the times to first byte */
+	private AtomicLong									_firstByteNanoseconds;
+	/** The number of log lines dropped because the queue was full */
+	private AtomicLong									_dropped;
+	/** Are we shutting down */
+	private volatile boolean							_done;
+	/** The last error writing the log */
+	private volatile IOException						_exception;
+
+	/** A request waiting to be logged.
+	*/
+	private static class _Entry {
+		/** See record() for the parameters.
+			@param t	When the request started, milliseconds since the epoch
+		*/
+		public _Entry(long t, String c, String m, String u, String v, String r, int s, long i, long o, long f, long d) {
+			milliseconds= t;
+			client= c;
+			method= m;
+			uri= u;
+			version= v;
+			route= r;
+			status= s;
+			bytesIn= i;
+			bytesOut= o;
+			firstByteMicroseconds= f;
+			totalMicroseconds= d;
+		}
+		/** Formats the log line.
+			@param date	The formatted date of <code>milliseconds</code>
+			@return		The log line, with a line ending
+		*/
+		public String line(String date) {
+			StringBuilder	line= new StringBuilder(128);
+
+			line.append(client).append(" - - [").append(date).append("] \"").append(method).append(' ')
+				.append(uri.replace("\"", "%22")).append(' ').append(version).append("\" ").append(status).append(' ').append(bytesOut);
+			if(null != route) {
+				line.append(" route=").append(route);
+			}
+			line.append(" in=").append(bytesIn).append(" ttfb=").append(firstByteMicroseconds).append(" time=").append(totalMicroseconds).append('\n');
+			return line.toString();
+		}
+		/** When the request started, milliseconds since the epoch */
+		public long		milliseconds;
+		/** The client's address */
+		public String	client;
+		/** The request method */
+		public String	method;
+		/** The request URI */
+		public String	uri;
+		/** The http version */
+		public String	version;
+		/** The route, or null */
+		public String	route;
+		/** The response status */
+		public int		status;
+		/** The bytes of the request */
+		public long		bytesIn;
+		/** The bytes of the response */
+		public long		bytesOut;
+		/** The time until the response started */
+		public long		firstByteMicroseconds;
+		/** The time to handle the request */
+		public long		totalMicroseconds;
+	}
+	/** The counters for a method, status and route.
+	*/
+	private static class _Series {
+		/**
+			@param m	The method
+			@param s	The status
+			@param r	The route
+		*/
+		public _Series(String m, int s, String r) {
+			method= m;
+			status= s;
+			route= r;
+			count= new AtomicLong();
+			nanoseconds= new AtomicLong();
+			bytesIn= new AtomicLong();
+			bytesOut= new AtomicLong();
+		}
+		/** The request method */
+		public String		method;
+		/** The response status */
+		public int			status;
+		/** The route */
+		public String		route;
+		/** The number of requests */
+		public AtomicLong	count;
+		/** The total time of the requests */
+		public AtomicLong	nanoseconds;
+		/** The total bytes of the requests */
+		public AtomicLong	bytesIn;
+		/** The total bytes of the responses */
+		public AtomicLong	bytesOut;
+	}
+	/** Serves the counters.
+	*/
+	private class _Metrics implements HTTPServer.Handler {
+		/** Sends the counters.
+			@param in		The request body (ignored)
+			@param out		The http out stream
+			@param headers	The request headers
+			@param query	The query (ignored)
+			@param cookies	The cookies (ignored)
+			@return			true, keep serving
+		*/
+		public boolean handle(InputStream in, OutputStream out, HTTPServer.KeyValuesMap headers, HTTPServer.KeyValuesMap query, HTTPServer.CookieJar cookies) throws IOException {
+			StringBuilder			text= new StringBuilder();
+			TreeMap<String, _Series>	sorted= new TreeMap<String, _Series>(_series);
+			byte[]					body;
+
+			_counter(text, "http_requests_total", "Requests handled");
+			for(_Series series : sorted.values()) {
+				_labels(text.append("http_requests_total"), series).append(series.count.get()).append('\n');
+			}
+			_counter(text, "http_request_seconds_total", "Time spent handling requests");
+			for(_Series series : sorted.values()) {
+				_labels(text.append("http_request_seconds_total"), series).append(_seconds(series.nanoseconds.get() / 1000)).append('\n');
+			}
+			_counter(text, "http_request_bytes_total", "Bytes received, headers and bodies");
+			for(_Series series : sorted.values()) {
+				_labels(text.append("http_request_bytes_total"), series).append(series.bytesIn.get()).append('\n');
+			}
+			_counter(text, "http_response_bytes_total", "Bytes sent, headers and bodies");
+			for(_Series series : sorted.values()) {
+				_labels(text.append("http_response_bytes_total"), series).append(series.bytesOut.get()).append('\n');
+			}
+			_histogram(text, "http_request_duration_seconds", "Time from reading the request header to the end of the request",
+						_latency, _latencyNanoseconds.get());
+			_histogram(text, "http_time_to_first_byte_seconds", "Time from reading the request header to starting the response",
+						_firstByte, _firstByteNanoseconds.get());
+			_counter(text, "http_access_log_dropped_total", "Requests not written to the access log because the queue was full");
+			text.append("http_access_log_dropped_total ").append(_dropped.get()).append('\n');
+			body= text.toString().getBytes("UTF-8");
+			new HTTPServer.Response(out, 200, "OK").header("Content-Type", _kContentType).header("Content-Length", body.length)
+				.keepAlive(headers).send(headers.firstValue("METHOD", "GET").equals("HEAD") ? new byte[0] : body);
+			return true;
+		}
+		/** Handles logging exceptions
+			@param exception	The exception to log
+		*/
+		public void log(Exception exception) {
+			exception.printStackTrace();
+			log(0, exception.toString());
+		}
+		/** Logs messages.
+			@param level	0 = vital to display 100 = trivial to display
+			@param message	The message to handle
+		*/
+		public void log(int level, String message) {
+			System.err.println("LOG "+level+": "+message);
+		}
+		/** The Prometheus text format */
+		private static final String	_kContentType= "text/plain; version=0.0.4; charset=utf-8";
+
+		/** Writes the description of a counter.
+			@param text	Where to write it
+			@param name	The name of the counter
+			@param help	What it counts
+		*/
+		private void _counter(StringBuilder text, String name, String help) {
+			text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			text.append("# TYPE ").append(name).append(" counter\n");
+		}
+		/** Writes the labels of a series.
+			@param text		Where to write them, after the name
+			@param series	The series
+			@return			<code>text</code>, to add the value
+		*/
+		private StringBuilder _labels(StringBuilder text, _Series series) {
+			text.append("{method=\"");
+			_escape(text, series.method).append("\",status=\"").append(series.status).append("\",route=\"");
+			return _escape(text, series.route).append("\"} ");
+		}
+		/** Writes a histogram.
+			@param text			Where to write it
+			@param name			The name of the histogram
+			@param help			What it measures
+			@param buckets		The count in each bucket
+			@param nanoseconds	The total of the times
+		*/
+		private void _histogram(StringBuilder text, String name, String help, AtomicLongArray buckets, long nanoseconds) {
+			long	count= 0;
+
+			text.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			text.append("# TYPE ").append(name).append(" histogram\n");
+			for(int index= 0; index < _kBuckets - 1; ++index) {
+				count+= buckets.get(index);
+				text.append(name).append("_bucket{le=\"").append(_seconds(1L << index)).append("\"} ").append(count).append('\n');
+			}
+			count+= buckets.get(_kBuckets - 1);
+			text.append(name).append("_bucket{le=\"+Inf\"} ").append(count).append('\n');
+			text.append(name).append("_sum ").append(_seconds(nanoseconds / 1000)).append('\n');
+			text.append(name).append("_count ").append(count).append('\n');
+		}
+	}
+	/** Finds the histogram bucket for a time.
+		@param nanoseconds	The time
+		@return				The index of the first bucket whose limit (2^n microseconds) is more than the time
+	*/
+	private static int _bucket(long nanoseconds) {
+		long	microseconds= nanoseconds / 1000;
+
+		return Math.min(_kBuckets - 1, 64 - Long.numberOfLeadingZeros(microseconds));
+	}
+	/** Formats microseconds as seconds, without the rounding of a double.
+		@param microseconds	The time
+		@return				The time in seconds (ie 0.000512)
+	*/
+	private static String _seconds(long microseconds) {
+		String	fraction= Long.toString(1000000 + microseconds % 1000000).substring(1);
+
+		return (microseconds / 1000000)+"."+fraction;
+	}
+	/** Escapes a Prometheus label value.
+		@param text		Where to write the value
+		@param value	The label value
+		@return			<code>text</code>
+	*/
+	private static StringBuilder _escape(StringBuilder text, String value) {
+		for(int index= 0; index < value.length(); ++index) {
+			char	character= value.charAt(index);
+
+			if( (character == '\\') || (character == '"') ) {
+				text.append('\\').append(character);
+			} else if(character == '\n') {
+				text.append("\\n");
+			} else {
+				text.append(character);
+			}
+		}
+		return text;
+	}
+
+	/** Test. Serves a KeyStoreServer with an access log, and its counters at /metrics.
+		@param args	The port, the storage file or directory, and (optional) the file to append the log to (otherwise stdout)
+	*/
+	public static void main(String... args) {
+		try	{
+			File		location= new File(args[1]);
+			Storage		store= location.isDirectory() ? new StorageDirectory(location) : new StorageFile(location);
+			AccessLog	log= new AccessLog((args.length > 2) ? new FileOutputStream(args[2], true) : System.out, 10000);
+			Router		router= new Router();
+
+			router.mount("/metrics", log.metrics()).mount("/", new KeyStoreServer(store));
+			new SocketServer(Integer.parseInt(args[0]), new HTTPServer(router, log), null, null);
+		} catch(IOException exception) {
+			System.err.println(exception);
+		}
+	}
+}
@@ -0,0 +1,283 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RejectedExecutionException;
+
+/** Runs Storage calls on a dedicated I/O executor, so request threads do not wait on the disk.
+	Each call returns a Future immediately, so many requests can be in flight at once.
+	Concurrent gets of the same key share a single read of the underlying store.
+	Calls may run in any order, so wait on a put or remove before relying on its result.
+	<p>Any ExecutorService may be supplied (ie a virtual thread per task executor where available),
+	otherwise a bounded pool is used that runs the call on the caller's thread when its queue is full.
+	A call the executor rejects (ie after shutdown()) returns a Future that fails with an IOException.
+*/
+public class AsyncStorage {
+	/** Wraps a store with a bounded pool of I/O threads.
+		@param store		The store to do the I/O on
+		@param threads		The number of I/O threads
+		@param maxQueued	The maximum number of calls waiting for an I/O thread
+	*/
+	public AsyncStorage(Storage store, int threads, int maxQueued) {
+		this(store, new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+								new ArrayBlockingQueue<Runnable>(maxQueued), new _CallerRuns()));
+	}
+	/** Wraps a store with a given executor.
+		@param store	The store to do the I/O on
+		@param executor	The executor to run the I/O on. shutdown() will shut it down.
+	*/
+	public AsyncStorage(Storage store, ExecutorService executor) {
+		_store= store;
+		_executor= executor;
+		_reads= new ConcurrentHashMap<String,_Read>();
+	}
+	/** The store the I/O is done on.
+		@return	The underlying store
+	*/
+	public Storage storage() {
+		return _store;
+	}
+	/** Get the data for a given key.
+		If a get for the key is already in progress, its result is shared.
+		The read is shared, so cancel() on the returned Future does nothing and returns false.
+		@param key	The unique key in the store.
+		@return		The data for the key, or null if not found.
+	*/
+	public Future<byte[]> get(String key) {
+		_Read	read= new _Read(key);
+		_Read	inProgress= _reads.putIfAbsent(key, read);
+
+		while(null != inProgress) {
+			if(!inProgress.isDone()) {
+				return new _Shared(inProgress);
+			}
+			// done() may not have removed a finished read yet
+			inProgress= _reads.replace(key, inProgress, read) ? null : _reads.putIfAbsent(key, read);
+		}
+		try	{
+			_executor.execute(read);
+		} catch(RejectedExecutionException exception) {
+			read.fail(exception); // also removes it from _reads, so the next get tries again
+		}
+		return new _Shared(read);
+	}
+	/** Determines if the key exists in the store.
+		@param key	The key to look for.
+		@return		true if the key is in the store, false if not
+	*/
+	public Future<Boolean> has(final String key) {
+		return _submit(new Callable<Boolean>() {
+			public Boolean call() throws IOException {
+				return _store.has(key);
+			}
+		});
+	}
+	/** Removes a key from the store.
+		@param key	The key to remove.
+		@return		true if the key existed, false otherwise.
+	*/
+	public Future<Boolean> remove(final String key) {
+		_reads.remove(key); // later gets should not share a read from before the remove
+		return _submit(new Callable<Boolean>() {
+			public Boolean call() throws IOException {
+				return _store.remove(key);
+			}
+		});
+	}
+	/** Stores a given key/data pair.
+		If the key exists already, nothing will be done.
+		@param key			The key for the data.
+		@param data			The data to store. Must not be modified until the put completes.
+		@return				true if the key/data were added, false if the key already exists
+	*/
+	public Future<Boolean> put(final String key, final byte[] data) {
+		_reads.remove(key); // later gets should not share a read from before the put
+		return _submit(new Callable<Boolean>() {
+			public Boolean call() throws IOException {
+				return _store.put(key, data);
+			}
+		});
+	}
+	/** Stores a given key/data pair that will be removed after a period of time.
+		If the key exists already, nothing will be done.
+		@param key			The key for the data.
+		@param data			The data to store. Must not be modified until the put completes.
+		@param timeToLiveInMilliseconds	How long until the key expires, 0 means never
+		@return				true if the key/data were added, false if the key already exists
+	*/
+	public Future<Boolean> put(final String key, final byte[] data, final long timeToLiveInMilliseconds) {
+		_reads.remove(key); // later gets should not share a read from before the put
+		return _submit(new Callable<Boolean>() {
+			public Boolean call() throws IOException {
+				return _store.put(key, data, timeToLiveInMilliseconds);
+			}
+		});
+	}
+	/** Stops accepting calls. Calls already made will still complete, later calls fail.
+	*/
+	public void shutdown() {
+		_executor.shutdown();
+	}
+	/** A get that removes itself from the in progress reads when done.
+	*/
+	private class _Read extends FutureTask<byte[]> {
+		/** @param key	The key to read
+		*/
+		public _Read(final String key) {
+			super(new Callable<byte[]>() {
+				public byte[] call() throws IOException {
+					return _store.get(key);
+				}
+			});
+			_key= key;
+		}
+		/** Fails the read, when it could not be run.
+			@param exception	Why it was not run
+		*/
+		public void fail(RejectedExecutionException exception) {
+			setException(new IOException(exception.toString()));
+		}
+		/** Called when the read is complete (or cancelled).
+			Gets from now on will do a new read.
+		*/
+		protected void done() {
+			_reads.remove(_key, this);
+		}
+		/** The key being read */
+		private String	_key;
+	}
+	/** A view of a shared read that can not cancel it, since other gets may be waiting on it.
+	*/
+	private static class _Shared implements Future<byte[]> {
+		/** @param read	The read to wait on
+		*/
+		public _Shared(_Read read) {
+			_read= read;
+		}
+		/** Does not cancel the read, other gets may be waiting on it.
+			@param mayInterruptIfRunning	Ignored
+			@return							false
+		*/
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			return false;
+		}
+		public boolean isCancelled() {
+			return _read.isCancelled();
+		}
+		public boolean isDone() {
+			return _read.isDone();
+		}
+		public byte[] get() throws InterruptedException, ExecutionException {
+			return _read.get();
+		}
+		public byte[] get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+			return _read.get(timeout, unit);
+		}
+		/** The shared read */
+		private _Read	_read;
+	}
+	/** Runs a call on the caller's thread when the queue is full, but rejects it once shut down
+		(ThreadPoolExecutor.CallerRunsPolicy silently drops it, so its Future would never complete).
+	*/
+	private static class _CallerRuns implements RejectedExecutionHandler {
+		/** @param call		The call that did not fit in the queue
+			@param executor	The executor that rejected it
+		*/
+		public void rejectedExecution(Runnable call, ThreadPoolExecutor executor) {
+			if(executor.isShutdown()) {
+				throw new RejectedExecutionException("AsyncStorage is shut down");
+			}
+			call.run();
+		}
+	}
+	/** The store to do the I/O on */
+	private Storage							_store;
+	/** The executor to do the I/O on */
+	private ExecutorService					_executor;
+	/** The gets currently in progress, by key */
+	private ConcurrentHashMap<String,_Read>	_reads;
+
+	/** Runs a call on the executor.
+		@param call	The call to run
+		@return		The result of the call, or a Future that fails with an IOException if the executor rejected the call
+	*/
+	private <T> Future<T> _submit(Callable<T> call) {
+		try	{
+			return _executor.submit(call);
+		} catch(final RejectedExecutionException exception) {
+			FutureTask<T>	failed= new FutureTask<T>(new Callable<T>() {
+				public T call() throws IOException {
+					throw new IOException(exception.toString());
+				}
+			});
+
+			failed.run();
+			return failed;
+		}
+	}
+
+	/** Test.
+		@param args	One argument, the path to the storage file.
+	*/
+	public static void main(String... args) {
+		try	{
+			AsyncStorage		store= new AsyncStorage(new StorageFile(new File(args[0])), 2, 16);
+			Future<Boolean>		put= store.put("async", "value".getBytes());
+			Future<byte[]>		first, second;
+
+			if(!put.get()) {
+				System.err.println("Says it did not put async");
+			}
+			first= store.get("async");
+			second= store.get("async");
+			if(!"value".equals(new String(first.get())) || !"value".equals(new String(second.get()))) {
+				System.err.println("Did not get the value for async");
+			}
+			if(!store.remove("async").get()) {
+				System.err.println("Says it did not remove async");
+			}
+			if(null != store.get("async").get()) {
+				System.err.println("Still got a value after remove");
+			}
+			first= store.get("async");
+			if(first.cancel(true) || first.isCancelled()) {
+				System.err.println("A shared get was cancelled");
+			}
+			first.get();
+			store.shutdown();
+			for(int attempt= 0; attempt < 2; ++attempt) { // a failed get must not be shared with later gets
+				try	{
+					store.get("async").get(1, TimeUnit.SECONDS);
+					System.err.println("A get after shutdown did not fail");
+				} catch(ExecutionException exception) {
+					// expected
+				} catch(TimeoutException exception) {
+					System.err.println("A get after shutdown never completed");
+				}
+			}
+			try	{
+				store.has("async").get(1, TimeUnit.SECONDS);
+				System.err.println("A has after shutdown did not fail");
+			} catch(ExecutionException exception) {
+				// expected
+			} catch(TimeoutException exception) {
+				System.err.println("A has after shutdown never completed");
+			}
+		} catch(IOException exception) {
+			exception.printStackTrace();
+		} catch(InterruptedException exception) {
+			exception.printStackTrace();
+		} catch(ExecutionException exception) {
+			exception.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,185 @@
+import java.io.InputStream;
+import java.io.IOException;
+
+/** Decodes an http body sent with Transfer-Encoding: chunked.
+	Reads end at the last (0 size) chunk, leaving the underlying stream at the next request.
+	Chunk extensions and trailer fields are read and ignored.
+*/
+public class ChunkedInputStream extends InputStream {
+	/**
+		@param in	The underlying stream, positioned at the first chunk size
+	*/
+	public ChunkedInputStream(InputStream in) {
+		_in= in;
+		_left= 0;
+		_done= false;
+	}
+	/**
+		@return	-1 for end of body. >= 0 the byte from the stream.
+	*/
+	public int read() throws IOException {
+		int	result;
+
+		if(!_nextChunk()) {
+			return -1;
+		}
+		result= _in.read();
+		if(result < 0) {
+			throw new IOException("Connection closed in the middle of a chunk");
+		}
+		--_left;
+		return result;
+	}
+	/**
+		@param b	The byte buffer to fill
+		@param off	The offset to start filling bytes in
+		@param len	The maxmimum to read (only reads to the end of the current chunk)
+		@return		-1 for end of body. >= 0 the number of bytes put in <code>buffer</code>.
+	*/
+	public int read(byte[] b, int off, int len) throws IOException {
+		int	result;
+
+		if(len == 0) {
+			return 0;
+		}
+		if(!_nextChunk()) {
+			return -1;
+		}
+		if(len > _left) {
+			len= (int)_left;
+		}
+		result= _in.read(b, off, len);
+		if(result < 0) {
+			throw new IOException("Connection closed in the middle of a chunk");
+		}
+		_left-= result;
+		return result;
+	}
+	/**
+		@return	The number of bytes that can be read without blocking, at most to the end of the current chunk.
+	*/
+	public int available() throws IOException {
+		int	result= _in.available();
+
+		if(result > _left) {
+			result= (int)_left;
+		}
+		return result;
+	}
+	/**
+		@return	false, mark is not supported.
+	*/
+	public boolean markSupported() {
+		return false;
+	}
+	/** Reads the rest of the body, up to the next request.
+		@return	The number of bytes of the body that were skipped.
+		@throws IOException	on io error
+	*/
+	public long finish() throws IOException {
+		long	skipped= 0;
+
+		while(_nextChunk()) {
+			long	amount= _in.skip(_left);
+
+			if(amount <= 0) {
+				if(_in.read() < 0) {
+					throw new IOException("Connection closed in the middle of a chunk");
+				}
+				amount= 1;
+			}
+			_left-= amount;
+			skipped+= amount;
+		}
+		return skipped;
+	}
+	/** The longest chunk size or trailer line accepted */
+	private static final int	_kMaxLine= 4096;
+	/** The underlying stream. */
+	private InputStream	_in;
+	/** The number of bytes left in the current chunk. */
+	private long		_left;
+	/** Has the last chunk been read */
+	private boolean		_done;
+
+	/** Makes sure there is data left in the current chunk, reading the next chunk size if needed.
+		@return	false if the last chunk has been read
+		@throws IOException	on io error, or if the chunk size is not valid
+	*/
+	private boolean _nextChunk() throws IOException {
+		String	line;
+		int		extension;
+
+		if(_done) {
+			return false;
+		}
+		if(_left > 0) {
+			return true;
+		}
+		line= _readLine();
+		if(line.length() == 0) { // the CRLF after the previous chunk's data
+			line= _readLine();
+		}
+		extension= line.indexOf(';');
+		if(extension >= 0) {
+			line= line.substring(0, extension);
+		}
+		try	{
+			_left= Long.parseLong(line.trim(), 16);
+		} catch(NumberFormatException exception) {
+			throw new IOException("Invalid chunk size: "+line);
+		}
+		if(_left < 0) {
+			throw new IOException("Invalid chunk size: "+line);
+		}
+		if(_left == 0) {
+			_done= true;
+			while(_readLine().length() > 0) {
+				// skip trailer fields
+			}
+			return false;
+		}
+		return true;
+	}
+	/** Reads a CRLF (or LF) terminated line.
+		@return	The line without the line ending
+		@throws IOException	on io error, end of stream or if the line is too long
+	*/
+	private String _readLine() throws IOException {
+		StringBuilder	line= new StringBuilder();
+		int				oneByte= _in.read();
+
+		while(oneByte != '\n') {
+			if(oneByte < 0) {
+				throw new IOException("Connection closed in a chunk header");
+			}
+			if(oneByte != '\r') {
+				line.append((char)oneByte);
+			}
+			if(line.length() > _kMaxLine) {
+				throw new IOException("Chunk header too long");
+			}
+			oneByte= _in.read();
+		}
+		return line.toString();
+	}
+
+	/** Test. Decodes a chunked body on stdin to stdout.
+		@param args	No arguments.
+	*/
+	public static void main(String... args) {
+		try	{
+			ChunkedInputStream	in= new ChunkedInputStream(System.in);
+			byte[]				buffer= new byte[4096];
+			int					read= in.read(buffer);
+
+			while(read >= 0) {
+				System.out.write(buffer, 0, read);
+				read= in.read(buffer);
+			}
+			System.out.flush();
+		} catch(IOException exception) {
+			exception.printStackTrace();
+		}
+	}
+}
@@ -8,24 +8,44 @@ import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 import java.util.Date;
 import java.text.SimpleDateFormat;
+import java.text.ParsePosition;
+import java.util.Locale;
+import java.util.TimeZone;
 import java.util.Collections;
+import java.io.FilterOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
 
 /** Handler for http connections to a SocketServer.
 	<p><b>TODO</b>
 	<ul>
-		<li>handle file upload (and the encoding that goes with it)<ul>
-				<li> Add to Handler interface: void handleFile(InputStream file, KeyValueMap headers);
-				<li> Create an InputStream subclass for the file
-		</ul>
-		<li>handle compression<ul>
-			<li>Request: Accept-Encoding: gzip
-			<li>Response: Content-Encoding: gzip
-			<li>java.util.zip.GZIPOutputStream
+		<li>handle compressed requests<ul>
+			<li>Request: Content-Encoding: gzip
 			<li>java.util.zip.GZIPInputStream
 		</ul>
 	</ul>
+	<p>Responses can be compressed by the handler:
+		acceptEncoding() negotiates gzip or deflate, compressible() applies the size and Content-Type threshold,
+		then compressedBody() streams the body (chunked) or writeDeflated() sends data that is already deflated.
+	<p>File uploads (multipart/form-data) are passed to the handler as the body,
+		MultipartInputStream reads them one part at a time without buffering whole files.
 */
-public class HTTPServer implements SocketServer.Handler {
+public class HTTPServer implements SocketServer.Handler, SocketServer.Overloaded {
+	/** Connection: keep-alive, pre-encoded for Response.header(byte[]) */
+	public static final byte[]	kKeepAlive= "Connection:\tkeep-alive\r\n".getBytes();
+	/** Connection: close, pre-encoded for Response.header(byte[]) */
+	public static final byte[]	kClose= "Connection:\tclose\r\n".getBytes();
+	/** Accept-Ranges: bytes, pre-encoded for Response.header(byte[]) */
+	public static final byte[]	kAcceptRanges= "Accept-Ranges:\tbytes\r\n".getBytes();
+	/** Transfer-Encoding: chunked, pre-encoded for Response.header(byte[]) */
+	public static final byte[]	kChunked= "Transfer-Encoding:\tchunked\r\n".getBytes();
 	/** Handles Cookie representations.
 	*/
 	static public class Cookie {
@@ -33,39 +53,42 @@ public class HTTPServer implements SocketServer.Handler {
 			@param cookieString	The value of the Set-Cookie http header
 		*/
 		public Cookie(String cookieString) {
-			String[]	parts= cookieString.split(";");
-			boolean		firstField= true;
+			int		end= cookieString.indexOf(';');
+			int		equals;
+			String	first= (end < 0) ? cookieString : cookieString.substring(0, end);
 
 			secure= false;
-			name= null;
-			value= null;
 			expires= null;
 			domain= null;
 			path= null;
-			for(String part : parts) {
-				String[]	namevalue= part.split("=", 2);
+			equals= first.indexOf('=');
+			name= urlDecode(( (equals < 0) ? first : first.substring(0, equals) ).trim());
+			value= (equals < 0) ? "" : urlDecode(first.substring(equals + 1).trim());
+			while(end >= 0) {
+				int		start= end + 1;
+				String	part;
 
-				if(firstField) {
-					firstField= false;
-					name= urlDecode(namevalue[0].trim());
-					value= urlDecode(namevalue[1].trim());
-				} else {
-					if(namevalue.length == 2) {
-						if(namevalue[0].trim().equalsIgnoreCase("domain")) {
-							domain= urlDecode(namevalue[1].trim());
-						} else if(namevalue[0].trim().equalsIgnoreCase("path")) {
-							path= urlDecode(namevalue[1].trim());
-						} else if(namevalue[0].trim().equalsIgnoreCase("expires")) {
-							expires= _parseDate(urlDecode(namevalue[1].trim()));
-						}
-					} else if(part.equalsIgnoreCase("secure")) {
-						secure= true;
+				end= cookieString.indexOf(';', start);
+				part= cookieString.substring(start, (end < 0) ? cookieString.length() : end).trim();
+				equals= part.indexOf('=');
+				if(equals >= 0) {
+					String	attribute= part.substring(0, equals).trim();
+					String	attributeValue= part.substring(equals + 1).trim();
+
+					if(attribute.equalsIgnoreCase("domain")) {
+						domain= urlDecode(attributeValue);
+					} else if(attribute.equalsIgnoreCase("path")) {
+						path= urlDecode(attributeValue);
+					} else if(attribute.equalsIgnoreCase("expires")) {
+						expires= parseDate(urlDecode(attributeValue));
 					}
+				} else if(part.equalsIgnoreCase("secure")) {
+					secure= true;
 				}
 			}
 		}
 		Cookie secondsUntilExpiration(int seconds) {
-			expires= new Date((new Date()).getTime() + seconds * 1000);
+			expires= new Date(System.currentTimeMillis() + seconds * 1000L);
 			return this;
 		}
 		/** Formats the cookie for the Cookie http response header
@@ -74,24 +97,28 @@ public class HTTPServer implements SocketServer.Handler {
 			@return				The name=value pair for the Cookie http response header. If toBrowser, the Set-Cookie: will be prepended
 		*/
 		public String toString(boolean toBrowser) {
-			String	result= _cookieEncode(name)+"="+_cookieEncode(value);
+			StringBuilder	result= new StringBuilder();
 
+			if(toBrowser) {
+				result.append("Set-Cookie: ");
+			}
+			_cookieEncode(result, name).append('=');
+			_cookieEncode(result, value);
 			if(toBrowser) {
 				if(null != expires) {
-					result+= "; expires="+date1.format(expires);
+					result.append("; expires=").append(formatDate(expires.getTime()));
 				}
 				if(null != domain) {
-					result+= "; domain="+_cookieEncode(domain);
+					_cookieEncode(result.append("; domain="), domain);
 				}
 				if(null != path) {
-					result+= "; path="+_cookieEncode(path);
+					_cookieEncode(result.append("; path="), path);
 				}
 				if(secure) {
-					result+= "; secure";
+					result.append("; secure");
 				}
-				result= "Set-Cookie: "+result;
 			}
-			return result;
+			return result.toString();
 		}
 		/** The name of the cookie */
 		public String	name;
@@ -105,52 +132,34 @@ public class HTTPServer implements SocketServer.Handler {
 		public String	path;
 		/** secure (false if not set) */
 		public boolean	secure;
-		/** Search for whitespace */
-		private static final Pattern			_WhitespacePattern= Pattern.compile("\\s");
 		/** Hexidecimal digits */
 		private static final String				_Hex= "0123456789ABCDEF";
-		/** A cookie date format */
-		private static final SimpleDateFormat	date1= new SimpleDateFormat("EEE, dd MMM yyyy hh:mm:ss z");
-		/** A cookie date format */
-		private static final SimpleDateFormat	date2= new SimpleDateFormat("EEE, dd-MMM-yyyy hh:mm:ss z");
 		/** Encode cookies.
 			Cookies require minimal encoding.
-			plus (+), percent (%), semicolon (;) and comma (,) are replaced with their escapes, spaces are escaped with a plus
+			plus (+), percent (%), semicolon (;), comma (,) and whitespace other than space are replaced with their escapes,
+			spaces are escaped with a plus. One pass, and nothing is copied if nothing needs escaping.
+			@param encoded		The buffer to append the encoded value to
 			@param rawCookie	The actual value to encode
-			@return				The encoded value
+			@return				<code>encoded</code>
 		*/
-		private static String _cookieEncode(String rawCookie) {
-			String	minimalyEscaped= rawCookie.replace("+","%2B").replace("%","%25").replace(";","%3B").replace(",","%2C").replace(" ","+");
-			String	escaped= "";
-			Matcher	matcher= _WhitespacePattern.matcher(minimalyEscaped);
-			int		lastOffset= 0;
+		private static StringBuilder _cookieEncode(StringBuilder encoded, String rawCookie) {
+			int	lastOffset= 0;
 
-			while(matcher.find()) {
-				int	asciiValue= (int)matcher.group().charAt(0);
+			for(int index= 0; index < rawCookie.length(); ++index) {
+				char	character= rawCookie.charAt(index);
 
-				escaped+= minimalyEscaped.substring(lastOffset, matcher.start());
-				escaped+= "%"+_Hex.charAt((asciiValue&0xF0)>>4)+_Hex.charAt(asciiValue&0x0F);
-				lastOffset= matcher.end();
-			}
-			escaped+= minimalyEscaped.substring(lastOffset);
-			return escaped;
-		}
-		/** Parses the cookie expiration date.
-			@param date	The cookie date string
-			@return		The actual date, or null if unable to parse the date.
-		*/
-		private static Date _parseDate(String date) {
-			try	{
-				return date1.parse(date);
-			} catch(java.text.ParseException e) {
-				System.err.println(e);
-			}
-			try	{
-				return date2.parse(date);
-			} catch(java.text.ParseException e) {
-				System.err.println(e);
+				if( (character == '+') || (character == '%') || (character == ';') || (character == ',') || (character == ' ')
+						|| (character == '\t') || (character == '\n') || (character == '\u000B') || (character == '\f') || (character == '\r') ) {
+					encoded.append(rawCookie, lastOffset, index);
+					if(character == ' ') {
+						encoded.append('+');
+					} else {
+						encoded.append('%').append(_Hex.charAt(character >> 4)).append(_Hex.charAt(character & 0x0F));
+					}
+					lastOffset= index + 1;
+				}
 			}
-			return null;
+			return encoded.append(rawCookie, lastOffset, rawCookie.length());
 		}
 	}
 	/** Representation of a set of cookies.
@@ -166,7 +175,9 @@ public class HTTPServer implements SocketServer.Handler {
 			String[]	cookies= cookieHeader.split(";");
 
 			for(String cookie : cookies) {
-				add(new Cookie(cookie));
+				if(cookie.trim().length() > 0) {
+					add(new Cookie(cookie));
+				}
 			}
 		}
 		/** Merge two cookie jars.
@@ -212,16 +223,16 @@ public class HTTPServer implements SocketServer.Handler {
 			@return	The Cookie: name=value; name=value string
 		*/
 		public String toString() {
-			String	value= "Cookie: ";
-			String	prefix= "";
+			StringBuilder	value= new StringBuilder("Cookie: ");
+			String			prefix= "";
 
 			for(String name : keySet()) {
 				Cookie	cookie= getFirst(name);
 
-				value+= prefix + cookie.toString(false); // false == to server instead of to browser format
+				value.append(prefix).append(cookie.toString(false)); // false == to server instead of to browser format
 				prefix= "; ";
 			}
-			return value;
+			return value.toString();
 		}
 	}
 	/** Representation of a Key to Many Value Map.
@@ -293,12 +304,322 @@ public class HTTPServer implements SocketServer.Handler {
 		*/
 		public static final long serialVersionUID = 1L;
 	}
+	/** A range of bytes requested with the Range header.
+		@see #ranges(KeyValuesMap,long)
+	*/
+	static public class Range {
+		/** @param start	The offset of the first byte
+			@param end		The offset of the last byte (inclusive)
+		*/
+		public Range(long start, long end) {
+			this.start= start;
+			this.end= end;
+		}
+		/** The number of bytes in the range.
+			@return	end - start + 1
+		*/
+		public long length() {
+			return end - start + 1;
+		}
+		/** The value for the Content-Range header.
+			@param total	The size of the whole entity
+			@return			bytes start-end/total
+		*/
+		public String contentRange(long total) {
+			return "bytes "+start+"-"+end+"/"+total;
+		}
+		/** The offset of the first byte */
+		public long	start;
+		/** The offset of the last byte (inclusive) */
+		public long	end;
+	}
+	/** Builds a response's status line and header fields in the connection's response buffer.
+		Common status lines and header fields are pre-encoded and values are copied without new Strings or byte arrays,
+		so the header and the start of the body go out in one write.
+		Every response gets a Date header field, see dateHeader().
+		<code>new HTTPServer.Response(out, 200, "OK").header("Content-Type", "text/plain").keepAlive(headers).send(body);</code>
+	*/
+	static public class Response {
+		/** Starts an HTTP/1.1 response.
+			@param out			The http out stream passed to Handler.handle() (any other stream is buffered until send())
+			@param statusCode	The http status code
+			@param phrase		The http response phrase
+			@throws IOException	On io error
+		*/
+		public Response(OutputStream out, int statusCode, String phrase) throws IOException {
+			_own= !(out instanceof _ResponseOutput);
+			_out= _own ? new _ResponseOutput(out, null) : (_ResponseOutput)out;
+			_status(statusCode, phrase);
+			_out.write(dateHeader());
+		}
+		/** Adds a header field.
+			@param name		The header name
+			@param value	The value (multiline values are continued on the next line)
+			@return			this, to add more headers
+			@throws IOException	On io error
+		*/
+		public Response header(String name, String value) throws IOException {
+			writeHeader(_out, name, value);
+			return this;
+		}
+		/** Adds a numeric header field (ie Content-Length).
+			@param name		The header name
+			@param value	The value
+			@return			this, to add more headers
+			@throws IOException	On io error
+		*/
+		public Response header(String name, long value) throws IOException {
+			_writeName(_out, name);
+			_out.writeDecimal(value);
+			_out.write(_kCRLF);
+			return this;
+		}
+		/** Adds a header field that is already encoded.
+			@param field	The whole header line, with the \r\n (ie kKeepAlive)
+			@return			this, to add more headers
+			@throws IOException	On io error
+		*/
+		public Response header(byte[] field) throws IOException {
+			_out.write(field);
+			return this;
+		}
+		/** Adds Connection: keep-alive or Connection: close.
+			@param headers	The request headers, see isKeepAlive()
+			@return			this, to add more headers
+			@throws IOException	On io error
+		*/
+		public Response keepAlive(KeyValuesMap headers) throws IOException {
+			_out.write(isKeepAlive(headers) ? kKeepAlive : kClose);
+			return this;
+		}
+		/** Ends the header, for a response without a body or with the body written to body().
+			@return	The stream to write the body to (flush it when done if the Response was not given the stream from Handler.handle())
+			@throws IOException	On io error
+		*/
+		public OutputStream body() throws IOException {
+			_out.write(_kCRLF);
+			return _out;
+		}
+		/** Ends the header for a body of unknown length, see HTTPServer.chunkedBody().
+			Do not add Content-Length or Connection headers (keepAlive()) before this.
+			@param headers	The request headers
+			@return			The stream to write the body to, close() it to end the body
+			@throws IOException	On io error
+		*/
+		public OutputStream chunkedBody(KeyValuesMap headers) throws IOException {
+			return HTTPServer.chunkedBody(_out, headers);
+		}
+		/** Ends the header and sends it.
+			@throws IOException	On io error
+		*/
+		public void send() throws IOException {
+			_out.write(_kCRLF);
+			if(_own) {
+				_out.flush();
+			}
+		}
+		/** Ends the header and sends it with the body.
+			The start of the body is sent in the same write as the header.
+			@param body	The whole body
+			@throws IOException	On io error
+		*/
+		public void send(byte[] body) throws IOException {
+			_out.write(_kCRLF);
+			_out.write(body, 0, body.length);
+			if(_own) {
+				_out.flush();
+			}
+		}
+		/** Status lines that are pre-encoded */
+		private static final int[]		_kStatusCodes= {200, 201, 204, 206, 304, 400, 404, 405, 409, 411, 412, 413, 416, 500, 503};
+		/** The phrases of _kStatusCodes */
+		private static final String[]	_kStatusPhrases= {"OK", "Created", "No Content", "Partial Content", "Not Modified",
+															"Bad Request", "Not Found", "Method Not Allowed", "Conflict", "Length Required",
+															"Precondition Failed", "Request Entity Too Large", "Requested Range Not Satisfiable",
+															"Internal Server Error", "Service Unavailable"};
+		/** HTTP/1.1 status lines for _kStatusCodes */
+		private static final byte[][]	_kStatusLines= new byte[_kStatusCodes.length][];
+		static {
+			for(int index= 0; index < _kStatusCodes.length; ++index) {
+				_kStatusLines[index]= ("HTTP/1.1 "+_kStatusCodes[index]+" "+_kStatusPhrases[index]+"\r\n").getBytes();
+			}
+		}
+		/** The response buffer */
+		private _ResponseOutput	_out;
+		/** Was _out made for this response, rather than the connection's */
+		private boolean			_own;
+
+		/** Writes the status line.
+			@param statusCode	The http status code
+			@param phrase		The http response phrase
+			@throws IOException	On io error
+		*/
+		private void _status(int statusCode, String phrase) throws IOException {
+			for(int index= 0; index < _kStatusCodes.length; ++index) {
+				if( (_kStatusCodes[index] == statusCode) && _kStatusPhrases[index].equals(phrase) ) {
+					_out.status(statusCode);
+					_out.write(_kStatusLines[index]);
+					return;
+				}
+			}
+			writeResponse(_out, "1.1", statusCode, phrase);
+		}
+	}
+	/** Writes a body with Transfer-Encoding: chunked.
+		Writes are collected into chunks, flush() sends what has been collected as a chunk.
+		close() ends the body but does not close the connection.
+		@see #chunkedBody(OutputStream,KeyValuesMap)
+	*/
+	static public class ChunkedOutputStream extends FilterOutputStream {
+		/** @param out	The http out stream, after the headers
+		*/
+		public ChunkedOutputStream(OutputStream out) {
+			super(out);
+			_buffer= new byte[_kChunkSize];
+			_used= 0;
+			_closed= false;
+		}
+		public void write(int b) throws IOException {
+			if(_used == _buffer.length) {
+				_writeChunk();
+			}
+			_buffer[_used]= (byte)b;
+			++_used;
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(_used + len > _buffer.length) {
+				_writeChunk();
+			}
+			if(len >= _buffer.length) {
+				_writeChunk(b, off, len); // big enough to be a chunk on its own, no need to copy it
+			} else {
+				System.arraycopy(b, off, _buffer, _used, len);
+				_used+= len;
+			}
+		}
+		public void flush() throws IOException {
+			_writeChunk();
+			out.flush();
+		}
+		/** Writes the last chunk, the connection is left open.
+		*/
+		public void close() throws IOException {
+			if(!_closed) {
+				_closed= true;
+				_writeChunk();
+				HTTPServer.write(out, "0\r\n\r\n");
+				out.flush();
+			}
+		}
+		/** Sends the collected data as a chunk.
+		*/
+		private void _writeChunk() throws IOException {
+			_writeChunk(_buffer, 0, _used);
+			_used= 0;
+		}
+		/** Writes a chunk.
+			@param b	The data
+			@param off	The offset of the chunk in b
+			@param len	The size of the chunk, nothing is written if 0 (it would end the body)
+		*/
+		private void _writeChunk(byte[] b, int off, int len) throws IOException {
+			if(len > 0) {
+				HTTPServer.write(out, Integer.toHexString(len)+"\r\n");
+				out.write(b, off, len);
+				HTTPServer.write(out, "\r\n");
+			}
+		}
+		/** The data collected for the next chunk */
+		private byte[]	_buffer;
+		/** The number of bytes in _buffer */
+		private int		_used;
+		/** Has the last chunk been written */
+		private boolean	_closed;
+	}
+	/** Compresses a body with gzip or deflate (zlib) Content-Encoding.
+		Deflaters are reused between responses, so close() must be called to return it.
+	*/
+	static public class CompressedOutputStream extends OutputStream {
+		/** @param out		The stream to write the compressed data to. It is closed by close().
+			@param encoding	gzip or deflate
+			@throws IOException	On io error
+		*/
+		public CompressedOutputStream(OutputStream out, String encoding) throws IOException {
+			_out= out;
+			_gzip= encoding.equals("gzip");
+			_deflater= _takeDeflater(_gzip);
+			_crc= _gzip ? new CRC32() : null;
+			_buffer= new byte[_kChunkSize];
+			_one= new byte[1];
+			if(_gzip) {
+				_out.write(_kGzipHeader);
+			}
+		}
+		public void write(int b) throws IOException {
+			_one[0]= (byte)b;
+			write(_one, 0, 1);
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			if(null == _deflater) {
+				throw new IOException("Stream closed");
+			}
+			if(_gzip) {
+				_crc.update(b, off, len);
+			}
+			_deflater.setInput(b, off, len);
+			while(!_deflater.needsInput()) {
+				_deflate();
+			}
+		}
+		public void flush() throws IOException {
+			_out.flush();
+		}
+		/** Finishes the compressed data, returns the Deflater to be reused and closes the stream it wraps.
+		*/
+		public void close() throws IOException {
+			if(null != _deflater) {
+				_deflater.finish();
+				while(!_deflater.finished()) {
+					_deflate();
+				}
+				if(_gzip) {
+					_writeGzipTrailer(_out, _crc.getValue(), _deflater.getBytesRead());
+				}
+				_returnDeflater(_deflater, _gzip);
+				_deflater= null;
+				_out.close();
+			}
+		}
+		/** Writes whatever compressed data the deflater has ready.
+		*/
+		private void _deflate() throws IOException {
+			int	size= _deflater.deflate(_buffer);
+
+			if(size > 0) {
+				_out.write(_buffer, 0, size);
+			}
+		}
+		/** The stream to write the compressed data to */
+		private OutputStream	_out;
+		/** gzip or deflate encoding */
+		private boolean			_gzip;
+		/** The compressor, null once closed */
+		private Deflater		_deflater;
+		/** The checksum of the uncompressed data for gzip */
+		private CRC32			_crc;
+		/** The compressed data */
+		private byte[]			_buffer;
+		/** For write(int) */
+		private byte[]			_one;
+	}
 	/** Handler for an HTTP request.
 	*/
 	public interface Handler {
 		/** Handles the http request.
 			@param in		The incoming data after the header.
 			@param out		The output. Header needs to be written.
+							It is buffered, and sent when the server waits for the next request (or flush() is called),
+							so responses to pipelined requests go out together.
 			@param headers	The header properties
 			@param query	The query value
 			@param cookies	Any cookies that were sent.
@@ -322,6 +643,7 @@ public class HTTPServer implements SocketServer.Handler {
 	public HTTPServer(Handler handler, OutputStream trace) {
 		_handler= handler;
 		_trace= trace;
+		_accessLog= null;
 	}
 	/** Creates a SocketServer handler that formats the connection for an HTTPServer.Handler.
 		@param handler	The object that handles the http connection
@@ -329,6 +651,16 @@ public class HTTPServer implements SocketServer.Handler {
 	public HTTPServer(Handler handler) {
 		_handler= handler;
 		_trace= null;
+		_accessLog= null;
+	}
+	/** Creates a SocketServer handler that formats the connection for an HTTPServer.Handler, and records every request.
+		@param handler		The object that handles the http connection
+		@param accessLog	Receives the method, path, route, status, bytes and times of every request
+	*/
+	public HTTPServer(Handler handler, AccessLog accessLog) {
+		_handler= handler;
+		_trace= null;
+		_accessLog= accessLog;
 	}
 	/** Log exceptions to the handler.
 		@param exception	The exception to pass on
@@ -343,6 +675,24 @@ public class HTTPServer implements SocketServer.Handler {
 	public void log(int level, String message) {
 		_handler.log(level, message);
 	}
+	/** Answers 503 Service Unavailable when the SocketServer has no room for the connection (Overload.RESPOND).
+		Whatever of the request has already arrived is discarded, so closing does not reset the connection before the client reads the 503.
+		@param server		The server that rejected the connection
+		@param connection	The connection that will not be handled
+		@throws IOException	On io error
+	*/
+	public void overloaded(SocketServer server, Socket connection) throws IOException {
+		InputStream		in= connection.getInputStream();
+		OutputStream	out= connection.getOutputStream();
+
+		out.write(_kServiceUnavailable);
+		out.flush();
+		connection.shutdownOutput();
+		in.skip(in.available());
+		if(null != _accessLog) { // the request was not read
+			_accessLog.record(connection.getInetAddress().getHostAddress(), "-", "-", "-", null, 503, 0, _kServiceUnavailable.length, 0, 0);
+		}
+	}
 	/** Writes an http response line.
 		@param out					The http connection stream
 		@param httpVersionNumber	The http version number to support
@@ -351,6 +701,17 @@ public class HTTPServer implements SocketServer.Handler {
 		@throws IOException			On io error
 	*/
 	public static void writeResponse(OutputStream out, String httpVersionNumber, int statusCode, String responsePhrase) throws IOException {
+		if(out instanceof _ResponseOutput) {
+			((_ResponseOutput)out).status(statusCode);
+			write(out, "HTTP/");
+			write(out, httpVersionNumber);
+			out.write(' ');
+			((_ResponseOutput)out).writeDecimal(statusCode);
+			out.write(' ');
+			write(out, responsePhrase);
+			out.write(_kCRLF);
+			return;
+		}
 		write(out, "HTTP/"+httpVersionNumber+" "+statusCode+" "+responsePhrase+"\r\n");
 	}
 	/** Writes out a header field.
@@ -360,7 +721,17 @@ public class HTTPServer implements SocketServer.Handler {
 		@throws IOException			On io error
 	*/
 	public static void writeHeader(OutputStream out, String key, String value) throws IOException {
-		write(out, key+":\t"+value.trim().replace("\r\n", "\n").replace("\r", "\n").replace("\n", "\r\n\t")+"\r\n");
+		String	trimmed= value.trim();
+
+		if( (trimmed.indexOf('\n') >= 0) || (trimmed.indexOf('\r') >= 0) ) {
+			write(out, key+":\t"+trimmed.replace("\r\n", "\n").replace("\r", "\n").replace("\n", "\r\n\t")+"\r\n");
+		} else if(out instanceof _ResponseOutput) { // copied into the buffer, no need to concatenate
+			_writeName(out, key);
+			write(out, trimmed);
+			out.write(_kCRLF);
+		} else {
+			write(out, key+":\t"+trimmed+"\r\n");
+		}
 	}
 	/** Writes out a Cookie header field.
 		@param out		http out stream
@@ -383,35 +754,55 @@ public class HTTPServer implements SocketServer.Handler {
 		@throws IOException			On io error
 	*/
 	public static void finishHeaders(OutputStream out) throws IOException {
-		write(out, "\r\n");
+		out.write(_kCRLF);
 	}
 	/** Writes a string to an output stream.
 		@param out	The output stream
 		@param data	The raw bytes of the string will be written to <code>out</code>
 	*/
 	public static void write(OutputStream out, String data) throws IOException {
-		out.write(data.getBytes());
+		if(out instanceof _ResponseOutput) {
+			((_ResponseOutput)out).write(data);
+		} else {
+			out.write(data.getBytes());
+		}
 	}
 	/** Decodes a URL encoded string.
 		Spaces are converted from pluses (+). Then %XX is converted to a character of that value.
+		One pass, and the string is returned as is if there is nothing to decode.
 		@param urlEncoded	A URL encoded string
 		@return				the decoded version of <code>urlEncoded</code>
 	*/
 	public static String urlDecode(String urlEncoded) {
-		String	spacesFixed= urlEncoded.replace("+", " ");
-		String	unescaped= "";
-		Matcher	matcher= _URLEscapedPattern.matcher(spacesFixed);
-		int		lastOffset= 0;
+		StringBuilder	unescaped= null;
+		int				length= urlEncoded.length();
 
-		while(matcher.find()) {
-			int	asciiValue= Integer.parseInt(matcher.group(1), 16);
+		for(int index= 0; index < length; ++index) {
+			char	character= urlEncoded.charAt(index);
+			int		high, low;
 
-			unescaped+= spacesFixed.substring(lastOffset, matcher.start());
-			unescaped+= (char)asciiValue;
-			lastOffset= matcher.end();
+			if(character == '+') {
+				character= ' ';
+			} else if( (character == '%') && (index + 2 < length)
+						&& ((high= _hexValue(urlEncoded.charAt(index + 1))) >= 0) && ((low= _hexValue(urlEncoded.charAt(index + 2))) >= 0) ) {
+				if(null == unescaped) {
+					unescaped= new StringBuilder(length).append(urlEncoded, 0, index);
+				}
+				unescaped.append((char)((high << 4) | low));
+				index+= 2;
+				continue;
+			} else {
+				if(null != unescaped) {
+					unescaped.append(character);
+				}
+				continue;
+			}
+			if(null == unescaped) {
+				unescaped= new StringBuilder(length).append(urlEncoded, 0, index);
+			}
+			unescaped.append(character);
 		}
-		unescaped+= spacesFixed.substring(lastOffset);
-		return unescaped;
+		return (null == unescaped) ? urlEncoded : unescaped.toString();
 	}
 	/** Parses an http query string.
 		Everything after the ? in a URL.
@@ -419,25 +810,71 @@ public class HTTPServer implements SocketServer.Handler {
 		@return				Query map of Key/Value pairs
 	*/
 	public static KeyValuesMap parseQuery(String queryString) {
-		KeyValuesMap		query= new KeyValuesMap();
-		String[]	pairs= queryString.split("\\&");
+		KeyValuesMap	query= new KeyValuesMap();
+		int				start= 0;
 
-		if(pairs.length > 1) {
-			for(String pair : pairs) {
-				String	keyValue[]= pair.split("=", 2);
+		while(start < queryString.length()) {
+			int	end= queryString.indexOf('&', start);
+			int	equals;
 
-				if(keyValue.length > 1) {
-					query.addValue(urlDecode(keyValue[0]), urlDecode(keyValue[1]));
-				}
+			if(end < 0) {
+				end= queryString.length();
+			}
+			equals= queryString.indexOf('=', start);
+			if( (equals >= 0) && (equals < end) ) {
+				query.addValue(urlDecode(queryString.substring(start, equals)), urlDecode(queryString.substring(equals + 1, end)));
 			}
+			start= end + 1;
 		}
 		return query;
 	}
+	/** Formats a date for http headers and cookies (ie Sun, 06 Nov 1994 08:49:37 GMT).
+		Thread safe, each thread has its own formatter.
+		@param milliseconds	The time in milliseconds since the epoch (ie System.currentTimeMillis())
+		@return				The date in RFC 1123 format
+	*/
+	public static String formatDate(long milliseconds) {
+		return _dateFormats.get()[0].format(new Date(milliseconds));
+	}
+	/** Parses a date from an http header or a cookie.
+		Accepts RFC 1123 (Sun, 06 Nov 1994 08:49:37 GMT), the cookie form (Sun, 06-Nov-1994 08:49:37 GMT),
+		RFC 850 (Sunday, 06-Nov-94 08:49:37 GMT) and asctime (Sun Nov  6 08:49:37 1994).
+		Thread safe, each thread has its own parsers.
+		@param date	The date string
+		@return		The date, or null if it is not in any of the formats
+	*/
+	public static Date parseDate(String date) {
+		SimpleDateFormat[]	formats= _dateFormats.get();
+
+		for(int index= 1; index < formats.length; ++index) {
+			ParsePosition	position= new ParsePosition(0);
+			Date			result= formats[index].parse(date, position);
+
+			if(null != result) {
+				return result;
+			}
+		}
+		return null;
+	}
+	/** The Date header field for now.
+		It is formatted at most once a second, however many responses are sent.
+		@return	Date:, the current date and \r\n, pre-encoded for Response.header(byte[])
+	*/
+	public static byte[] dateHeader() {
+		long		second= System.currentTimeMillis() / 1000;
+		_DateHeader	cached= _dateHeader;
+
+		if( (null == cached) || (cached.second != second) ) {
+			cached= new _DateHeader(second, ("Date:\t"+formatDate(second * 1000)+"\r\n").getBytes());
+			_dateHeader= cached; // another thread may format the same second, either result is right
+		}
+		return cached.header;
+	}
 	/** Reads the entire body of the input stream.
 		If Content-Length header was set, that is used, else it reads until done
 		If the header "NO-BODY" == "already-read" then no reading is done
 			(it was a POST query that already read the body)
-		@param in			http input stream
+		@param in			http input stream, the request body of the connection this thread is handling
 		@param headers		Headers from the http stream
 		@return				The contents of the http request
 		@throws IOException	If there is an io error
@@ -449,19 +886,299 @@ public class HTTPServer implements SocketServer.Handler {
 		if(headers.getProperty("NO-BODY", "").equals("already-read")) {
 			return "";
 		}
-		return new String(SocketServer.read(in, 500 /* timeout in ms */, length, -1 /* pick buffer size */));
+		if(in instanceof ChunkedInputStream) { // the end of the body is known, do not wait for a timeout
+			java.io.ByteArrayOutputStream	body= new java.io.ByteArrayOutputStream();
+			byte[]							buffer= new byte[4096];
+			int								read= in.read(buffer);
+
+			while(read >= 0) {
+				body.write(buffer, 0, read);
+				read= in.read(buffer);
+			}
+			return new String(body.toByteArray());
+		}
+		return new String(SocketServer.read(in, SocketServer.connection(), 500 /* timeout in ms */, length, -1 /* pick buffer size */));
+	}
+	/** Resolves the byte ranges requested with the Range header against the size of the entity.
+		HTTPServer.handle puts each requested range in the RANGES header (ie 0-499, 500-, -500).
+		Overlapping and adjacent ranges are merged.
+		@param headers	The request headers
+		@param total	The size of the entity
+		@return			null if the whole entity should be sent (no Range, or too many ranges),
+						empty if none of the ranges can be satisfied (send 416),
+						otherwise the ranges in ascending order
+	*/
+	public static ArrayList<Range> ranges(KeyValuesMap headers, long total) {
+		ArrayList<String>	specs= headers.get("RANGES");
+		ArrayList<Range>	ranges= new ArrayList<Range>();
+		ArrayList<Range>	merged= new ArrayList<Range>();
+
+		if( (null == specs) || (specs.size() > _kMaxRanges) ) {
+			return null;
+		}
+		for(String spec : specs) {
+			int		dash= spec.indexOf('-');
+			String	first= spec.substring(0, dash), last= spec.substring(dash + 1);
+			long	start, end;
+
+			if(first.length() == 0) { // suffix, the last n bytes
+				start= Math.max(0, total - Long.parseLong(last));
+				end= total - 1;
+			} else {
+				start= Long.parseLong(first);
+				end= (last.length() == 0) ? total - 1 : Math.min(Long.parseLong(last), total - 1);
+			}
+			if( (start < total) && (start <= end) ) {
+				ranges.add(new Range(start, end));
+			}
+		}
+		Collections.sort(ranges, new java.util.Comparator<Range>() {
+			public int compare(Range a, Range b) {
+				return (a.start < b.start) ? -1 : ((a.start == b.start) ? 0 : 1);
+			}
+		});
+		for(Range range : ranges) {
+			Range	previous= merged.isEmpty() ? null : merged.get(merged.size() - 1);
+
+			if( (null != previous) && (range.start <= previous.end + 1) ) {
+				previous.end= Math.max(previous.end, range.end);
+			} else {
+				merged.add(range);
+			}
+		}
+		return merged;
+	}
+	/** Picks the compression to use for the response from the Accept-Encoding header.
+		Compressed bodies are chunked, so HTTP/1.0 requests are never compressed.
+		@param headers	The request headers
+		@return			gzip, deflate or null if the response should not be compressed
+	*/
+	public static String acceptEncoding(KeyValuesMap headers) {
+		ArrayList<String>	values= headers.get("Accept-Encoding");
+		boolean				gzip= false, deflate= false, any= false, gzipListed= false;
+
+		if( (null == values) || !headers.firstValue("VERSION", "1.0").equals("1.1") ) {
+			return null;
+		}
+		for(String value : values) {
+			for(String coding : value.split(",")) {
+				String[]	parts= coding.split(";");
+				String		name= parts[0].trim().toLowerCase();
+				boolean		accepted= true;
+
+				for(int index= 1; index < parts.length; ++index) {
+					String	parameter= parts[index].trim();
+
+					if(parameter.startsWith("q=")) {
+						try	{
+							accepted= Double.parseDouble(parameter.substring(2)) > 0.0;
+						} catch(NumberFormatException exception) {
+							accepted= false;
+						}
+					}
+				}
+				if(name.equals("gzip") || name.equals("x-gzip")) {
+					gzip= accepted;
+					gzipListed= true;
+				} else if(name.equals("deflate")) {
+					deflate= accepted;
+				} else if(name.equals("*")) {
+					any= accepted;
+				}
+			}
+		}
+		if(gzip || (any && !gzipListed)) {
+			return "gzip";
+		}
+		return deflate ? "deflate" : null;
+	}
+	/** Determines if compressing a response is worth the cpu.
+		@param contentType	The Content-Type of the response
+		@param length		The size of the response, or -1 if not known
+		@return				false if the response is small or the type is already compressed (ie images, audio, video, archives)
+	*/
+	public static boolean compressible(String contentType, long length) {
+		String	type= (null == contentType) ? "" : contentType.toLowerCase();
+
+		if( (length >= 0) && (length < _kMinCompressLength) ) {
+			return false;
+		}
+		if(type.startsWith("image/")) {
+			return type.startsWith("image/svg") || type.startsWith("image/bmp");
+		}
+		if(type.startsWith("audio/") || type.startsWith("video/")) {
+			return false;
+		}
+		for(String compressed : _kCompressedTypes) {
+			if(type.startsWith(compressed)) {
+				return false;
+			}
+		}
+		return true;
+	}
+	/** Writes the Connection and Transfer-Encoding headers and finishes the headers, for a body of unknown length.
+		The caller must not have written a Content-Length or Connection header.
+		HTTP/1.0 does not have chunked bodies, so the connection is closed to end the body instead.
+		@param out		The http out stream
+		@param headers	The request headers
+		@return			The stream to write the body to, close() it to end the body (the connection is left open if kept alive)
+		@throws IOException	On io error
+	*/
+	public static OutputStream chunkedBody(OutputStream out, KeyValuesMap headers) throws IOException {
+		if(!headers.firstValue("VERSION", "1.0").equals("1.1")) {
+			CloseConnection(headers);
+			writeHeader(out, "Connection", "close");
+			finishHeaders(out);
+			return new FilterOutputStream(out) {
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+				public void close() throws IOException {
+					flush(); // the connection is closed by handle()
+				}
+			};
+		}
+		writeHeader(out, "Connection", isKeepAlive(headers) ? "keep-alive" : "close");
+		writeHeader(out, "Transfer-Encoding", "chunked");
+		finishHeaders(out);
+		return new ChunkedOutputStream(out);
+	}
+	/** Writes the Content-Encoding and Transfer-Encoding headers and finishes the headers.
+		The caller must not have written a Content-Length.
+		Everything written to the returned stream is compressed, close() it to end the body (the connection is left open).
+		@param out		The http out stream
+		@param encoding	gzip or deflate, from acceptEncoding()
+		@return			The stream to write the uncompressed body to
+		@throws IOException	On io error
+	*/
+	public static OutputStream compressedBody(OutputStream out, String encoding) throws IOException {
+		writeHeader(out, "Content-Encoding", encoding);
+		writeHeader(out, "Transfer-Encoding", "chunked");
+		finishHeaders(out);
+		return new CompressedOutputStream(new ChunkedOutputStream(out), encoding);
+	}
+	/** The size of the body written by writeDeflated(), for its Content-Length.
+		@param encoding			gzip or deflate
+		@param deflatedLength	The size of the raw deflate data
+		@return					The size of the body with the gzip or zlib header and trailer
+	*/
+	public static long deflatedLength(String encoding, long deflatedLength) {
+		return deflatedLength + (encoding.equals("gzip") ? _kGzipHeader.length + 8 : _kZlibHeader.length + 4);
+	}
+	/** Sends part of a file as (part of) the body, without copying it through the heap when possible.
+		On a plain connection FileChannel.transferTo() sends it straight from the file (ie sendfile()),
+		otherwise (TLS, tracing, or not the stream from Handler.handle()) it is copied.
+		@param out		The http out stream, after the headers
+		@param file		The file to send from (ie StorageDirectory.open() or StorageFile.Slice.channel())
+		@param position	The offset in the file of the first byte to send
+		@param count	The number of bytes to send
+		@throws IOException	On io error, or if the file ends first
+	*/
+	public static void sendFile(OutputStream out, FileChannel file, long position, long count) throws IOException {
+		if(out instanceof _ResponseOutput) {
+			((_ResponseOutput)out).sendFile(file, position, count);
+			return;
+		}
+		byte[]	buffer= new byte[(int)Math.min(count, _kChunkSize)];
+
+		while(count > 0) {
+			int	read= file.read(ByteBuffer.wrap(buffer, 0, (int)Math.min(count, buffer.length)), position);
+
+			if(read < 0) {
+				throw new IOException("File ended with "+count+" bytes left to send");
+			}
+			out.write(buffer, 0, read);
+			position+= read;
+			count-= read;
+		}
+	}
+	/** Sends a file as the body.
+		@param out	The http out stream, after the headers (with a Content-Length of file.length())
+		@param file	The file to send
+		@throws IOException	On io error
+	*/
+	public static void sendFile(OutputStream out, File file) throws IOException {
+		FileChannel	channel= new FileInputStream(file).getChannel();
+
+		try	{
+			sendFile(out, channel, 0, channel.size());
+		} finally {
+			channel.close();
+		}
+	}
+	/** Sends data that is already compressed with raw deflate (ie StorageFile.getDeflated()) without compressing it again.
+		Only the checksum of the uncompressed data is calculated.
+		The caller should have written Content-Encoding and a Content-Length of deflatedLength().
+		@param out			The http out stream, after the headers
+		@param encoding		gzip or deflate
+		@param deflated		Raw deflate (RFC 1951) data
+		@param original		The uncompressed data
+		@throws IOException	On io error
+	*/
+	public static void writeDeflated(OutputStream out, String encoding, byte[] deflated, byte[] original) throws IOException {
+		if(encoding.equals("gzip")) {
+			CRC32	crc= new CRC32();
+
+			crc.update(original);
+			out.write(_kGzipHeader);
+			out.write(deflated);
+			_writeGzipTrailer(out, crc.getValue(), original.length);
+		} else {
+			Adler32	adler= new Adler32();
+			long	checksum;
+
+			adler.update(original);
+			checksum= adler.getValue();
+			out.write(_kZlibHeader);
+			out.write(deflated);
+			out.write(new byte[] {(byte)(checksum >> 24), (byte)(checksum >> 16), (byte)(checksum >> 8), (byte)checksum});
+		}
+	}
+	/** Names the route that handled the request (ie /key/{key}), for the AccessLog.
+		Routes of a handler that was mounted (ie by Router.mount) are added to the mount's prefix.
+		@param headers	The request headers
+		@param pattern	The path pattern that matched
+	*/
+	public static void route(KeyValuesMap headers, String pattern) {
+		String	mounted= headers.firstValue("ROUTE", "");
+
+		if(mounted.endsWith("/*")) { // pattern is under a mounted prefix
+			mounted= mounted.substring(0, mounted.length() - 2);
+		}
+		headers.remove("ROUTE");
+		headers.put("ROUTE", mounted+pattern);
 	}
 	/** Closes the connection when done here, ignoring the Connection: keep-alive header
 	*/
 	public static void CloseConnection(KeyValuesMap headers) {
-		if(headers.containsKey("Connection")) {
-			headers.remove("Connection"); // Even if they requested a keep-alive, we're done now
+		headers.remove("Connection"); // Even if they requested a keep-alive, we're done now
+		headers.put("Connection", "close");
+	}
+	/** Determines if the connection will be kept open after this request.
+		HTTP/1.1 connections stay open unless Connection: close, HTTP/1.0 only if Connection: keep-alive.
+		@param headers	The request headers (after the handler, which may have called CloseConnection)
+		@return			true if another request will be read from the connection
+	*/
+	public static boolean isKeepAlive(KeyValuesMap headers) {
+		String	connection= headers.firstValue("Connection", "").trim();
+
+		if(connection.equalsIgnoreCase("close")) {
+			return false;
+		}
+		if(connection.equalsIgnoreCase("keep-alive")) {
+			return true;
 		}
+		return headers.firstValue("VERSION", "1.0").equals("1.1");
 	}
 	/** Handles the Socket Server incoming request.
 		Sets common CGI environment variables in the properties
 			(METHOD, REQUEST-URI, HTTP-VERSION, VERSION, MAJOR-VERSION, MINOR-VERSION, PATH, URL-QUERY (optional)).
-		Reads the HTTP line and header fields (including multi-line header fields).
+		If there is a valid Range: bytes= header, each range is added to RANGES (see ranges()).
+		Request bodies are either Transfer-Encoding: chunked (decoded with a ChunkedInputStream) or Content-Length long.
+		Reads the HTTP line and header fields (including multi-line header fields) through a buffer that is reused for the connection.
+		Request details are only logged when tracing.
+		Pipelined requests are parsed from the buffer as soon as the previous one is handled,
+		and responses are collected in a buffer that is only sent when there is no request left to read, or it fills.
 		If it is a POST that has a Content-Length header and is encoded in application/x-www-form-urlencoded,
 			then the body is read to get the POST query values and sets the property NO-BODY=already-read.
 		Parses both URL Query and POST Query values and merges them.
@@ -471,174 +1188,805 @@ public class HTTPServer implements SocketServer.Handler {
 		@throws IOException	When there is an io error
 	*/
 	public void handle(SocketServer server, Socket connection) throws IOException {
-		String			header;
 		InputStream		connectionIn= connection.getInputStream();
 		OutputStream	out= connection.getOutputStream();
 		boolean			keepAlive;
+		boolean			verbose= null != _trace;
 		IOLogger		logger= null;
+		_RequestInput	request;
+		_ResponseOutput	response;
+		String			client= (null == _accessLog) ? null : connection.getInetAddress().getHostAddress();
 
 		if(null != _trace) {
 			logger= new IOLogger(connectionIn, out, ""+nextID(), System.out, true);
 			connectionIn= logger.getInputStream();
 			out= logger.getOutputStream();
 		}
+		response= new _ResponseOutput(out, verbose ? null : connection.getChannel()); // tracing has to see the whole body
+		out= response;
+		request= new _RequestInput(connectionIn, out);
 		do	{
-			InputStream			in= connectionIn;
-			String				statusLine= _readHeaderLine(in);
-			log(100, "statusLine='"+statusLine+"'");
-			String				statusParts[]= statusLine.split("\\s+", 3);
-			log(100, "statusParts#="+statusParts.length);
-			String				version= statusParts[2].split("/",2)[1];
-			String				versionParts[]= version.split("\\.", 2);
-			String				uriParts[];
-			String				lastHeader= null;
+			InputStream			in= request;
 			KeyValuesMap		headers= new KeyValuesMap();
-			KeyValuesMap		query, urlQuery;
+			KeyValuesMap		query;
 			CookieJar			cookies= new CookieJar();
 			LimitedInputStream	bodyStream= null;
+			ChunkedInputStream	chunkedStream= null;
+			String				method, uri;
+			int					questionMark;
+			long				received= request.received();
+			long				sent, started;
 
-			headers.put("METHOD", statusParts[0]);
-			headers.put("REQUEST-URI", statusParts[1]);
-			headers.put("HTTP-VERSION", statusParts[2]);
-			headers.put("VERSION", version);
-			headers.put("MAJOR-VERSION", versionParts[0]);
-			headers.put("MINOR-VERSION", versionParts[1]);
-			log(100, "Method="+statusParts[0]);
-			log(100, "Request-URI="+statusParts[1]);
-			log(100, "HTTP-Version="+statusParts[2]);
-			log(100, "Version="+version);
-			log(100, "Major Version="+versionParts[0]);
-			log(100, "Minor Version="+versionParts[1]);
-			do	{
-				header= _readHeaderLine(in);
-				if(header.length() == 0) {
-					log(100, "End of headers");
-				} else if( (null != lastHeader)
-						&& (header.trim().charAt(0) != header.charAt(0)) ) {
-					String	lastValue= headers.getProperty(lastHeader);
-					String	augmented= lastValue+"\r\n"+header.trim();
-
-					headers.put(lastHeader, augmented);
-					log(100, "Updating header: "+lastHeader);
-				} else {
-					String	headerParts[]= header.split(":", 2);
-
-					lastHeader= headerParts[0].trim();
-					headers.put(lastHeader, headerParts[1].trim());
-					log(100, "Setting header: "+lastHeader);
+			if(!request.readRequest(headers)) {
+				if(verbose) {
+					log(100, "Connection closed between requests");
 				}
-			} while(header.length() > 0);
+				break;
+			}
+			started= System.nanoTime();
+			sent= response.written();
+			response.begin();
+			method= headers.getProperty("METHOD");
+			uri= headers.getProperty("REQUEST-URI");
+			if(verbose) {
+				for(String key : headers.keySet()) {
+					log(100, key+"="+headers.get(key));
+				}
+			}
+			_parseRanges(headers);
 			if(headers.containsKey("Cookie")) {
 				for(String cookieSet : headers.get("Cookie")) {
 					cookies.add(new CookieJar(cookieSet));
 				}
 			}
-			if(statusParts[1].indexOf("?") >= 0) {
-				uriParts= statusParts[1].split("\\?", 2);
-				headers.put("PATH", uriParts[0]);
-				headers.put("URL-QUERY", uriParts[1]);
+			questionMark= uri.indexOf('?');
+			if(questionMark >= 0) {
+				headers.put("PATH", uri.substring(0, questionMark));
+				headers.put("URL-QUERY", uri.substring(questionMark + 1));
 			} else {
-				headers.put("PATH", statusParts[1]);
-			}
-			if(statusParts[0].equals("POST")) {
-				log(100, "It's a post");
-			}
-			if(headers.getProperty("Content-Length", "").length() > 0) {
-				log(100, "It has a Content-Length:"+headers.getProperty("Content-Length", ""));
-			}
-			if(headers.getProperty("Content-Type", "").length() > 0) {
-				log(100, "It has a Content-Type:"+headers.getProperty("Content-Type", ""));
+				headers.put("PATH", uri);
 			}
-			if(statusParts[0].equals("POST")
-					&& (headers.getProperty("Content-Length", "").length() > 0)
+			if(method.equals("POST")
+					&& headers.containsKey("Content-Length")
+					&& !headers.containsKey("Transfer-Encoding")
 					&& headers.getProperty("Content-Type", "").equals("application/x-www-form-urlencoded")) {
-				int		length= Integer.parseInt(headers.getProperty("Content-Length"));
 				String	queryString= readBody(in, headers);
 
-				log(100, "POST QUERY READ: "+queryString);
+				if(verbose) {
+					log(100, "POST QUERY READ: "+queryString);
+				}
 				headers.put("NO-BODY", "already-read");
 				headers.put("POST-QUERY", queryString);
+			} else if(headers.getProperty("Transfer-Encoding", "").trim().toLowerCase().endsWith("chunked")) {
+				chunkedStream= new ChunkedInputStream(in); // Transfer-Encoding overrides Content-Length
+				in= chunkedStream;
 			} else {
-				long	bodyLength= Long.parseLong(headers.getProperty("Content-Length", "0"));
-
-				log(100, "Non-POST BODY length="+bodyLength);
-				bodyStream= new LimitedInputStream(in, bodyLength);
+				bodyStream= new LimitedInputStream(in, Long.parseLong(headers.getProperty("Content-Length", "0").trim()));
 				in= bodyStream;
 			}
-			urlQuery= parseQuery(headers.getProperty("URL-QUERY", ""));
 			query= parseQuery(headers.getProperty("POST-QUERY", ""));
-			query.add(urlQuery);
-			log(100, "Query Details");
-			for(String key : query.keySet()) {
-				log(100, "- "+key);
-				for(String value : query.get(key)) {
-					log(100, "\t+ "+value);
-				}
+			if(headers.containsKey("URL-QUERY")) {
+				query.add(parseQuery(headers.getProperty("URL-QUERY")));
 			}
 
-			if(!_handler.handle(in, out, headers, query, cookies)) {
-				log(100, "Handler requested a shutdown");
-				server.terminate();
-			}
-			if(null != bodyStream) {
-				long	skipped= bodyStream.finish();
+			try	{
+				if(!_handler.handle(in, out, headers, query, cookies)) {
+					log(100, "Handler requested a shutdown");
+					server.terminate();
+				}
+				if(null != bodyStream) {
+					long	skipped= bodyStream.finish();
+
+					if( verbose && (skipped > 0) ) {
+						log(100, "Body was not fully read by  handler, "+skipped+" bytes were left");
+					}
+				}
+				if(null != chunkedStream) {
+					long	skipped= chunkedStream.finish();
+
+					if( verbose && (skipped > 0) ) {
+						log(100, "Chunked body was not fully read by handler, "+skipped+" bytes were left");
+					}
+				}
+			} finally {
+				if(null != _accessLog) {
+					long	firstByte= response.statusNanoseconds();
 
-				if(skipped > 0) {
-					log(100, "Body was not fully read by  handler, "+skipped+" bytes were left");
+					_accessLog.record(client, method, uri, headers.firstValue("HTTP-VERSION", "-"), headers.firstValue("ROUTE", null), response.status(),
+										request.received() - received, response.written() - sent,
+										(0 == firstByte) ? 0 : firstByte - started, System.nanoTime() - started);
 				}
 			}
-			log(100, "Done handling request");
-			keepAlive= headers.firstValue("Connection", "close").trim().equalsIgnoreCase("keep-alive");
-			log(100, "Connection='"+headers.firstValue("Connection", "close")+"'");
+			keepAlive= isKeepAlive(headers);
 		} while(keepAlive);
-		log(100, "Done handling connection");
+		if(verbose) {
+			log(100, "Done handling connection");
+		}
 		try	{
-			connectionIn.close();
+			out.close(); // sends the buffered responses, before closing the input closes the socket
 		} catch(IOException exception) {
 			log(exception);
 		}
 		try	{
-			out.close();
+			connectionIn.close();
 		} catch(IOException exception) {
 			log(exception);
 		}
 	}
-	/** URL escaped charater pattern (ie %20) */
-	private static final Pattern	_URLEscapedPattern= Pattern.compile("%([0-9A-Fa-f][0-9A-Fa-f])");
+	/** The whole response sent when the server is overloaded */
+	private static final byte[]		_kServiceUnavailable= ("HTTP/1.1 503 Service Unavailable\r\nRetry-After:\t1\r\n"
+																+"Content-Length:\t0\r\nConnection:\tclose\r\n\r\n").getBytes();
+	/** The end of a line */
+	private static final byte[]		_kCRLF= {'\r', '\n'};
+	/** Header names that are written often, pre-encoded with the separator */
+	private static final HashMap<String, byte[]>	_kEncodedHeaderNames= new HashMap<String, byte[]>();
+	static {
+		for(String name : "Content-Length,Content-Type,Content-Encoding,Content-Range,Connection,ETag,Cache-Control,Vary,Last-Modified,Date,Location,Allow".split(",")) {
+			_kEncodedHeaderNames.put(name, (name+":\t").getBytes());
+		}
+	}
+	/** A byte range in a Range header (ie 0-499, 500-, -500) */
+	private static final Pattern	_RangeSpecPattern= Pattern.compile("(\\d{0,18})-(\\d{0,18})"); // 18 digits always fit in a long
+	/** The maximum number of ranges to honor in a request, more than this and the whole entity is sent */
+	private static final int		_kMaxRanges= 16;
+	/** The size of chunks in chunked bodies, and of the compression buffer */
+	private static final int		_kChunkSize= 8192;
+	/** Responses smaller than this are not worth compressing */
+	private static final int		_kMinCompressLength= 1024;
+	/** Content-Types (prefixes) that are already compressed */
+	private static final String[]	_kCompressedTypes= "application/zip,application/gzip,application/x-gzip,application/x-bzip2,application/x-xz,application/x-7z,application/x-rar,application/pdf,font/woff".split(",");
+	/** gzip header: magic, deflate, no flags, no time, no extra flags, unknown OS */
+	private static final byte[]		_kGzipHeader= {0x1f, (byte)0x8b, 8, 0, 0, 0, 0, 0, 0, (byte)0xff};
+	/** zlib header: deflate with a 32k window, default compression, no dictionary */
+	private static final byte[]		_kZlibHeader= {0x78, (byte)0x9c};
+	/** Deflaters (raw, for gzip) not currently in use */
+	private static final ConcurrentLinkedQueue<Deflater>	_gzipDeflaters= new ConcurrentLinkedQueue<Deflater>();
+	/** Deflaters (zlib, for deflate) not currently in use */
+	private static final ConcurrentLinkedQueue<Deflater>	_zlibDeflaters= new ConcurrentLinkedQueue<Deflater>();
+	/** The date format for output, then the formats parseDate() accepts, for each thread (SimpleDateFormat is not thread safe) */
+	private static final ThreadLocal<SimpleDateFormat[]>	_dateFormats= new ThreadLocal<SimpleDateFormat[]>() {
+		protected SimpleDateFormat[] initialValue() {
+			String[]			patterns= {"EEE, dd MMM yyyy HH:mm:ss 'GMT'", "EEE, dd MMM yyyy HH:mm:ss z",
+											"EEE, dd-MMM-yy HH:mm:ss z", "EEE MMM d HH:mm:ss yyyy"}; // yy takes 4 digit years as is
+			SimpleDateFormat[]	formats= new SimpleDateFormat[patterns.length];
+
+			for(int index= 0; index < patterns.length; ++index) {
+				formats[index]= new SimpleDateFormat(patterns[index], Locale.US);
+				formats[index].setTimeZone(TimeZone.getTimeZone("GMT"));
+			}
+			return formats;
+		}
+	};
+	/** The last Date header formatted by dateHeader() */
+	private static volatile _DateHeader	_dateHeader= null;
 	/** The handle ID */
 	private static int				_handleID= 0;
 	/** The handler to hand off the connection once we've parsed all the http stuff out of it */
 	private Handler					_handler;
 	/** The output stream to send io traces to, or null for no tracing */
 	private OutputStream			_trace;
+	/** Records every request, or null */
+	private AccessLog				_accessLog;
 
+	/** A formatted Date header field and the second it is for.
+	*/
+	private static class _DateHeader {
+		/**
+			@param s	The time in seconds since the epoch
+			@param h	The Date header field for <code>s</code>
+		*/
+		public _DateHeader(long s, byte[] h) {
+			second= s;
+			header= h;
+		}
+		/** The time in seconds since the epoch */
+		public final long	second;
+		/** Date:, the date and \r\n */
+		public final byte[]	header;
+	}
+	/** Gets the value of a hex digit.
+		@param digit	The character
+		@return			0 to 15, or -1 if <code>digit</code> is not a hex digit
+	*/
+	private static int _hexValue(char digit) {
+		if( (digit >= '0') && (digit <= '9') ) {
+			return digit - '0';
+		}
+		if( (digit >= 'a') && (digit <= 'f') ) {
+			return digit - 'a' + 10;
+		}
+		if( (digit >= 'A') && (digit <= 'F') ) {
+			return digit - 'A' + 10;
+		}
+		return -1;
+	}
 	/** Gets the next unique handle ID
 	*/
 	private synchronized int nextID() {
 		++_handleID;
 		return _handleID;
 	}
-	/** Reads one line from an http header.
-		It is able to read \n and \r\n that separates lines. It does not, however, handle \r as a line ending.
-		@param in			The http in stream.
-		@return				The next line of an http header from the http stream
-		@throws IOException	if there is an io error or there is a \r but the next character is not \n
+	/** Gets a Deflater that is not in use.
+		There are never more Deflaters than the most responses that have been compressed at once.
+		@param gzip	true for raw deflate (gzip adds its own header), false for zlib
+		@return		A reset Deflater
+	*/
+	private static Deflater _takeDeflater(boolean gzip) {
+		Deflater	deflater= (gzip ? _gzipDeflaters : _zlibDeflaters).poll();
+
+		if(null == deflater) {
+			deflater= new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+		}
+		return deflater;
+	}
+	/** Returns a Deflater to be reused.
+		@param deflater	The Deflater from _takeDeflater
+		@param gzip		The value passed to _takeDeflater
+	*/
+	private static void _returnDeflater(Deflater deflater, boolean gzip) {
+		deflater.reset();
+		(gzip ? _gzipDeflaters : _zlibDeflaters).offer(deflater);
+	}
+	/** Writes a header name and the separator.
+		@param out	The http out stream
+		@param name	The header name
+		@throws IOException	On io error
+	*/
+	private static void _writeName(OutputStream out, String name) throws IOException {
+		byte[]	encoded= _kEncodedHeaderNames.get(name);
+
+		if(null == encoded) {
+			write(out, name);
+			write(out, ":\t");
+		} else {
+			out.write(encoded);
+		}
+	}
+	/** Writes the gzip trailer.
+		@param out		The stream to write to
+		@param crc		The CRC-32 of the uncompressed data
+		@param length	The size of the uncompressed data
+	*/
+	private static void _writeGzipTrailer(OutputStream out, long crc, long length) throws IOException {
+		out.write(new byte[] {(byte)crc, (byte)(crc >> 8), (byte)(crc >> 16), (byte)(crc >> 24),
+								(byte)length, (byte)(length >> 8), (byte)(length >> 16), (byte)(length >> 24)});
+	}
+	/** Parses the Range header into RANGES.
+		If any part of the header is not valid, the header is ignored (as required by RFC 2616 14.35.1).
+		A position of more than 18 digits is not valid, so ranges() can always parse RANGES.
+		@param headers	The request headers
+	*/
+	private static void _parseRanges(KeyValuesMap headers) {
+		String				range= headers.getProperty("Range", "").trim();
+		ArrayList<String>	specs= new ArrayList<String>();
+
+		if(!range.startsWith("bytes=")) {
+			return;
+		}
+		for(String spec : range.substring(6).split(",")) {
+			Matcher	matcher= _RangeSpecPattern.matcher(spec.trim());
+
+			if(!matcher.matches() || (matcher.group(1).length() + matcher.group(2).length() == 0)) {
+				return;
+			}
+			if( (matcher.group(1).length() > 0) && (matcher.group(2).length() > 0)
+					&& (Long.parseLong(matcher.group(1)) > Long.parseLong(matcher.group(2))) ) {
+				return;
+			}
+			specs.add(spec.trim());
+		}
+		for(String spec : specs) {
+			headers.put("RANGES", spec);
+		}
+	}
+	/** Buffers the connection and parses requests out of the buffer.
+		The buffer is reused for every request on the connection, and the body is read through it,
+		so bytes of the next request that arrive with this one are not lost.
+		Known header names are matched in the buffer and mapped to a shared String, only values need a new String.
+		Before waiting on the connection the buffered responses are sent, the client may be waiting for them.
+	*/
+	private static class _RequestInput extends InputStream {
+		/** @param in		The connection
+			@param response	The buffered responses, flushed before blocking on <code>in</code>
+		*/
+		public _RequestInput(InputStream in, OutputStream response) {
+			_in= in;
+			_response= response;
+			_buffer= new byte[_kMaxHeaderLine];
+			_position= 0;
+			_limit= 0;
+			_received= 0;
+		}
+		/** The number of bytes of the connection that have been read (ie requests and their bodies).
+			@return	The bytes read from the connection, less those buffered and not yet read
+		*/
+		public long received() {
+			return _received - (_limit - _position);
+		}
+		/** Reads the request line and the header fields.
+			Empty lines before the request line are ignored (RFC 2616 4.1).
+			Header names are case insensitive, known names are converted to their usual case (ie content-length to Content-Length).
+			@param headers	Receives METHOD, REQUEST-URI, HTTP-VERSION, VERSION, MAJOR-VERSION, MINOR-VERSION and the header fields
+			@return			false if the connection was closed before a request
+			@throws IOException	On io error, if the request is not valid or a line is too long
+		*/
+		public boolean readRequest(KeyValuesMap headers) throws IOException {
+			int		lineEnd, end, space, secondSpace, slash, dot;
+			String	version, lastName= null;
+
+			while(true) {
+				lineEnd= _lineEnd(true);
+				if(lineEnd < 0) {
+					return false;
+				}
+				if(_lineLength(lineEnd) > 0) {
+					break;
+				}
+				_skipLine(lineEnd);
+			}
+			end= _position + _lineLength(lineEnd);
+			space= _indexOf(' ', _position, end);
+			secondSpace= (space < 0) ? -1 : _indexOf(' ', space + 1, end);
+			slash= (secondSpace < 0) ? -1 : _indexOf('/', secondSpace + 1, end);
+			dot= (slash < 0) ? -1 : _indexOf('.', slash + 1, end);
+			if(dot < 0) {
+				throw new IOException("Invalid request line: "+_string(_position, end));
+			}
+			headers.put("METHOD", _known(_kMethods, _position, space));
+			headers.put("REQUEST-URI", _string(space + 1, secondSpace));
+			headers.put("HTTP-VERSION", _known(_kVersions, secondSpace + 1, end));
+			version= headers.getProperty("HTTP-VERSION").substring(slash - secondSpace);
+			headers.put("VERSION", version);
+			headers.put("MAJOR-VERSION", version.substring(0, dot - slash - 1));
+			headers.put("MINOR-VERSION", version.substring(dot - slash));
+			_skipLine(lineEnd);
+			while(true) {
+				int		colon, valueStart, valueEnd;
+
+				end= _lineEnd(false);
+				if(_lineLength(end) == 0) {
+					_skipLine(end);
+					return true;
+				}
+				valueEnd= _position + _lineLength(end);
+				while( (valueEnd > _position) && _isSpace(_buffer[valueEnd - 1]) ) {
+					--valueEnd;
+				}
+				if( (null != lastName) && _isSpace(_buffer[_position]) ) { // continuation of the last header
+					ArrayList<String>	values= headers.get(lastName);
+					int					last= values.size() - 1;
+
+					valueStart= _position;
+					while( (valueStart < valueEnd) && _isSpace(_buffer[valueStart]) ) {
+						++valueStart;
+					}
+					values.set(last, values.get(last)+"\r\n"+_string(valueStart, valueEnd));
+				} else {
+					colon= _indexOf(':', _position, valueEnd);
+					if(colon < 0) {
+						throw new IOException("Invalid header: "+_string(_position, valueEnd));
+					}
+					valueStart= colon + 1;
+					while( (valueStart < valueEnd) && _isSpace(_buffer[valueStart]) ) {
+						++valueStart;
+					}
+					lastName= _headerName(_position, colon);
+					headers.put(lastName, _string(valueStart, valueEnd));
+				}
+				_skipLine(end);
+			}
+		}
+		public int read() throws IOException {
+			if( (_position == _limit) && (_fill() <= 0) ) {
+				return -1;
+			}
+			return _buffer[_position++] & 0xFF;
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			int	amount= _limit - _position;
+
+			if(amount == 0) {
+				_beforeRead();
+				amount= _in.read(b, off, len); // the buffer is empty, read directly into the caller's buffer
+				if(amount > 0) {
+					_received+= amount;
+				}
+				return amount;
+			}
+			if(amount > len) {
+				amount= len;
+			}
+			System.arraycopy(_buffer, _position, b, off, amount);
+			_position+= amount;
+			return amount;
+		}
+		public long skip(long n) throws IOException {
+			long	amount= _limit - _position;
+
+			if(amount == 0) {
+				_beforeRead();
+				amount= _in.skip(n);
+				_received+= amount;
+				return amount;
+			}
+			if(amount > n) {
+				amount= n;
+			}
+			_position+= (int)amount;
+			return amount;
+		}
+		public int available() throws IOException {
+			return _limit - _position + _in.available();
+		}
+		public void close() throws IOException {
+			_in.close();
+		}
+		/** Finds the end of the current line, reading more of the connection if needed.
+			@param startOfRequest	true if the connection may be closed here without an error
+			@return					The index in _buffer of the \n ending the line (_position is the start), -1 if closed between requests
+			@throws IOException		On io error, if the line is too long, or closed in the middle of a request
+		*/
+		private int _lineEnd(boolean startOfRequest) throws IOException {
+			int	searched= _position;
+
+			while(true) {
+				int	end= _indexOf('\n', searched, _limit);
+
+				if(end >= 0) {
+					return end;
+				}
+				searched= _limit;
+				if(_position > 0) { // make room by moving the partial line to the start of the buffer
+					System.arraycopy(_buffer, _position, _buffer, 0, _limit - _position);
+					searched-= _position;
+					_limit-= _position;
+					_position= 0;
+				}
+				if(_limit == _buffer.length) {
+					throw new IOException("Header line longer than "+_buffer.length+" bytes");
+				}
+				if(_fill() <= 0) {
+					if( startOfRequest && (_limit == 0) ) {
+						return -1;
+					}
+					throw new IOException("Connection closed in the middle of the request header");
+				}
+			}
+		}
+		/** The length of the line, without the \r\n or \n.
+			@param end	The index of the \n
+			@return		The number of bytes in the line
+		*/
+		private int _lineLength(int end) {
+			if( (end > _position) && (_buffer[end - 1] == '\r') ) {
+				--end;
+			}
+			return end - _position;
+		}
+		/** Moves to the start of the next line.
+			@param end	The index of the \n
+			@return		The length of the line that was skipped
+		*/
+		private int _skipLine(int end) {
+			int	length= _lineLength(end);
+
+			_position= end + 1;
+			return length;
+		}
+		/** Reads more of the connection into the buffer, after _limit.
+			@return	The number of bytes read, -1 at end of stream
+		*/
+		private int _fill() throws IOException {
+			int	read;
+
+			if(_position == _limit) {
+				_position= 0;
+				_limit= 0;
+			}
+			_beforeRead();
+			read= _in.read(_buffer, _limit, _buffer.length - _limit);
+			if(read > 0) {
+				_limit+= read;
+				_received+= read;
+			}
+			return read;
+		}
+		/** Sends the buffered responses if reading the connection would block.
+			@throws IOException	On io error
+		*/
+		private void _beforeRead() throws IOException {
+			if(_in.available() == 0) {
+				_response.flush();
+			}
+		}
+		/** Finds a byte in the buffer.
+			@return	The index of the byte, or -1 if it is not between start and end
+		*/
+		private int _indexOf(char c, int start, int end) {
+			for(int index= start; index < end; ++index) {
+				if(_buffer[index] == c) {
+					return index;
+				}
+			}
+			return -1;
+		}
+		/** @return	true for space or tab */
+		private static boolean _isSpace(byte b) {
+			return (b == ' ') || (b == '\t');
+		}
+		/** Makes a String of part of the buffer.
+			Header bytes are ISO-8859-1.
+		*/
+		private String _string(int start, int end) throws IOException {
+			return new String(_buffer, start, end - start, "ISO-8859-1");
+		}
+		/** Gets the shared String for a known value in the buffer (case sensitive).
+			@param known	The known values
+			@return			The known value, or a new String if it is not known
+		*/
+		private String _known(String[] known, int start, int end) throws IOException {
+			for(String value : known) {
+				if(value.length() == end - start) {
+					int	index= 0;
+
+					while( (index < value.length()) && (value.charAt(index) == _buffer[start + index]) ) {
+						++index;
+					}
+					if(index == value.length()) {
+						return value;
+					}
+				}
+			}
+			return _string(start, end);
+		}
+		/** Gets the name of a header.
+			@return	The known name (in its usual case), or a new String if it is not known
+		*/
+		private String _headerName(int start, int end) throws IOException {
+			while( (end > start) && _isSpace(_buffer[end - 1]) ) {
+				--end;
+			}
+			for(String name : _kHeaderNames) {
+				if(name.length() == end - start) {
+					int	index= 0;
+
+					while( (index < name.length())
+							&& (Character.toLowerCase(name.charAt(index)) == Character.toLowerCase((char)(_buffer[start + index] & 0xFF))) ) {
+						++index;
+					}
+					if(index == name.length()) {
+						return name;
+					}
+				}
+			}
+			return _string(start, end);
+		}
+		/** The longest request or header line */
+		private static final int		_kMaxHeaderLine= 8192;
+		/** Request methods that do not need a new String */
+		private static final String[]	_kMethods= {"GET", "HEAD", "POST", "PUT", "DELETE", "OPTIONS", "PROPFIND", "PROPPATCH", "MKCOL", "COPY", "MOVE", "LOCK", "UNLOCK"};
+		/** Versions that do not need a new String */
+		private static final String[]	_kVersions= {"HTTP/1.1", "HTTP/1.0"};
+		/** Header names that do not need a new String, and the case they are converted to */
+		private static final String[]	_kHeaderNames= ("Host,User-Agent,Accept,Accept-Encoding,Accept-Language,Accept-Charset,Connection,"
+														+"Content-Length,Content-Type,Content-Encoding,Transfer-Encoding,Cookie,Range,If-Range,"
+														+"If-None-Match,If-Match,If-Modified-Since,If-Unmodified-Since,Authorization,Referer,"
+														+"Cache-Control,Pragma,Expect,Origin,Upgrade,TE,Depth,Destination,Overwrite,Keep-Alive").split(",");
+		/** The connection */
+		private InputStream	_in;
+		/** The data read from the connection */
+		private byte[]		_buffer;
+		/** The next byte in _buffer to read */
+		private int			_position;
+		/** The number of bytes in _buffer */
+		private int			_limit;
+		/** The responses to flush before blocking */
+		private OutputStream	_response;
+		/** The number of bytes read from _in */
+		private long			_received;
+	}
+	/** Collects responses, so the header lines, small bodies and the responses to pipelined requests go out in one write.
+		Large writes go straight to the connection after what has been collected.
+		Strings (see write(OutputStream, String)) are copied into the buffer without encoding them to a new array first.
 	*/
-	private String _readHeaderLine(InputStream in) throws IOException {
-		int		oneByte= in.read();
-		String	line= "";
+	private static class _ResponseOutput extends OutputStream {
+		/** @param out		The connection
+			@param channel	The connection's channel, if sendFile() can write to it directly (not TLS, not traced), otherwise null
+		*/
+		public _ResponseOutput(OutputStream out, SocketChannel channel) {
+			_out= out;
+			_channel= channel;
+			_buffer= new byte[_kResponseBuffer];
+			_used= 0;
+			_sent= 0;
+			_status= 0;
+			_statusNanoseconds= 0;
+		}
+		/** Starts recording the status of the next response.
+		*/
+		public void begin() {
+			_status= 0;
+			_statusNanoseconds= 0;
+		}
+		/** Records the status of the response, when its status line is written.
+			@param statusCode	The http status code
+		*/
+		public void status(int statusCode) {
+			if(0 == _statusNanoseconds) {
+				_status= statusCode;
+				_statusNanoseconds= System.nanoTime();
+			}
+		}
+		/** The status of the response since begin().
+			@return	The status code, 0 if no status line has been written
+		*/
+		public int status() {
+			return _status;
+		}
+		/** When the response since begin() started.
+			@return	System.nanoTime() when the status line was written, 0 if it has not been
+		*/
+		public long statusNanoseconds() {
+			return _statusNanoseconds;
+		}
+		/** The number of bytes written to this stream, sent or buffered.
+			@return	The bytes written since this stream was created
+		*/
+		public long written() {
+			return _sent + _used;
+		}
+		public void write(int b) throws IOException {
+			if(_used == _buffer.length) {
+				_send();
+			}
+			_buffer[_used]= (byte)b;
+			++_used;
+		}
+		public void write(byte[] b, int off, int len) throws IOException {
+			int	room= _buffer.length - _used;
 
-		while( (-1 != oneByte) && ('\r' != oneByte) && ('\n' != oneByte) ) {
-			line+= new String(""+(char)oneByte);
-			oneByte= in.read();
+			if( (len > room) && (_used > 0) ) { // send what has been collected with as much of this as fits
+				System.arraycopy(b, off, _buffer, _used, room);
+				_used+= room;
+				off+= room;
+				len-= room;
+				_send();
+			}
+			if(len >= _buffer.length) {
+				_out.write(b, off, len);
+				_sent+= len;
+			} else {
+				System.arraycopy(b, off, _buffer, _used, len);
+				_used+= len;
+			}
 		}
-		if('\r' == oneByte) {
-			oneByte= in.read();
-			if(oneByte != '\n') {
-				throw new IOException("Header corrupted, \\r without \\n");
+		/** Sends part of a file, with what has been collected before it.
+			Small parts are copied into the buffer so they go out with the header,
+			larger parts are transferred from the file to the connection without copying them through the heap, when there is a channel.
+			@param file		The file to send from
+			@param position	The offset in the file of the first byte to send
+			@param count	The number of bytes to send
+			@throws IOException	On io error, or if the file ends first
+		*/
+		public void sendFile(FileChannel file, long position, long count) throws IOException {
+			if( (null != _channel) && (count > _buffer.length - _used) ) {
+				_send();
+				while(count > 0) {
+					long	sent= file.transferTo(position, count, _channel);
+
+					if( (sent <= 0) && (position >= file.size()) ) {
+						throw new IOException("File ended with "+count+" bytes left to send");
+					}
+					position+= sent;
+					count-= sent;
+					_sent+= sent;
+				}
+				return;
+			}
+			while(count > 0) {
+				ByteBuffer	room;
+				int			read;
+
+				if(_used == _buffer.length) {
+					_send();
+				}
+				room= ByteBuffer.wrap(_buffer, _used, (int)Math.min(count, _buffer.length - _used));
+				read= file.read(room, position);
+				if(read < 0) {
+					throw new IOException("File ended with "+count+" bytes left to send");
+				}
+				_used+= read;
+				position+= read;
+				count-= read;
+			}
+		}
+		/** Writes a number in decimal, without making a String of it.
+			@param value	The number to write
+			@throws IOException	On io error
+		*/
+		public void writeDecimal(long value) throws IOException {
+			int	digits= 1;
+
+			if(value < 0) {
+				write(Long.toString(value));
+				return;
+			}
+			for(long left= value / 10; left > 0; left/= 10) {
+				++digits;
+			}
+			if(digits > _buffer.length - _used) {
+				_send();
+			}
+			for(int index= _used + digits - 1; index >= _used; --index) {
+				_buffer[index]= (byte)('0' + value % 10);
+				value/= 10;
+			}
+			_used+= digits;
+		}
+		/** Writes the bytes of a string, as String.getBytes() would.
+			@param data	The string to write
+			@throws IOException	On io error
+		*/
+		public void write(String data) throws IOException {
+			int	length= data.length();
+
+			if(length > _buffer.length - _used) {
+				_send();
+			}
+			if(length < _buffer.length) {
+				int	index;
+
+				for(index= 0; index < length; ++index) {
+					char	c= data.charAt(index);
+
+					if(c >= 0x80) {
+						break; // not ASCII, let the default charset encode it
+					}
+					_buffer[_used + index]= (byte)c;
+				}
+				if(index == length) {
+					_used+= length;
+					return;
+				}
+			}
+			write(data.getBytes());
+		}
+		/** Sends what has been collected.
+		*/
+		public void flush() throws IOException {
+			_send();
+			_out.flush();
+		}
+		public void close() throws IOException {
+			flush();
+			_out.close();
+		}
+		/** Writes the collected data to the connection.
+			@throws IOException	On io error
+		*/
+		private void _send() throws IOException {
+			if(_used > 0) {
+				_out.write(_buffer, 0, _used);
+				_sent+= _used;
+				_used= 0;
 			}
 		}
-		return line;
+		/** The size of the response buffer */
+		private static final int	_kResponseBuffer= 8192;
+		/** The connection */
+		private OutputStream	_out;
+		/** The connection's channel, null if it cannot be written to directly */
+		private SocketChannel	_channel;
+		/** The collected data */
+		private byte[]			_buffer;
+		/** The number of bytes in _buffer */
+		private int				_used;
+		/** The number of bytes written to _out */
+		private long			_sent;
+		/** The status code of the current response, 0 if not started */
+		private int				_status;
+		/** System.nanoTime() when the current response's status line was written, 0 if not started */
+		private long			_statusNanoseconds;
 	}
 	/** Test class to handle an Echo http server
 	*/
@@ -652,6 +2000,8 @@ public class HTTPServer implements SocketServer.Handler {
 		/** Handles an http request.
 			@param in		The incoming data after the header.
 			@param out		The output. Header needs to be written.
+							It is buffered, and sent when the server waits for the next request (or flush() is called),
+							so responses to pipelined requests go out together.
 			@param headers	The header properties
 			@param query	The query value
 			@param cookies	Any cookies that were sent.
@@ -1,33 +1,91 @@
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.BufferedReader;
+import java.io.FilterInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.InputStreamReader;
+import java.io.EOFException;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.regex.Pattern;
+import java.util.regex.Matcher;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import javax.net.ssl.SSLContext;
+import java.nio.channels.FileChannel;
 
+/** HTTP front end for a Storage.
+	Keys are everything after /key/ in the path (URL decoded).<ul>
+		<li>GET /key/name	Returns the value (200) or 404
+		<li>HEAD /key/name	Returns the Content-Length of the value (200) or 404
+		<li>PUT /key/name	Stores the request body (201), 409 if the key already exists, 411 if neither Content-Length nor chunked,
+			400 if the key is content addressed (see below) and the body does not hash to it
+		<li>DELETE /key/name	Removes the key (204) or 404
+		<li>POST /keys/get	Body is one key per line (UTF-8). Streams back a frame for each key as it is read (chunked), a key listed twice gets two frames.
+			Keys are read in the order their data is stored, so the frames may not be in the order requested.
+		<li>POST /keys/put	Body is a frame for each key/value to store. Returns a result for each key.
+		<li>POST /keys/upload	Body is multipart/form-data (ie an html form with file inputs), each part is stored under its field name.
+			Returns a line for each part: 201, 409 (the key already exists) or 400 (the value does not match its hash), a space, and the key.
+	</ul>
+	Frames are: key (2 byte big endian length, UTF-8 per DataOutputStream.writeUTF),
+	value length (4 bytes big endian, -1 if the key was not found), value.
+	A key of length 0 marks the end of the frames.
+	Results are: key (as in frames), 1 byte: 1 if the key was added, 0 if it already existed, the frame had no value, or the value does not match its hash,
+	ending with an empty key.
+	<p>GET and HEAD send an ETag and honor If-None-Match with 304 Not Modified.
+	Content addressed keys (hash/algorithm/hex, algorithm as in MessageDigest) use the hex as the ETag and are marked immutable,
+	so a revalidation does not need to read the value. Their values are hashed as they are stored, and rejected if they do not match. Other keys use a SHA-1 of the value and must be revalidated.
+	<p>GET honors Range: bytes= (with If-Range) with 206 Partial Content, multipart/byteranges for several ranges,
+	or 416 if no range can be satisfied. Only the requested bytes of content addressed values are read.
+	<p>Whole values of 1k or more are sent with gzip or deflate Content-Encoding if the client accepts it.
+	Values a StorageFile stored compressed are sent without compressing them again.
+	<p>A StorageDirectory writes PUT, /keys/put and upload bodies to disk as they arrive, other stores read each value into memory first.
+	<p>Every response has a Content-Length or is chunked, so HTTP/1.1 and keep-alive connections stay open for the next request.
+*/
 public class KeyStoreServer implements HTTPServer.Handler {
+	/** Serves a store.
+		@param store	The store to serve
+	*/
+	public KeyStoreServer(Storage store) {
+		_store= store;
+	}
 	public boolean handle(InputStream in, OutputStream out, HTTPServer.KeyValuesMap headers, HTTPServer.KeyValuesMap query, HTTPServer.CookieJar cookies) throws IOException {
 		String		path= headers.firstValue("PATH", "/");
+		String		method= headers.firstValue("METHOD", "GET");
 		String[]	parts= path.split("/", 3);
 
-		if( (null != parts) && (parts.length == 3) && (parts[1].equalsIgnoreCase("key")) ) {
-			String	key=parts[2];
-
-			// get or put a key
-			HTTPServer.writeResponse(out, "1.1", 200, "OK");
-			HTTPServer.writeHeader(out, "Content-Type", "text/html");
-			HTTPServer.finishHeaders(out);
-			HTTPServer.write(out, "<html><head><title>Test</title></head><body><h1><center>Test</center></h1>\r\n");
-			HTTPServer.write(out, "key=<b>"+key+"</b><br/>");
-			HTTPServer.write(out, "METHOD=<b>"+headers.getProperty("METHOD", "[UNKNOWN]")+"</b><br/>");
-			HTTPServer.write(out, "</body></html>\r\n");
-			HTTPServer.CloseConnection(headers);
+		if(path.equals("/keys/get") && method.equals("POST")) {
+			HTTPServer.route(headers, path);
+			_getMany(in, out, headers);
+		} else if(path.equals("/keys/put") && method.equals("POST")) {
+			HTTPServer.route(headers, path);
+			_putMany(in, out, headers);
+		} else if(path.equals("/keys/upload") && method.equals("POST")) {
+			HTTPServer.route(headers, path);
+			_upload(in, out, headers);
+		} else if( (parts.length != 3) || !parts[1].equalsIgnoreCase("key") || (parts[2].length() == 0) ) {
+			_respond(out, headers, 404, "Not Found", "Not Found\r\n");
 		} else {
-			HTTPServer.writeResponse(out, "1.1", 200, "OK");
-			HTTPServer.writeHeader(out, "Content-Type", "text/html");
-			HTTPServer.finishHeaders(out);
-			HTTPServer.write(out, "<html><head><title>Test</title></head><body><h1><center>Test</center></h1>\r\n");
-			HTTPServer.write(out, "parts="+parts.length+" 1st="+parts[1]+"<br/>");
-			HTTPServer.write(out, "METHOD="+headers.getProperty("METHOD", "[UNKNOWN]"));
-			HTTPServer.write(out, "</body></html>\r\n");
-			HTTPServer.CloseConnection(headers);
+			String	key= HTTPServer.urlDecode(parts[2]);
+
+			HTTPServer.route(headers, "/key/{key}");
+			if(method.equals("GET") || method.equals("HEAD")) {
+				_get(out, headers, key, method.equals("GET"));
+			} else if(method.equals("PUT")) {
+				_put(in, out, headers, key);
+			} else if(method.equals("DELETE")) {
+				if(_store.remove(key)) {
+					_respondHeaders(out, headers, 204, "No Content", null, 0);
+				} else {
+					_respond(out, headers, 404, "Not Found", "Not Found\r\n");
+				}
+			} else {
+				new HTTPServer.Response(out, 405, "Method Not Allowed").header("Allow", "GET, HEAD, PUT, DELETE").header("Content-Length", 0).send();
+			}
 		}
 		return true;
 	}
@@ -44,12 +102,687 @@ public class KeyStoreServer implements HTTPServer.Handler {
 	public void log(int level, String message) {
 		System.err.println("LOG "+level+": "+message);
 	}
+	/** Hashes a value as it is read, and fails the read that completes it if it does not match its content address.
+	*/
+	private static class _Verifier extends FilterInputStream {
+		/**
+			@param in		The value
+			@param digest	The algorithm of the content address
+			@param hex		The hash in the content address
+			@param length	The number of bytes in the value, or -1 to read to the end of <code>in</code>
+		*/
+		public _Verifier(InputStream in, MessageDigest digest, String hex, long length) {
+			super(in);
+			_digest= digest;
+			_expected= hex;
+			_left= length;
+		}
+		/** Checks a value of no bytes, which is never read.
+			@return	true if the value matches, false if it does not
+		*/
+		public boolean matchesEmpty() {
+			return _expected.equalsIgnoreCase(_hex(_digest.digest()));
+		}
+		/**
+			@return	true if the value read did not match its hash
+		*/
+		public boolean mismatched() {
+			return _mismatched;
+		}
+		public int read() throws IOException {
+			byte[]	one= new byte[1];
+
+			return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xFF);
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			int	read= super.read(b, off, len);
+
+			if(read > 0) {
+				_digest.update(b, off, read);
+				_left-= read;
+			}
+			if( (read < 0) || (_left == 0) ) {
+				_check();
+			}
+			return read;
+		}
+		/** Reads the bytes, so they are hashed.
+			@param n	The number of bytes to skip
+			@return		The number of bytes skipped
+			@throws IOException	On io error, or if the value does not match
+		*/
+		public long skip(long n) throws IOException {
+			byte[]	buffer= new byte[(int)Math.min(n, _kFrameBufferSize)];
+			int		read= read(buffer, 0, buffer.length);
+
+			return (read < 0) ? 0 : read;
+		}
+		/**
+			@return	false, every byte must be hashed once
+		*/
+		public boolean markSupported() {
+			return false;
+		}
+		/** The hash of the bytes read so far */
+		private MessageDigest	_digest;
+		/** The hash in the content address */
+		private String			_expected;
+		/** The number of bytes left in the value, negative if not known */
+		private long			_left;
+		/** The value has been checked */
+		private boolean			_checked;
+		/** The value did not match */
+		private boolean			_mismatched;
+
+		/** Compares the hash of the value to the content address, once.
+			@throws IOException	If the value does not match
+		*/
+		private void _check() throws IOException {
+			if(!_checked) {
+				_checked= true;
+				_mismatched= !_expected.equalsIgnoreCase(_hex(_digest.digest()));
+			}
+			if(_mismatched) {
+				throw new IOException("Value does not match its hash");
+			}
+		}
+	}
+	/** The size of the buffer to collect small frames in before writing them to the connection */
+	private static final int	_kFrameBufferSize= 64 * 1024;
+	/** Cache-Control for values that can change, pre-encoded */
+	private static final byte[]	_kNoCache= "Cache-Control:\tno-cache\r\n".getBytes();
+	/** Cache-Control for values that can never change, pre-encoded */
+	private static final byte[]	_kImmutable= "Cache-Control:\tpublic, max-age=31536000, immutable\r\n".getBytes();
+	/** Vary: Accept-Encoding, pre-encoded */
+	private static final byte[]	_kVaryEncoding= "Vary:\tAccept-Encoding\r\n".getBytes();
+	/** Content addressed keys, hash/algorithm/hex */
+	private static final Pattern	_contentAddressPattern= Pattern.compile("hash/([^/]+)/([0-9a-fA-F]+)");
+	/** The hex digits to use in ETags */
+	private static final String		_hexDigits= "0123456789abcdef";
+	/** The store being served */
+	private Storage				_store;
+	/** Stores the request body under a key.
+		@param in		The request body, limited to Content-Length or decoded from chunks by HTTPServer
+		@param out		The http out stream
+		@param headers	The request headers
+		@param key		The key to store the body under
+		@throws IOException	On io error, or if the body is shorter than Content-Length
+	*/
+	private void _put(InputStream in, OutputStream out, HTTPServer.KeyValuesMap headers, String key) throws IOException {
+		String	lengthString= headers.firstValue("Content-Length", "");
+		long	length= -1;
+
+		if(!(in instanceof ChunkedInputStream)) {
+			if(lengthString.length() == 0) {
+				HTTPServer.CloseConnection(headers); // we do not know where the body ends
+				_respond(out, headers, 411, "Length Required", "Length Required\r\n");
+				return;
+			}
+			length= Long.parseLong(lengthString.trim());
+			if(length < 0) {
+				HTTPServer.CloseConnection(headers); // we do not know where the body ends
+				_respond(out, headers, 400, "Bad Request", "Invalid Content-Length\r\n");
+				return;
+			}
+			if( (length > Integer.MAX_VALUE) && !(_store instanceof StorageDirectory) ) {
+				HTTPServer.CloseConnection(headers); // do not read the body
+				_respond(out, headers, 413, "Request Entity Too Large", "Request Entity Too Large\r\n");
+				return;
+			}
+		}
+		switch(_store(key, in, length)) {
+			case 201:
+				_respond(out, headers, 201, "Created", "");
+				break;
+			case 409:
+				_respond(out, headers, 409, "Conflict", "Key already exists\r\n");
+				break;
+			default:
+				HTTPServer.CloseConnection(headers); // the rest of the body may not have been read
+				_respond(out, headers, 400, "Bad Request", "Value does not match its hash\r\n");
+				break;
+		}
+	}
+	/** Stores each part of a multipart/form-data body under its field name.
+		@param in		The request body
+		@param out		The http out stream
+		@param headers	The request headers
+		@throws IOException	On io error, or if the body is not valid multipart
+	*/
+	private void _upload(InputStream in, OutputStream out, HTTPServer.KeyValuesMap headers) throws IOException {
+		String					boundary= MultipartInputStream.boundary(headers);
+		MultipartInputStream	parts;
+		StringBuilder			results= new StringBuilder();
+
+		if(null == boundary) {
+			_respond(out, headers, 400, "Bad Request", "Expected multipart/form-data\r\n");
+			return;
+		}
+		parts= new MultipartInputStream(in, boundary);
+		for(HTTPServer.KeyValuesMap part= parts.next(); null != part; part= parts.next()) {
+			String	key= MultipartInputStream.parameter(part.firstValue("Content-Disposition", ""), "name");
+
+			if( (null != key) && (key.length() > 0) ) {
+				results.append(_store(key, parts, -1)).append(' ').append(key).append("\r\n");
+			}
+		}
+		_respond(out, headers, 200, "OK", results.toString());
+	}
+	/** Stores a value read from a stream.
+		A content addressed value is hashed as it is read, and not stored if it does not match its key.
+		@param key		The key to store the value under
+		@param in		The value
+		@param length	The number of bytes in the value, or -1 to read to the end of <code>in</code>
+		@return			201 if the value was stored, 409 if the key already exists,
+						400 if the key is content addressed and the value does not match (or the algorithm is not known)
+		@throws IOException	On io error, or if <code>in</code> ends before <code>length</code> bytes
+	*/
+	private int _store(String key, InputStream in, long length) throws IOException {
+		Matcher		address= _contentAddressPattern.matcher(key);
+		_Verifier	verifier;
+
+		if(!address.matches()) {
+			return _storeValue(key, in, length) ? 201 : 409;
+		}
+		try	{
+			verifier= new _Verifier(in, MessageDigest.getInstance(address.group(1)), address.group(2), length);
+		} catch(NoSuchAlgorithmException exception) {
+			return 400;
+		}
+		if( (length == 0) && !verifier.matchesEmpty() ) {
+			return 400;
+		}
+		try	{
+			return _storeValue(key, verifier, length) ? 201 : 409;
+		} catch(IOException exception) {
+			if(verifier.mismatched()) {
+				return 400;
+			}
+			throw exception;
+		}
+	}
+	/** Stores a value read from a stream.
+		A StorageDirectory writes the stream to the value's file as it is read,
+		other stores need the whole value in memory, it is collected as it arrives rather than allocated from <code>length</code>.
+		@param key		The key to store the value under
+		@param in		The value
+		@param length	The number of bytes in the value, or -1 to read to the end of <code>in</code>
+		@return			true if the value was stored, false if the key already exists
+		@throws IOException	On io error, or if <code>in</code> ends before <code>length</code> bytes
+	*/
+	private boolean _storeValue(String key, InputStream in, long length) throws IOException {
+		ByteArrayOutputStream	value;
+		byte[]					buffer;
+		long					left= length;
+
+		if(_store instanceof StorageDirectory) {
+			return ((StorageDirectory)_store).put(key, in, length);
+		}
+		if(_store.has(key)) {
+			return false;
+		}
+		value= new ByteArrayOutputStream();
+		buffer= new byte[_kFrameBufferSize];
+		while( (length < 0) || (left > 0) ) {
+			int	read= in.read(buffer, 0, (int)( ((length < 0) || (left > buffer.length)) ? buffer.length : left ));
+
+			if(read < 0) {
+				if(length < 0) {
+					break;
+				}
+				throw new IOException("Stream ended after "+(length - left)+" of "+length+" bytes of "+key);
+			}
+			value.write(buffer, 0, read);
+			left-= read;
+		}
+		return _store.put(key, value.toByteArray());
+	}
+
+	/** Sends a value, or 304 if the client's copy is current.
+		Honors Range (206 Partial Content or 416), and If-Range.
+		Immutable values are never read whole to answer HEAD or a Range.
+		@param out		The http out stream
+		@param headers	The request headers
+		@param key		The key to send the value of
+		@param sendBody	false for HEAD
+		@throws IOException	On io error
+	*/
+	private void _get(OutputStream out, HTTPServer.KeyValuesMap headers, String key, boolean sendBody) throws IOException {
+		String						etag= _contentAddress(key);
+		boolean						immutable= null != etag;
+		byte[]						value= null;
+		long						total;
+		ArrayList<HTTPServer.Range>	ranges= null;
+
+		if(immutable && _matches(headers, etag) && _store.has(key)) {
+			_notModified(out, headers, etag, immutable);
+			return;
+		}
+		if(immutable) {
+			total= _store.length(key);
+		} else {
+			value= _store.get(key);
+			total= (null == value) ? -1 : value.length;
+		}
+		if(total < 0) {
+			_respond(out, headers, 404, "Not Found", "Not Found\r\n");
+			return;
+		}
+		if(!immutable) {
+			etag= _hash(value);
+		}
+		if(_matches(headers, etag)) {
+			_notModified(out, headers, etag, immutable);
+			return;
+		}
+		// no Last-Modified is sent, so an If-Range date can not match, and the whole value is sent (RFC 7233 3.2)
+		if(headers.firstValue("If-Range", "\""+etag+"\"").equals("\""+etag+"\"")) {
+			ranges= HTTPServer.ranges(headers, total);
+		}
+		if(null == ranges) {
+			_getWhole(out, headers, key, value, total, etag, immutable, sendBody);
+		} else if(ranges.isEmpty()) {
+			_startResponse(out, headers, 416, "Requested Range Not Satisfiable", null, 0).header("Content-Range", "bytes */"+total).send();
+		} else if(ranges.size() == 1) {
+			HTTPServer.Range	range= ranges.get(0);
+			HTTPServer.Response	response= _startResponse(out, headers, 206, "Partial Content", "application/octet-stream", range.length());
+
+			_writeValidators(response.header("Content-Range", range.contentRange(total)), etag, immutable);
+			if(sendBody) {
+				_send(response.body(), key, value, range);
+			} else {
+				response.send();
+			}
+		} else {
+			_getRanges(out, headers, key, value, total, etag, immutable, ranges, sendBody);
+		}
+	}
+	/** Sends a whole value, compressed if the client accepts it and it is worth it.
+		Values a StorageFile has stored compressed are sent as they are on disk, without compressing them again.
+		Values a StorageFile could not make smaller are never compressed.
+		@param out			The http out stream
+		@param headers		The request headers
+		@param key			The key to send the value of
+		@param value		The value if it has already been read, otherwise null
+		@param total		The size of the value
+		@param etag			The ETag of the value (without quotes)
+		@param immutable	true if the value for the key can never change
+		@param sendBody		false for HEAD
+		@throws IOException	On io error
+	*/
+	private void _getWhole(OutputStream out, HTTPServer.KeyValuesMap headers, String key, byte[] value, long total, String etag, boolean immutable, boolean sendBody) throws IOException {
+		String	type= "application/octet-stream";
+		String	encoding= HTTPServer.compressible(type, total) ? HTTPServer.acceptEncoding(headers) : null;
+		byte[]	deflated= null;
+
+		if( (null != encoding) && (_store instanceof StorageFile) ) {
+			deflated= ((StorageFile)_store).getDeflated(key);
+			if(null == deflated) {
+				encoding= null; // it is not compressed on disk because compressing did not make it smaller
+			}
+		}
+		if(null == encoding) {
+			HTTPServer.Response	response= _writeValidators(_startResponse(out, headers, 200, "OK", type, total), etag, immutable);
+
+			if(sendBody) {
+				_send(response.body(), key, value, new HTTPServer.Range(0, total - 1));
+			} else {
+				response.send();
+			}
+		} else if(null != deflated) {
+			HTTPServer.Response	response= _startResponse(out, headers, 200, "OK", type, HTTPServer.deflatedLength(encoding, deflated.length));
+
+			_writeValidators(response.header("Content-Encoding", encoding), etag+"-"+encoding, immutable);
+			if(sendBody) {
+				HTTPServer.writeDeflated(response.body(), encoding, deflated, _read(key, value, new HTTPServer.Range(0, total - 1)));
+			} else {
+				response.send();
+			}
+		} else {
+			HTTPServer.Response	response= _writeValidators(_startResponse(out, headers, 200, "OK", type, -1), etag+"-"+encoding, immutable);
+			OutputStream		body;
+
+			if(sendBody) {
+				body= HTTPServer.compressedBody(out, encoding); // the response was written to out, compressedBody() finishes it
+				body.write(_read(key, value, new HTTPServer.Range(0, total - 1)));
+				body.close();
+			} else {
+				response.header("Content-Encoding", encoding).header(HTTPServer.kChunked).send();
+			}
+		}
+	}
+	/** Sends several ranges of a value as multipart/byteranges.
+		@param out			The http out stream
+		@param headers		The request headers
+		@param key			The key to send the value of
+		@param value		The value if it has already been read, otherwise null
+		@param total		The size of the value
+		@param etag			The ETag of the value (without quotes)
+		@param immutable	true if the value for the key can never change
+		@param ranges		The ranges to send, in order and not overlapping
+		@param sendBody		false for HEAD
+		@throws IOException	On io error
+	*/
+	private void _getRanges(OutputStream out, HTTPServer.KeyValuesMap headers, String key, byte[] value, long total, String etag, boolean immutable, ArrayList<HTTPServer.Range> ranges, boolean sendBody) throws IOException {
+		String				boundary= Long.toHexString(System.nanoTime()) + etag;
+		ArrayList<byte[]>	partHeaders= new ArrayList<byte[]>();
+		byte[]				end= ("\r\n--"+boundary+"--\r\n").getBytes();
+		long				length= end.length;
+		OutputStream		body;
+
+		for(HTTPServer.Range range : ranges) {
+			byte[]	partHeader= ("\r\n--"+boundary+"\r\nContent-Type: application/octet-stream\r\nContent-Range: "
+									+range.contentRange(total)+"\r\n\r\n").getBytes();
+
+			partHeaders.add(partHeader);
+			length+= partHeader.length + range.length();
+		}
+		body= _writeValidators(_startResponse(out, headers, 206, "Partial Content", "multipart/byteranges; boundary="+boundary, length), etag, immutable).body();
+		if(sendBody) {
+			for(int index= 0; index < ranges.size(); ++index) {
+				body.write(partHeaders.get(index));
+				_send(body, key, value, ranges.get(index));
+			}
+			body.write(end);
+		}
+	}
+	/** Sends a range of a value.
+		A value that has not been read is sent straight from its file (see HTTPServer.sendFile()),
+		if the store is a StorageDirectory, or a StorageFile that did not compress it.
+		@param out		The http out stream, after the headers
+		@param key		The key to send
+		@param value	The value if it has already been read, otherwise it is sent from the store
+		@param range	The range of the value to send
+		@throws IOException	On io error, or if the key was removed after the headers were sent
+	*/
+	private void _send(OutputStream out, String key, byte[] value, HTTPServer.Range range) throws IOException {
+		if( (null == value) && (_store instanceof StorageDirectory) ) {
+			FileChannel	file= ((StorageDirectory)_store).open(key);
+
+			if(null != file) {
+				try	{
+					if(file.size() <= range.end) {
+						throw new IOException("Value changed while sending: "+key);
+					}
+					HTTPServer.sendFile(out, file, range.start, range.length());
+				} finally {
+					file.close();
+				}
+				return;
+			}
+		} else if( (null == value) && (_store instanceof StorageFile) ) {
+			StorageFile.Slice	slice= ((StorageFile)_store).slice(key);
+
+			if(null != slice) {
+				try	{
+					if(slice.length() <= range.end) {
+						throw new IOException("Value changed while sending: "+key);
+					}
+					HTTPServer.sendFile(out, slice.channel(), slice.position() + range.start, range.length());
+				} finally {
+					slice.close();
+				}
+				return;
+			}
+		}
+		out.write(_read(key, value, range));
+	}
+	/** Gets a range of a value.
+		@param key		The key to read
+		@param value	The value if it has already been read, otherwise it is read from the store
+		@param range	The range of the value to get
+		@return			The bytes in the range
+		@throws IOException	On io error, or if the key was removed after the headers were sent
+	*/
+	private byte[] _read(String key, byte[] value, HTTPServer.Range range) throws IOException {
+		byte[]	data;
+
+		if( (null != value) && (range.start == 0) && (range.length() == value.length) ) {
+			return value;
+		}
+		if(null != value) {
+			data= new byte[(int)range.length()];
+			System.arraycopy(value, (int)range.start, data, 0, data.length);
+			return data;
+		}
+		data= _store.get(key, range.start, (int)range.length());
+		if( (null == data) || (data.length != range.length()) ) {
+			throw new IOException("Value changed while sending: "+key); // close the connection, the Content-Length is wrong
+		}
+		return data;
+	}
+	/** Sends 304 Not Modified.
+		@param out			The http out stream
+		@param headers		The request headers
+		@param etag			The ETag of the value (without quotes)
+		@param immutable	true if the value for the key can never change
+		@throws IOException	On io error
+	*/
+	private static void _notModified(OutputStream out, HTTPServer.KeyValuesMap headers, String etag, boolean immutable) throws IOException {
+		_writeValidators(new HTTPServer.Response(out, 304, "Not Modified"), etag, immutable).keepAlive(headers).send(); // 304 never has a body
+	}
+	/** Writes the ETag, Cache-Control and Vary headers.
+		@param response		The response being built
+		@param etag			The ETag of the value (without quotes), with -gzip or -deflate if it is compressed
+		@param immutable	true if the value for the key can never change
+		@return				<code>response</code>
+		@throws IOException	On io error
+	*/
+	private static HTTPServer.Response _writeValidators(HTTPServer.Response response, String etag, boolean immutable) throws IOException {
+		return response.header("ETag", "\""+etag+"\"").header(HTTPServer.kAcceptRanges)
+						.header(immutable ? _kImmutable : _kNoCache).header(_kVaryEncoding);
+	}
+	/** Determines if If-None-Match has the given ETag (or *).
+		The compressed and uncompressed ETags of a value match each other, they are the same value.
+		@param headers	The request headers
+		@param etag		The ETag of the value (without quotes)
+		@return			true if the client already has this value
+	*/
+	private static boolean _matches(HTTPServer.KeyValuesMap headers, String etag) {
+		ArrayList<String>	values= headers.get("If-None-Match");
+
+		if(null == values) {
+			return false;
+		}
+		for(String value : values) {
+			for(String tag : value.split(",")) {
+				tag= tag.trim();
+				if(tag.startsWith("W/")) {
+					tag= tag.substring(2); // weak comparison is fine for GET
+				}
+				if(tag.equals("*") || tag.equals("\""+etag+"\"") || tag.startsWith("\""+etag+"-")) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+	/** Gets the hash in a content addressed key.
+		@param key	The key
+		@return		The hex hash, as it is in the key, if the key is hash/algorithm/hex, otherwise null
+	*/
+	private static String _contentAddress(String key) {
+		Matcher	matcher= _contentAddressPattern.matcher(key);
+
+		if(!matcher.matches()) {
+			return null;
+		}
+		return matcher.group(2);
+	}
+	/** Hashes a value for its ETag.
+		@param value	The value
+		@return			The SHA-1 of the value, in hex
+		@throws IOException	If SHA-1 is not available
+	*/
+	private static String _hash(byte[] value) throws IOException {
+		try	{
+			return _hex(MessageDigest.getInstance("SHA-1").digest(value));
+		} catch(NoSuchAlgorithmException exception) {
+			throw new IOException(exception.toString());
+		}
+	}
+	/** Converts a digest to hex.
+		@param digest	The digest
+		@return			The digest in lowercase hex
+	*/
+	private static String _hex(byte[] digest) {
+		StringBuilder	hex= new StringBuilder(digest.length * 2);
+
+		for(byte b : digest) {
+			hex.append(_hexDigits.charAt((b >> 4) & 0x0F));
+			hex.append(_hexDigits.charAt(b & 0x0F));
+		}
+		return hex.toString();
+	}
+	/** Streams the values for a list of keys.
+		For a StorageFile, the keys are read in file order.
+		@param in		The request body, one key per line
+		@param out		The http out stream
+		@param headers	The request headers
+		@throws IOException	On io error
+	*/
+	private void _getMany(InputStream in, OutputStream out, HTTPServer.KeyValuesMap headers) throws IOException {
+		BufferedReader		lines= new BufferedReader(new InputStreamReader(in, "UTF-8"));
+		ArrayList<String>	keys= new ArrayList<String>();
+		OutputStream		body;
+		DataOutputStream	frames;
+		String				key= lines.readLine();
+
+		while(null != key) {
+			if(key.length() > 0) {
+				keys.add(key);
+			}
+			key= lines.readLine();
+		}
+		if(_store instanceof StorageFile) {
+			keys= ((StorageFile)_store).inFileOrder(keys);
+		}
+		body= new HTTPServer.Response(out, 200, "OK").header("Content-Type", "application/octet-stream")
+				.chunkedBody(headers); // the length is not known until every value is read
+		frames= new DataOutputStream(new BufferedOutputStream(body, _kFrameBufferSize));
+		for(String each : keys) {
+			byte[]	value= _store.get(each);
+
+			frames.writeUTF(each);
+			if(null == value) {
+				frames.writeInt(-1);
+			} else {
+				frames.writeInt(value.length);
+				frames.write(value);
+			}
+		}
+		frames.writeUTF("");
+		frames.flush();
+		body.close();
+	}
+	/** Stores a stream of key/value frames.
+		Each value is read through _store(), so a frame's length is never allocated up front.
+		@param in		The request body, key/value frames
+		@param out		The http out stream
+		@param headers	The request headers
+		@throws IOException	On io error
+	*/
+	private void _putMany(InputStream in, OutputStream out, HTTPServer.KeyValuesMap headers) throws IOException {
+		DataInputStream			frames= new DataInputStream(in);
+		ByteArrayOutputStream	resultBuffer= new ByteArrayOutputStream();
+		DataOutputStream		results= new DataOutputStream(resultBuffer);
+
+		while(true) {
+			String				key;
+			LimitedInputStream	value;
+			int					length;
+
+			try	{
+				key= frames.readUTF();
+			} catch(EOFException exception) {
+				break; // no end marker, end of the body
+			}
+			if(key.length() == 0) {
+				break;
+			}
+			length= frames.readInt();
+			results.writeUTF(key);
+			if(length < 0) {
+				results.writeByte(0); // nothing to store
+				continue;
+			}
+			value= new LimitedInputStream(frames, length);
+			results.writeByte( (_store(key, value, length) == 201) ? 1 : 0 );
+			value.finish(); // the key already existed or the value did not match, skip to the next frame
+		}
+		results.writeUTF("");
+		_respondHeaders(out, headers, 200, "OK", "application/octet-stream", resultBuffer.size());
+		resultBuffer.writeTo(out);
+	}
+	/** Writes a complete response with a short text body.
+		@param out			The http out stream
+		@param headers		The request headers
+		@param statusCode	The http status code
+		@param phrase		The http response phrase
+		@param body			The text body
+		@throws IOException	On io error
+	*/
+	private static void _respond(OutputStream out, HTTPServer.KeyValuesMap headers, int statusCode, String phrase, String body) throws IOException {
+		byte[]	data= body.getBytes();
+
+		_startResponse(out, headers, statusCode, phrase, "text/plain", data.length).send(data);
+	}
+	/** Writes the response line and headers.
+		@param out				The http out stream
+		@param headers			The request headers
+		@param statusCode		The http status code
+		@param phrase			The http response phrase
+		@param contentType		The type of the body, or null for no Content-Type
+		@param contentLength	The number of bytes in the body
+		@throws IOException		On io error
+	*/
+	private static void _respondHeaders(OutputStream out, HTTPServer.KeyValuesMap headers, int statusCode, String phrase, String contentType, long contentLength) throws IOException {
+		_startResponse(out, headers, statusCode, phrase, contentType, contentLength).send();
+	}
+	/** Writes the response line and common headers, more headers may follow.
+		@param out				The http out stream
+		@param headers			The request headers
+		@param statusCode		The http status code
+		@param phrase			The http response phrase
+		@param contentType		The type of the body, or null for no Content-Type
+		@param contentLength	The number of bytes in the body, or -1 for no Content-Length (chunked)
+		@return					The response, to add headers to and send
+		@throws IOException		On io error
+	*/
+	private static HTTPServer.Response _startResponse(OutputStream out, HTTPServer.KeyValuesMap headers, int statusCode, String phrase, String contentType, long contentLength) throws IOException {
+		HTTPServer.Response	response= new HTTPServer.Response(out, statusCode, phrase);
+
+		if(contentLength >= 0) {
+			response.header("Content-Length", contentLength);
+		}
+		if(null != contentType) {
+			response.header("Content-Type", contentType);
+		}
+		return response.keepAlive(headers);
+	}
 	/** Test.
-		@param args	arg[0] is the port to listen on.
+		@param args	arg[0] is the port to listen on, arg[1] is a storage file or directory to serve.
+					arg[2] (optional) is the most requests to handle at once (as many more can wait, the rest get 503), 0 for no limit.
+					arg[3] and arg[4] (optional) are a keystore and its password, to serve https.
 	*/
 	public static void main(String... args) {
 		try	{
-			new SocketServer(Integer.parseInt(args[0]), new HTTPServer(new KeyStoreServer()));
+			File		location= new File(args[1]);
+			SSLContext	tls= (args.length > 4) ? TLS.context(new File(args[3]), args[4].toCharArray()) : null;
+			int			workers= (args.length > 2) ? Integer.parseInt(args[2]) : 0;
+			Storage		store;
+
+			if(location.isDirectory()) {
+				store= new StorageDirectory(location);
+			} else {
+				store= new StorageFile(location);
+			}
+			if(workers > 0) {
+				new SocketServer(Integer.parseInt(args[0]), new HTTPServer(new KeyStoreServer(store)),
+									1, workers, workers, SocketServer.Overload.RESPOND, tls);
+			} else {
+				new SocketServer(Integer.parseInt(args[0]), new HTTPServer(new KeyStoreServer(store)), null, tls);
+			}
 		} catch(IOException exception) {
 			System.err.println(exception);
 		}
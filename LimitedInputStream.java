@@ -96,12 +96,25 @@ public class LimitedInputStream extends InputStream {
 		return false;
 	}
 	/** Skips the rest of the bytes up to max.
-		This will get the underlying stream up to max.
+		This will get the underlying stream up to max, skip() may skip less than asked so it is repeated.
 		@return	The number of bytes skipped.
 		@throws IOException	on io error
 	*/
 	public long finish() throws IOException {
-		return skip(_max);
+		long	skipped= 0;
+
+		while(_max > 0) {
+			long	amount= skip(_max);
+
+			if(amount <= 0) {
+				if(read() < 0) {
+					break; // end of the underlying stream
+				}
+				amount= 1;
+			}
+			skipped+= amount;
+		}
+		return skipped;
 	}
 	/** The underlying stream. */
 	private InputStream	_in;
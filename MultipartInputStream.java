@@ -0,0 +1,325 @@
+import java.io.InputStream;
+import java.io.IOException;
+
+/** Decodes a multipart body (ie multipart/form-data file uploads) one part at a time.
+	next() reads a part's header fields, then reads return the part's body and end (-1) at the boundary after it.
+	Only a buffer a little longer than the boundary is kept, so parts of any size stream through without being held in memory.
+	<code>for(KeyValuesMap part= in.next(); null != part; part= in.next()) { ... read the part from in ... }</code>
+	<p>The preamble, and the rest of a part that is not read, are skipped by next().
+	The epilogue after the last part is left in the underlying stream.
+*/
+public class MultipartInputStream extends InputStream {
+	/**
+		@param in		The body, limited to Content-Length or decoded from chunks by HTTPServer
+		@param boundary	The boundary parameter of the Content-Type (see boundary())
+	*/
+	public MultipartInputStream(InputStream in, String boundary) {
+		_in= in;
+		_delimiter= ("\r\n--"+boundary).getBytes();
+		_buffer= new byte[Math.max(_kBufferSize, 2 * _delimiter.length)];
+		_buffer[0]= '\r'; // the first boundary does not have to follow a line
+		_buffer[1]= '\n';
+		_start= 0;
+		_end= 2;
+		_searched= 0;
+		_oneByte= new byte[1];
+		_partDone= false;
+		_finished= false;
+		_eof= false;
+	}
+	/** Gets the boundary of a multipart body.
+		@param headers	The request headers
+		@return			The boundary parameter of a multipart Content-Type, or null if the body is not multipart
+	*/
+	public static String boundary(HTTPServer.KeyValuesMap headers) {
+		String	contentType= headers.firstValue("Content-Type", "");
+
+		if(!contentType.trim().toLowerCase().startsWith("multipart/")) {
+			return null;
+		}
+		return parameter(contentType, "boundary");
+	}
+	/** Gets a parameter of a header value (ie the name and filename of Content-Disposition: form-data; name="file"; filename="a.txt").
+		@param value	The header value
+		@param name		The parameter name (case insensitive)
+		@return			The parameter value, unquoted, or null if the header does not have the parameter
+	*/
+	public static String parameter(String value, String name) {
+		int	index= value.indexOf(';');
+
+		while( (index >= 0) && (index < value.length()) ) {
+			int				equals= value.indexOf('=', index);
+			String			parameterName;
+			StringBuilder	parameterValue= new StringBuilder();
+
+			if(equals < 0) {
+				break;
+			}
+			parameterName= value.substring(index + 1, equals).trim();
+			index= equals + 1;
+			while( (index < value.length()) && (value.charAt(index) == ' ') ) {
+				++index;
+			}
+			if( (index < value.length()) && (value.charAt(index) == '"') ) {
+				for(++index; (index < value.length()) && (value.charAt(index) != '"'); ++index) {
+					if( (value.charAt(index) == '\\') && (index + 1 < value.length()) ) {
+						++index;
+					}
+					parameterValue.append(value.charAt(index));
+				}
+				index= value.indexOf(';', index);
+			} else {
+				int	end= value.indexOf(';', index);
+
+				parameterValue.append(value.substring(index, (end < 0) ? value.length() : end).trim());
+				index= end;
+			}
+			if(parameterName.equalsIgnoreCase(name)) {
+				return parameterValue.toString();
+			}
+		}
+		return null;
+	}
+	/** Moves to the next part.
+		The rest of the current part (or the preamble) is skipped.
+		@return	The part's header fields (ie Content-Disposition, Content-Type), or null after the last part
+		@throws IOException	On io error, or if the body ends before the last boundary
+	*/
+	public HTTPServer.KeyValuesMap next() throws IOException {
+		HTTPServer.KeyValuesMap	headers= new HTTPServer.KeyValuesMap();
+		byte[]					skip= new byte[_kBufferSize];
+		String					line;
+
+		if(_finished) {
+			return null;
+		}
+		while(read(skip, 0, skip.length) >= 0) {
+			// skip the rest of the part
+		}
+		if(!_fill(2)) {
+			throw new IOException("Multipart body ended after a boundary");
+		}
+		if( (_buffer[_start] == '-') && (_buffer[_start + 1] == '-') ) { // close delimiter
+			_start+= 2;
+			_finished= true;
+			return null;
+		}
+		_readLine(); // transport padding after the boundary
+		line= _readLine();
+		while(line.length() > 0) {
+			int	colon= line.indexOf(':');
+
+			if(colon <= 0) {
+				throw new IOException("Invalid multipart header: "+line);
+			}
+			if(headers.size() >= _kMaxHeaders) {
+				throw new IOException("Too many multipart headers");
+			}
+			headers.put(_canonical(line.substring(0, colon).trim()), line.substring(colon + 1).trim());
+			line= _readLine();
+		}
+		_partDone= false;
+		return headers;
+	}
+	/**
+		@return	-1 at the end of the part. >= 0 the byte from the part.
+	*/
+	public int read() throws IOException {
+		return (read(_oneByte, 0, 1) < 0) ? -1 : (_oneByte[0] & 0xFF);
+	}
+	/**
+		@param b	The byte buffer to fill
+		@param off	The offset to start filling bytes in
+		@param len	The maxmimum to read
+		@return		-1 at the end of the part. >= 0 the number of bytes put in <code>b</code>.
+	*/
+	public int read(byte[] b, int off, int len) throws IOException {
+		int	found, amount;
+
+		if(_partDone || _finished) {
+			return -1;
+		}
+		if(len == 0) {
+			return 0;
+		}
+		_fill(_delimiter.length);
+		found= _find();
+		if(found == _start) {
+			_start+= _delimiter.length;
+			_partDone= true;
+			return -1;
+		}
+		if(found >= 0) {
+			amount= found - _start;
+		} else if(_eof) {
+			throw new IOException("Multipart body ended in a part");
+		} else {
+			amount= _end - _start - _delimiter.length + 1; // the rest could be the start of the boundary
+		}
+		if(amount > len) {
+			amount= len;
+		}
+		System.arraycopy(_buffer, _start, b, off, amount);
+		_start+= amount;
+		return amount;
+	}
+	/**
+		@return	The number of bytes of the part that are buffered
+	*/
+	public int available() throws IOException {
+		int	found;
+
+		if(_partDone || _finished) {
+			return 0;
+		}
+		found= _find();
+		return (found >= 0) ? found - _start : Math.max(0, _end - _start - _delimiter.length + 1);
+	}
+	/**
+		@return	false, mark is not supported.
+	*/
+	public boolean markSupported() {
+		return false;
+	}
+	/** Does not close the underlying stream, HTTPServer reads the rest of the body.
+	*/
+	public void close() throws IOException {
+	}
+	/** The size of the buffer, more than the boundary is kept so reads are not tiny */
+	private static final int	_kBufferSize= 8192;
+	/** The longest part header line accepted */
+	private static final int	_kMaxLine= 4096;
+	/** The most header fields accepted for a part */
+	private static final int	_kMaxHeaders= 64;
+	/** The underlying stream */
+	private InputStream	_in;
+	/** CRLF, -- and the boundary */
+	private byte[]		_delimiter;
+	/** Bytes read from _in that have not been returned */
+	private byte[]		_buffer;
+	/** The offset of the first byte in _buffer that has not been returned */
+	private int			_start;
+	/** The offset after the last byte read into _buffer */
+	private int			_end;
+	/** Has the current part's boundary been read */
+	private boolean		_partDone;
+	/** Has the close delimiter been read */
+	private boolean		_finished;
+	/** Has _in ended */
+	private boolean		_eof;
+	/** The boundary does not start before this offset in _buffer (or starts here), so bytes are only searched once */
+	private int			_searched;
+	/** The buffer for read() */
+	private byte[]		_oneByte;
+
+	/** Reads from the underlying stream until there are enough bytes buffered, or it ends.
+		@param needed	The number of bytes wanted in the buffer
+		@return			true if there are <code>needed</code> bytes buffered
+		@throws IOException	on io error
+	*/
+	private boolean _fill(int needed) throws IOException {
+		if(_end - _start >= needed) {
+			return true;
+		}
+		if(_start > 0) {
+			System.arraycopy(_buffer, _start, _buffer, 0, _end - _start);
+			_end-= _start;
+			_searched= Math.max(0, _searched - _start);
+			_start= 0;
+		}
+		while( (_end < needed) && !_eof ) {
+			int	read= _in.read(_buffer, _end, _buffer.length - _end);
+
+			if(read < 0) {
+				_eof= true;
+			} else {
+				_end+= read;
+			}
+		}
+		return _end >= needed;
+	}
+	/** Finds the boundary in the buffer.
+		@return	The offset of the boundary in _buffer, or -1 if it does not start in the buffer
+	*/
+	private int _find() {
+		int	last= _end - _delimiter.length;
+
+		for(int offset= Math.max(_start, _searched); offset <= last; ++offset) {
+			int	matched= 0;
+
+			while( (matched < _delimiter.length) && (_buffer[offset + matched] == _delimiter[matched]) ) {
+				++matched;
+			}
+			if(matched == _delimiter.length) {
+				_searched= offset;
+				return offset;
+			}
+		}
+		_searched= Math.max(_searched, last + 1);
+		return -1;
+	}
+	/** Reads a CRLF (or LF) terminated line from the buffer.
+		@return	The line without the line ending
+		@throws IOException	on io error, end of stream or if the line is too long
+	*/
+	private String _readLine() throws IOException {
+		StringBuilder	line= new StringBuilder();
+
+		while(true) {
+			int	oneByte;
+
+			if(!_fill(1)) {
+				throw new IOException("Multipart body ended in a part header");
+			}
+			oneByte= _buffer[_start++] & 0xFF;
+			if(oneByte == '\n') {
+				return line.toString();
+			}
+			if(oneByte != '\r') {
+				line.append((char)oneByte);
+			}
+			if(line.length() > _kMaxLine) {
+				throw new IOException("Multipart header too long");
+			}
+		}
+	}
+	/** Capitalizes a header name the way HTTPServer does, so content-disposition is found as Content-Disposition.
+		@param name	The header name as sent
+		@return		Each word capitalized (ie Content-Type)
+	*/
+	private static String _canonical(String name) {
+		char[]	characters= name.toLowerCase().toCharArray();
+
+		for(int index= 0; index < characters.length; ++index) {
+			if( (index == 0) || (characters[index - 1] == '-') ) {
+				characters[index]= Character.toUpperCase(characters[index]);
+			}
+		}
+		return new String(characters);
+	}
+
+	/** Test. Lists the parts of a multipart body on stdin.
+		@param args	The boundary
+	*/
+	public static void main(String... args) {
+		try	{
+			MultipartInputStream	in= new MultipartInputStream(System.in, args[0]);
+			byte[]					buffer= new byte[4096];
+
+			for(HTTPServer.KeyValuesMap part= in.next(); null != part; part= in.next()) {
+				String	disposition= part.firstValue("Content-Disposition", "");
+				long	size= 0;
+				int		read= in.read(buffer);
+
+				while(read >= 0) {
+					size+= read;
+					read= in.read(buffer);
+				}
+				System.out.println("name="+parameter(disposition, "name")+" filename="+parameter(disposition, "filename")
+									+" type="+part.firstValue("Content-Type", "")+" size="+size);
+			}
+		} catch(IOException exception) {
+			exception.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,554 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.ArrayList;
+
+/** A Storage that keeps a sequence numbered log of its changes, and serves that log to followers.
+	Used as a SocketServer.Handler, each connection is a Follower tailing the log.
+	<p>Protocol (all numbers big endian, strings per DataOutputStream.writeUTF):<ul>
+		<li>Follower sends: epoch (8 bytes), sequence (8 bytes) of the last change it has applied
+		<li>If the epoch matches and the sequence is still in the log, the leader streams changes after it.
+			Otherwise the leader bulk copies every key, then streams changes after the copy.
+		<li>Leader frames, each starting with a type byte:<ul>
+			<li>P:	put, sequence (8), key, time to live (8), data length (4, -1 if the key has since been removed or expired), data
+			<li>R:	remove, sequence (8), key
+			<li>C:	bulk copy, key, time to live (8), data length (4), data
+			<li>S:	end of bulk copy, epoch (8), sequence (8). Follower keys not copied are removed.
+			<li>H:	heartbeat, sequence (8), sent when there are no changes
+		</ul>
+	</ul>
+	Values are not kept in the log, they are read from the store as the change is sent.
+	The time to live sent is what is left when the change is sent (0 for never expire),
+	so replaying a change or copying a key does not extend when it expires, and the clocks do not have to agree.
+*/
+public class ReplicatedStorage implements Storage, SocketServer.Handler {
+	/** Logs the changes to a store.
+		@param store	The store to replicate
+		@param maxLog	The number of changes to keep for followers to resume from
+	*/
+	public ReplicatedStorage(Storage store, int maxLog) {
+		_store= store;
+		_maxLog= maxLog;
+		_log= new ArrayList<_Change>();
+		_epoch= System.currentTimeMillis();
+		_sequence= 0;
+		_firstSequence= 1;
+	}
+	/** Identifies this log. Sequence numbers from a different epoch can not be resumed.
+		@return	The epoch of the log
+	*/
+	public long epoch() {
+		return _epoch;
+	}
+	/** The sequence number of the latest change.
+		@return	The sequence number of the latest change, 0 if there have been none
+	*/
+	public synchronized long sequence() {
+		return _sequence;
+	}
+	public ArrayList<String> keys() throws IOException {
+		return _store.keys();
+	}
+	public byte[] get(String key) throws IOException {
+		return _store.get(key);
+	}
+	public byte[] get(String key, long offset, int length) throws IOException {
+		return _store.get(key, offset, length);
+	}
+	public long length(String key) throws IOException {
+		return _store.length(key);
+	}
+	public boolean has(String key) throws IOException {
+		return _store.has(key);
+	}
+	public long expires(String key) throws IOException {
+		return _store.expires(key);
+	}
+	public synchronized boolean remove(String key) throws IOException {
+		if(!_store.remove(key)) {
+			return false;
+		}
+		_append(new _Change(_sequence + 1, 'R', key, 0));
+		return true;
+	}
+	public boolean put(String key, byte[] data) throws IOException {
+		return put(key, data, false);
+	}
+	public synchronized boolean put(String key, byte[] data, boolean doNotGrow) throws IOException {
+		if(!_store.put(key, data, doNotGrow)) {
+			return false;
+		}
+		_append(new _Change(_sequence + 1, 'P', key, 0));
+		return true;
+	}
+	public synchronized boolean put(String key, byte[] data, long timeToLiveInMilliseconds) throws IOException {
+		if(!_store.put(key, data, timeToLiveInMilliseconds)) {
+			return false;
+		}
+		_append(new _Change(_sequence + 1, 'P', key, 0)); // the time to live is sent from the store
+		return true;
+	}
+	/** Expired keys are not logged, each follower expires them on its own.
+	*/
+	public int expire(int maxToExamine) throws IOException {
+		return _store.expire(maxToExamine);
+	}
+	public long size() throws IOException {
+		return _store.size();
+	}
+	public long size(boolean free) throws IOException {
+		return _store.size(free);
+	}
+	/** Streams the change log to a Follower.
+		@param server		The server that accepted the connection
+		@param connection	The connection from the Follower
+		@throws IOException	on io error, or when the Follower disconnects
+	*/
+	public void handle(SocketServer server, Socket connection) throws IOException {
+		DataInputStream		in= new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+		DataOutputStream	out= new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+		long				epoch= in.readLong();
+		long				sequence= in.readLong();
+
+		log(50, "Follower "+connection+" resuming at "+epoch+"/"+sequence);
+		if( (epoch != _epoch) || (sequence > sequence()) ) {
+			sequence= _bulkCopy(out);
+		}
+		while(true) {
+			ArrayList<_Change>	changes= _changesAfter(sequence, _kBatchSize, _kHeartbeatInMilliseconds);
+
+			if(null == changes) {
+				log(50, "Follower "+connection+" fell behind the log at "+sequence);
+				sequence= _bulkCopy(out);
+			} else if(changes.size() == 0) {
+				out.writeByte('H');
+				out.writeLong(sequence);
+			} else {
+				for(_Change change : changes) {
+					_send(out, change);
+					sequence= change.sequence;
+				}
+			}
+			out.flush();
+		}
+	}
+	/** Handles logging exceptions
+	*/
+	public void log(Exception exception) {
+		exception.printStackTrace();
+		log(0, exception.toString());
+	}
+	/** Logs messages.
+		@param level	0 = vital to display 100 = trivial to display
+		@param message	The message to handle
+	*/
+	public void log(int level, String message) {
+		System.err.println("LOG "+level+": "+message);
+	}
+	/** Tails a ReplicatedStorage over the network and applies its changes to a local store.
+		Reconnects if the connection drops, resuming from the last change applied.
+	*/
+	public static class Follower extends Thread {
+		/** Starts following a leader from the beginning.
+			@param store	The store to apply changes to
+			@param host		The leader's host
+			@param port		The leader's port
+		*/
+		public Follower(Storage store, String host, int port) {
+			this(store, host, port, 0, 0);
+		}
+		/** Starts following a leader from a given point.
+			@param store	The store to apply changes to
+			@param host		The leader's host
+			@param port		The leader's port
+			@param epoch	The epoch from a previous Follower, see epoch()
+			@param sequence	The sequence from a previous Follower, see sequence()
+		*/
+		public Follower(Storage store, String host, int port, long epoch, long sequence) {
+			_store= store;
+			_host= host;
+			_port= port;
+			_epoch= epoch;
+			_sequence= sequence;
+			_done= false;
+			_connection= null;
+			setDaemon(true);
+			start();
+		}
+		/** The epoch of the leader's log we are following.
+			@return	The leader's epoch, or 0 if we have not synchronized yet
+		*/
+		public long epoch() {
+			return _epoch;
+		}
+		/** The last change applied to the store.
+			@return	The sequence number of the last change applied
+		*/
+		public long sequence() {
+			return _sequence;
+		}
+		/** Stops following.
+		*/
+		public void terminate() {
+			_done= true;
+			try	{
+				Socket	connection= _connection;
+
+				if(null != connection) {
+					connection.close();
+				}
+			} catch(IOException exception) {
+				// closing anyway
+			}
+		}
+		/** Connects to the leader, and applies changes until terminated.
+		*/
+		public void run() {
+			while(!_done) {
+				try	{
+					_connection= new Socket(_host, _port);
+					_follow(new DataInputStream(new BufferedInputStream(_connection.getInputStream())),
+							new DataOutputStream(_connection.getOutputStream()));
+				} catch(IOException exception) {
+					if(!_done) {
+						try	{
+							Thread.sleep(_kReconnectInMilliseconds);
+						} catch(InterruptedException e) {
+						}
+					}
+				} finally {
+					try	{
+						if(null != _connection) {
+							_connection.close();
+						}
+					} catch(IOException exception) {
+					}
+				}
+			}
+		}
+		/** Reads changes from the leader and applies them in batches.
+			A batch is everything already received, up to _kBatchSize changes.
+			@param in	The stream from the leader
+			@param out	The stream to the leader
+			@throws IOException	on io error
+		*/
+		private void _follow(DataInputStream in, DataOutputStream out) throws IOException {
+			ArrayList<_Change>	batch= new ArrayList<_Change>(_kBatchSize);
+			HashSet<String>		copied= null;
+
+			out.writeLong(_epoch);
+			out.writeLong(_sequence);
+			out.flush();
+			while(!_done) {
+				int		type= in.readByte();
+				_Change	change;
+
+				if('C' == type) {
+					if(null == copied) {
+						copied= new HashSet<String>();
+					}
+					change= new _Change(0, 'C', in.readUTF(), 0);
+					change.timeToLive= in.readLong();
+					change.data= _readData(in);
+					copied.add(change.key);
+				} else if('S' == type) {
+					long	epoch= in.readLong();
+					long	sequence= in.readLong();
+
+					_apply(batch);
+					batch.clear();
+					_removeAllBut(copied);
+					copied= null;
+					_epoch= epoch;
+					_sequence= sequence;
+					change= null;
+				} else if('H' == type) {
+					in.readLong();
+					change= null;
+				} else if('P' == type) {
+					change= new _Change(in.readLong(), 'P', in.readUTF(), 0);
+					change.timeToLive= in.readLong();
+					change.data= _readData(in);
+				} else if('R' == type) {
+					change= new _Change(in.readLong(), 'R', in.readUTF(), 0);
+				} else {
+					throw new IOException("Unknown replication frame: "+type);
+				}
+				if(null != change) {
+					batch.add(change);
+				}
+				if( (in.available() == 0) || (batch.size() >= _kBatchSize) ) {
+					_apply(batch);
+					batch.clear();
+				}
+			}
+		}
+		/** Applies a batch of changes, and then records the sequence of the last one.
+			Bulk copied values do not have a sequence, the sequence is recorded when the copy ends.
+			@param batch	The changes to apply
+			@throws IOException	on io error
+		*/
+		private void _apply(ArrayList<_Change> batch) throws IOException {
+			long	sequence= _sequence;
+
+			for(_Change change : batch) {
+				if('R' == change.type) {
+					_store.remove(change.key);
+				} else if(null != change.data) {
+					byte[]	existing= _store.get(change.key);
+					boolean	expiring= (0 != change.timeToLive) || (0 != _store.expires(change.key));
+
+					if( (null != existing) && (expiring || !Arrays.equals(existing, change.data)) ) { // replace, or set when it expires again
+						_store.remove(change.key);
+						existing= null;
+					}
+					if(null == existing) {
+						_store.put(change.key, change.data, change.timeToLive);
+					}
+				}
+				if('C' != change.type) {
+					sequence= change.sequence;
+				}
+			}
+			_sequence= sequence;
+		}
+		/** Removes the keys that were not part of a bulk copy.
+			@param copied	The keys bulk copied, or null if none were
+			@throws IOException	on io error
+		*/
+		private void _removeAllBut(HashSet<String> copied) throws IOException {
+			for(String key : _store.keys()) {
+				if( (null == copied) || !copied.contains(key) ) {
+					_store.remove(key);
+				}
+			}
+		}
+		/** Reads a data length and the data.
+			@param in	The stream from the leader
+			@return		The data, or null if the length was -1
+			@throws IOException	on io error
+		*/
+		private static byte[] _readData(DataInputStream in) throws IOException {
+			int		length= in.readInt();
+			byte[]	data;
+
+			if(length < 0) {
+				return null;
+			}
+			data= new byte[length];
+			in.readFully(data);
+			return data;
+		}
+		/** The store to apply changes to */
+		private Storage				_store;
+		/** The leader's host */
+		private String				_host;
+		/** The leader's port */
+		private int					_port;
+		/** The epoch of the leader's log */
+		private volatile long		_epoch;
+		/** The last change applied */
+		private volatile long		_sequence;
+		/** Are we shutting down */
+		private volatile boolean	_done;
+		/** The connection to the leader */
+		private volatile Socket		_connection;
+	}
+	/** An entry in the change log.
+	*/
+	private static class _Change {
+		/** @param sequence		The sequence number of the change
+			@param type			P for put, R for remove
+			@param key			The key changed
+			@param timeToLive	The time to live of a put, 0 for never expire
+		*/
+		public _Change(long sequence, int type, String key, long timeToLive) {
+			this.sequence= sequence;
+			this.type= type;
+			this.key= key;
+			this.timeToLive= timeToLive;
+			this.data= null;
+		}
+		/** The sequence number of the change */
+		public long		sequence;
+		/** P for put, R for remove */
+		public int		type;
+		/** The key changed */
+		public String	key;
+		/** The time to live of a put as sent to a Follower, 0 for never expire */
+		public long		timeToLive;
+		/** The value of a put, only used by the Follower */
+		public byte[]	data;
+	}
+	/** The number of changes sent or applied at a time */
+	private static final int	_kBatchSize= 256;
+	/** How long to wait for changes before sending a heartbeat */
+	private static final int	_kHeartbeatInMilliseconds= 1000;
+	/** How long a Follower waits before reconnecting */
+	private static final int	_kReconnectInMilliseconds= 1000;
+	/** The store being replicated */
+	private Storage				_store;
+	/** The number of changes to keep */
+	private int					_maxLog;
+	/** The recent changes, oldest first */
+	private ArrayList<_Change>	_log;
+	/** Identifies this log */
+	private long				_epoch;
+	/** The sequence number of the latest change */
+	private long				_sequence;
+	/** The sequence number of the first change in _log */
+	private long				_firstSequence;
+
+	/** Adds a change to the log, trimming the log if needed, and wakes up any waiting followers.
+		<br>Precondition: must hold the lock on this
+		@param change	The change to add
+	*/
+	private void _append(_Change change) {
+		_sequence= change.sequence;
+		_log.add(change);
+		if(_log.size() > _maxLog) {
+			int	excess= _log.size() - _maxLog / 2; // trim in bulk so trimming is not per change
+
+			_log.subList(0, excess).clear();
+			_firstSequence+= excess;
+		}
+		notifyAll();
+	}
+	/** Gets the changes after a given sequence number, waiting for some if there are none.
+		@param sequence					The last change already sent
+		@param max						The maximum number of changes to return
+		@param timeoutInMilliseconds	How long to wait for a change
+		@return		The changes, empty if none came before the timeout, or null if sequence is no longer in the log
+	*/
+	private synchronized ArrayList<_Change> _changesAfter(long sequence, int max, long timeoutInMilliseconds) {
+		int	start;
+
+		if(sequence == _sequence) {
+			try	{
+				wait(timeoutInMilliseconds);
+			} catch(InterruptedException e) {
+			}
+		}
+		if(sequence + 1 < _firstSequence) {
+			return null;
+		}
+		start= (int)(sequence + 1 - _firstSequence);
+		return new ArrayList<_Change>(_log.subList(start, Math.min(_log.size(), start + max)));
+	}
+	/** Sends a put or remove frame.
+		@param out		The stream to the Follower
+		@param change	The change to send
+		@throws IOException	on io error
+	*/
+	private void _send(DataOutputStream out, _Change change) throws IOException {
+		out.writeByte(change.type);
+		out.writeLong(change.sequence);
+		out.writeUTF(change.key);
+		if('P' == change.type) {
+			long	timeToLive= _timeToLive(change.key);
+			byte[]	data= (timeToLive < 0) ? null : _store.get(change.key);
+
+			out.writeLong(Math.max(0, timeToLive));
+			if(null == data) {
+				out.writeInt(-1); // removed or expired since, a remove is later in the log or the follower expires it
+			} else {
+				out.writeInt(data.length);
+				out.write(data);
+			}
+		}
+	}
+	/** Sends every key and value, followed by the sequence the copy is current to.
+		Changes made during the copy are sent after it, so they may be sent twice.
+		@param out		The stream to the Follower
+		@return			The sequence the copy is current to
+		@throws IOException	on io error
+	*/
+	private long _bulkCopy(DataOutputStream out) throws IOException {
+		long	sequence= sequence();
+
+		for(String key : _store.keys()) {
+			long	timeToLive= _timeToLive(key);
+			byte[]	data= (timeToLive < 0) ? null : _store.get(key);
+
+			if(null != data) {
+				out.writeByte('C');
+				out.writeUTF(key);
+				out.writeLong(timeToLive);
+				out.writeInt(data.length);
+				out.write(data);
+			}
+		}
+		out.writeByte('S');
+		out.writeLong(_epoch);
+		out.writeLong(sequence);
+		out.flush();
+		return sequence;
+	}
+	/** Gets how long a key has left to live, read before its value so a value is not sent without its expiration.
+		@param key	The key to send
+		@return		The milliseconds until the key expires, 0 if it never expires, -1 if it has expired
+		@throws IOException	on io error
+	*/
+	private long _timeToLive(String key) throws IOException {
+		long	expires= _store.expires(key);
+		long	timeToLive= expires - System.currentTimeMillis();
+
+		if(0 == expires) {
+			return 0;
+		}
+		return (timeToLive > 0) ? timeToLive : -1;
+	}
+	/** Test.
+		Replicates one storage file to another over loopback.
+		@param args	The leader storage file, the follower storage file, the port to use
+	*/
+	public static void main(String... args) {
+		try	{
+			ReplicatedStorage	leader= new ReplicatedStorage(new StorageFile(new File(args[0])), 1000);
+			StorageFile			followerStore= new StorageFile(new File(args[1]));
+			SocketServer		server= new SocketServer(Integer.parseInt(args[2]), leader);
+			Follower			follower;
+
+			leader.put("before", "bulk copied".getBytes());
+			leader.put("copied expiring", "bulk copied".getBytes(), 60000);
+			followerStore.put("streamed expiring", "same".getBytes()); // same value, but has to start expiring
+			followerStore.put("stale", "should be removed".getBytes());
+			follower= new Follower(followerStore, "localhost", server.port());
+			leader.put("after", "streamed".getBytes());
+			leader.put("streamed expiring", "same".getBytes(), 60000);
+			leader.put("removed", "streamed then removed".getBytes());
+			leader.remove("removed");
+			while(follower.sequence() < leader.sequence()) {
+				Thread.sleep(10);
+			}
+			if(!"bulk copied".equals(new String(followerStore.get("before")))) {
+				System.err.println("before was not copied");
+			}
+			if(!"streamed".equals(new String(followerStore.get("after")))) {
+				System.err.println("after was not streamed");
+			}
+			if(followerStore.has("removed") || followerStore.has("stale")) {
+				System.err.println("follower has keys it should not");
+			}
+			for(String key : new String[] {"copied expiring", "streamed expiring"}) {
+				if(Math.abs(followerStore.expires(key) - leader.expires(key)) > 1000) {
+					System.err.println(key+" expires at "+followerStore.expires(key)+" not "+leader.expires(key));
+				}
+			}
+			follower.terminate();
+			leader.remove("before");
+			leader.remove("after");
+			leader.remove("copied expiring");
+			leader.remove("streamed expiring");
+			System.exit(0); // the leader is tailing the log for the follower
+		} catch(Exception exception) {
+			exception.printStackTrace();
+		}
+	}
+}
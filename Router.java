@@ -0,0 +1,422 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/** Dispatches http requests to handlers by method and path, so several handlers can share one HTTPServer.
+	Patterns are compiled into a trie of path segments. A request walks its path once,
+	without regular expressions or splitting, no matter how many routes there are.<ul>
+		<li><code>/keys/get</code>	Literal segments match exactly (case sensitive)
+		<li><code>/user/{name}</code>	A parameter matches any one non-empty segment. The URL decoded segment is passed in the header <code>{name}</code>
+		<li><code>/static/*</code>	A wildcard (the last segment) matches the rest of the path, even if empty. It is passed undecoded in the header <code>*</code>
+	</ul>
+	Literals are tried before parameters, and parameters before wildcards. The method is checked once the path has matched.
+	Header names cannot contain braces or *, so parameters do not collide with request headers.
+	<p>mount() hands everything under a prefix to a handler as if it were the root of the server:
+	PATH is replaced with the rest of the path (starting with /) and the prefix is added to MOUNT-PATH.
+	KeyStoreServer, Webdav or another Router can be mounted without knowing where.
+	<p>The pattern that matched is passed to HTTPServer.route(), so an AccessLog counts requests by pattern rather than by path.
+	<p>A path that matches no route is answered with 404. A path that matches only with other methods is answered with 405 and an Allow header.
+	<p>Add the routes before the server starts, requests read the trie without locking.
+*/
+public class Router implements HTTPServer.Handler {
+	/** A router with no routes.
+	*/
+	public Router() {
+		_root= new _Node();
+	}
+	/** Routes requests to a handler.
+		@param method	The http method (ie GET), or null for any method
+		@param pattern	The path pattern (ie /user/{name}/*), starting with /
+		@param handler	The handler for requests that match
+		@return			this, to add more routes
+		@throws IllegalArgumentException	If the pattern does not start with /, a wildcard is not the last segment,
+											or the method and pattern already have a handler
+	*/
+	public Router add(String method, String pattern, HTTPServer.Handler handler) {
+		_add(method, pattern, handler, false);
+		return this;
+	}
+	/** Routes every request under a prefix to a handler, with the prefix removed from PATH.
+		@param prefix	The path the handler is mounted at (ie /store), "/" mounts at the root
+		@param handler	The handler for /prefix and everything under /prefix/
+		@return			this, to add more routes
+		@throws IllegalArgumentException	If the prefix does not start with / or already has a handler
+	*/
+	public Router mount(String prefix, HTTPServer.Handler handler) {
+		String	base= prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+
+		if(base.length() > 0) {
+			_add(null, base, handler, true);
+		}
+		_add(null, base+"/*", handler, true);
+		return this;
+	}
+	/** Gets a path parameter of the route that matched.
+		@param headers	The request headers passed to the handler
+		@param name		The parameter name in the pattern, without the braces, or * for the wildcard
+		@return			The value from the path, or null if the route has no such parameter
+	*/
+	public static String parameter(HTTPServer.KeyValuesMap headers, String name) {
+		return headers.firstValue(name.equals("*") ? name : "{"+name+"}", null);
+	}
+	/** Passes the request to the handler whose route matches.
+		@param in		The request body
+		@param out		The output
+		@param headers	The request headers, with PATH and METHOD
+		@param query	The query value
+		@param cookies	Any cookies that were sent
+		@return			The handler's result, true if there was no handler
+	*/
+	public boolean handle(InputStream in, OutputStream out, HTTPServer.KeyValuesMap headers, HTTPServer.KeyValuesMap query, HTTPServer.CookieJar cookies) throws IOException {
+		String		path= headers.firstValue("PATH", "/");
+		_Match		match= new _Match();
+		_Routes		routes= path.startsWith("/") ? _match(_root, path, 1, match) : null;
+		_Route		route;
+
+		if(null == routes) {
+			HTTPServer.Response	response= new HTTPServer.Response(out, 404, "Not Found");
+
+			response.header("Content-Type", "text/plain").header("Content-Length", _kNotFound.length).keepAlive(headers).send(_kNotFound);
+			return true;
+		}
+		route= routes.get(headers.firstValue("METHOD", "GET"));
+		if(null == route) {
+			HTTPServer.Response	response= new HTTPServer.Response(out, 405, "Method Not Allowed");
+
+			response.header("Allow", routes.allow()).header("Content-Length", 0).keepAlive(headers).send();
+			return true;
+		}
+		HTTPServer.route(headers, route.pattern);
+		for(int index= 0; index < route.parameters.length; ++index) {
+			headers.put("{"+route.parameters[index]+"}", HTTPServer.urlDecode(match.values.get(index)));
+		}
+		if(route.mount) {
+			String	rest= (match.rest < 0) ? "" : path.substring(match.rest);
+			String	prefix= (match.rest < 0) ? path : path.substring(0, match.rest - 1);
+
+			prefix= headers.firstValue("MOUNT-PATH", "")+prefix; // mounted in a mounted Router
+			headers.remove("MOUNT-PATH");
+			headers.put("MOUNT-PATH", prefix);
+			headers.remove("PATH");
+			headers.put("PATH", "/"+rest);
+		} else if(match.rest >= 0) {
+			headers.put("*", path.substring(match.rest));
+		}
+		return route.handler.handle(in, out, headers, query, cookies);
+	}
+	/** Handles logging exceptions
+		@param exception	The exception to log
+	*/
+	public void log(Exception exception) {
+		exception.printStackTrace();
+		log(0, exception.toString());
+	}
+	/** Logs messages.
+		@param level	0 = vital to display 100 = trivial to display
+		@param message	The message to handle
+	*/
+	public void log(int level, String message) {
+		System.err.println("LOG "+level+": "+message);
+	}
+	/** The body of 404 responses */
+	private static final byte[]	_kNotFound= "Not Found\r\n".getBytes();
+	/** The routes, the root is the first segment after the leading / */
+	private _Node	_root;
+
+	/** The handlers for one pattern, by method.
+	*/
+	private static class _Routes {
+		/** Gets the route for a method.
+			@param method	The request method
+			@return			The route for the method, the route for any method, or null
+		*/
+		public _Route get(String method) {
+			_Route	route= (null == _methods) ? null : _methods.get(method);
+
+			return (null == route) ? _any : route;
+		}
+		/** Adds a route.
+			@param method	The method, or null for any method
+			@param route	The route for the method
+			@return			false if the method already has a route
+		*/
+		public boolean add(String method, _Route route) {
+			if(null == method) {
+				if(null != _any) {
+					return false;
+				}
+				_any= route;
+				return true;
+			}
+			if(null == _methods) {
+				_methods= new HashMap<String, _Route>();
+			}
+			if(_methods.containsKey(method)) {
+				return false;
+			}
+			_methods.put(method, route);
+			_allow= (null == _allow) ? method : _allow+", "+method;
+			return true;
+		}
+		/** The methods with routes, for the Allow header.
+			@return	The methods, comma separated
+		*/
+		public String allow() {
+			return _allow;
+		}
+		/** The routes for specific methods, or null if there are none */
+		private HashMap<String, _Route>	_methods;
+		/** The route for any method, or null */
+		private _Route					_any;
+		/** The keys of _methods, comma separated, in the order they were added */
+		private String					_allow;
+	}
+	/** A handler and how to call it.
+	*/
+	private static class _Route {
+		/**
+			@param h	The handler
+			@param r	The pattern, for HTTPServer.route()
+			@param p	The parameter names in the pattern, in order
+			@param m	Was the handler mounted
+		*/
+		public _Route(HTTPServer.Handler h, String r, String[] p, boolean m) {
+			handler= h;
+			pattern= r;
+			parameters= p;
+			mount= m;
+		}
+		/** The handler */
+		public HTTPServer.Handler	handler;
+		/** The pattern that was added (prefix/* for a mount) */
+		public String				pattern;
+		/** The names of the parameter segments, in order */
+		public String[]				parameters;
+		/** true if the handler gets the path below its prefix */
+		public boolean				mount;
+	}
+	/** A segment of the path in the trie.
+	*/
+	private static class _Node {
+		/** The next segments that are literals, or null if none */
+		public HashMap<String, _Node>	literals;
+		/** The next segment if it is a parameter, or null */
+		public _Node					parameter;
+		/** The routes that end with a wildcard after this segment, or null */
+		public _Routes					wildcard;
+		/** The routes that end at this segment, or null */
+		public _Routes					routes;
+	}
+	/** The parts of the path matched by parameters and the wildcard.
+	*/
+	private static class _Match {
+		/** The parameter segments, in order */
+		public ArrayList<String>	values= new ArrayList<String>();
+		/** The offset in the path that the wildcard matched, -1 if there was no wildcard */
+		public int					rest= -1;
+	}
+	/** Adds a route to the trie.
+		@param method	The method, or null for any
+		@param pattern	The path pattern
+		@param handler	The handler
+		@param mount	Does the handler get the path below the wildcard
+		@throws IllegalArgumentException	If the pattern is not valid or already has a handler for the method
+	*/
+	private synchronized void _add(String method, String pattern, HTTPServer.Handler handler, boolean mount) {
+		ArrayList<String>	parameters= new ArrayList<String>();
+		_Node				node= _root;
+		_Routes				routes;
+		int					start= 1;
+
+		if(!pattern.startsWith("/")) {
+			throw new IllegalArgumentException("Pattern does not start with /: "+pattern);
+		}
+		while(true) {
+			int		end= pattern.indexOf('/', start);
+			String	segment= pattern.substring(start, (end < 0) ? pattern.length() : end);
+
+			if(segment.equals("*")) {
+				if(end >= 0) {
+					throw new IllegalArgumentException("* is not the last segment: "+pattern);
+				}
+				if(null == node.wildcard) {
+					node.wildcard= new _Routes();
+				}
+				routes= node.wildcard;
+				break;
+			}
+			if(segment.startsWith("{") && segment.endsWith("}") && (segment.length() > 2)) {
+				parameters.add(segment.substring(1, segment.length() - 1));
+				if(null == node.parameter) {
+					node.parameter= new _Node();
+				}
+				node= node.parameter;
+			} else {
+				_Node	next= (null == node.literals) ? null : node.literals.get(segment);
+
+				if(null == next) {
+					next= new _Node();
+					if(null == node.literals) {
+						node.literals= new HashMap<String, _Node>();
+					}
+					node.literals.put(segment, next);
+				}
+				node= next;
+			}
+			if(end < 0) {
+				if(null == node.routes) {
+					node.routes= new _Routes();
+				}
+				routes= node.routes;
+				break;
+			}
+			start= end + 1;
+		}
+		if(!routes.add(method, new _Route(handler, (mount && !pattern.endsWith("/*")) ? pattern+"/*" : pattern,
+											parameters.toArray(new String[parameters.size()]), mount))) {
+			throw new IllegalArgumentException("Already routed: "+((null == method) ? "" : method+" ")+pattern);
+		}
+	}
+	/** Finds the routes for the rest of a path.
+		Backs up to try a parameter or wildcard when a literal segment matches but nothing after it does.
+		@param node		The trie node for the segment at <code>start</code>
+		@param path		The request path
+		@param start	The offset of the segment in <code>path</code>, just after a /
+		@param match	Collects the parameter values and the wildcard offset
+		@return			The routes for the path, or null if no pattern matches
+	*/
+	private static _Routes _match(_Node node, String path, int start, _Match match) {
+		int		end= path.indexOf('/', start);
+		int		segmentEnd= (end < 0) ? path.length() : end;
+		_Routes	found= null;
+
+		if(null != node.literals) {
+			_Node	next= node.literals.get(path.substring(start, segmentEnd));
+
+			if(null != next) {
+				found= (end < 0) ? next.routes : _match(next, path, end + 1, match);
+			}
+		}
+		if( (null == found) && (null != node.parameter) && (segmentEnd > start) ) {
+			match.values.add(path.substring(start, segmentEnd));
+			found= (end < 0) ? node.parameter.routes : _match(node.parameter, path, end + 1, match);
+			if(null == found) {
+				match.values.remove(match.values.size() - 1);
+			}
+		}
+		if( (null == found) && (null != node.wildcard) ) {
+			match.rest= start;
+			found= node.wildcard;
+		}
+		return found;
+	}
+
+	/** Test.
+		With no arguments, checks the routing.
+		With a port and a storage location, serves KeyStoreServer at /store and a greeting at /hello/{name}.
+		@param args	Nothing, or the port and the file or directory to store in
+	*/
+	public static void main(String... args) {
+		try	{
+			final ArrayList<String>	calls= new ArrayList<String>();
+			Router					router= new Router();
+			HTTPServer.Handler		hello= new HTTPServer.Handler() {
+				public boolean handle(InputStream in, OutputStream out, HTTPServer.KeyValuesMap headers, HTTPServer.KeyValuesMap query, HTTPServer.CookieJar cookies) throws IOException {
+					byte[]	body= ("Hello "+parameter(headers, "name")+"\r\n").getBytes("UTF-8");
+
+					calls.add("hello "+parameter(headers, "name"));
+					new HTTPServer.Response(out, 200, "OK").header("Content-Type", "text/plain; charset=utf-8")
+						.header("Content-Length", body.length).keepAlive(headers).send(body);
+					return true;
+				}
+				public void log(Exception exception) {
+					exception.printStackTrace();
+				}
+				public void log(int level, String message) {
+					System.err.println("LOG "+level+": "+message);
+				}
+			};
+
+			router.add("GET", "/hello/{name}", hello);
+			if(args.length > 1) {
+				File	location= new File(args[1]);
+				Storage	store= location.isDirectory() ? new StorageDirectory(location) : new StorageFile(location);
+
+				router.mount("/store", new KeyStoreServer(store));
+				new SocketServer(Integer.parseInt(args[0]), new HTTPServer(router), null, null);
+				return;
+			}
+			HTTPServer.Handler	record= new HTTPServer.Handler() {
+				public boolean handle(InputStream in, OutputStream out, HTTPServer.KeyValuesMap headers, HTTPServer.KeyValuesMap query, HTTPServer.CookieJar cookies) throws IOException {
+					calls.add(headers.firstValue("METHOD", "")+" "+headers.firstValue("MOUNT-PATH", "")+" "+headers.firstValue("PATH", "")
+								+" "+parameter(headers, "id")+" "+parameter(headers, "*"));
+					return true;
+				}
+				public void log(Exception exception) {
+				}
+				public void log(int level, String message) {
+				}
+			};
+			Router	inner= new Router().add("GET", "/item/{id}", record);
+			String[][]	tests= {
+				{"GET", "/hello/World", "hello World"},
+				{"GET", "/hello/J%20Doe", "hello J Doe"},
+				{"GET", "/user/7", "GET  /user/7 7 null"},
+				{"PUT", "/user/7", "PUT  /user/7 7 null"},
+				{"GET", "/user/me", "GET  /user/me null null"},
+				{"GET", "/user/7/files/a/b", "GET  /user/7/files/a/b 7 a/b"},
+				{"GET", "/user/7/files/", "GET  /user/7/files/ 7 "},
+				{"GET", "/store", "GET /store / null null"},
+				{"GET", "/store/key/a/b", "GET /store /key/a/b null null"},
+				{"GET", "/nest/deeper/item/3", "GET /nest/deeper /item/3 3 null"},
+				{"GET", "/", "GET  / null null"},
+				{"GET", "/user", "404"},
+				{"GET", "/user/", "404"},
+				{"DELETE", "/user/me", "405 GET"},
+				{"GET", "/storefront", "404"},
+				{"GET", "nothing", "404"},
+			};
+
+			router.add(null, "/user/{id}", record).add("GET", "/user/me", record).add("GET", "/user/{id}/files/*", record);
+			router.add("GET", "/", record).mount("/store/", record).mount("/nest", new Router().mount("/deeper", inner));
+			try	{
+				router.add("GET", "/user/{name}/files/*", record);
+				System.err.println("Duplicate route was accepted");
+			} catch(IllegalArgumentException exception) {
+			}
+			try	{
+				router.add("GET", "/a/*/b", record);
+				System.err.println("Wildcard in the middle was accepted");
+			} catch(IllegalArgumentException exception) {
+			}
+			for(String[] test : tests) {
+				HTTPServer.KeyValuesMap	headers= new HTTPServer.KeyValuesMap();
+				ByteArrayOutputStream	out= new ByteArrayOutputStream();
+				String					result;
+				String					response;
+
+				headers.put("METHOD", test[0]);
+				headers.put("PATH", test[1]);
+				calls.clear();
+				router.handle(null, out, headers, new HTTPServer.KeyValuesMap(), new HTTPServer.CookieJar());
+				response= new String(out.toByteArray(), "UTF-8");
+				if(response.startsWith("HTTP/1.1 404")) {
+					result= "404";
+				} else if(response.startsWith("HTTP/1.1 405")) {
+					result= "405 "+response.replaceAll("(?s).*Allow:\t([^\r]*).*", "$1");
+				} else {
+					result= calls.isEmpty() ? "" : calls.get(0);
+				}
+				if(!result.equals(test[2])) {
+					System.err.println(test[0]+" "+test[1]+": expected '"+test[2]+"' got '"+result+"'");
+				}
+			}
+		} catch(IOException exception) {
+			exception.printStackTrace();
+		}
+	}
+}
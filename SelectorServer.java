@@ -0,0 +1,740 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+
+/** Non-blocking, Selector based socket server.
+	One thread accepts connections and hands them to a fixed number of event loop threads.
+	Each event loop waits on many connections with a Selector, so an idle connection does not use a thread.
+	Use this instead of SocketServer when there are many (ie tens of thousands) of mostly idle connections.
+	<p>Handler methods are called on the event loop thread of the connection, and must not block.
+	Connection.write() and Connection.close() may be called from any thread (ie when an AsyncStorage Future is done).
+	While a connection has data waiting to be written, no more is read from it.
+	<p>Given an SSLContext (see TLS.context()) every connection is served over TLS with an SSLEngine.
+	The Handler only sees decrypted data, and data written before the handshake finishes is sent once it has.
+	Handshake tasks (the public key operations) run on the event loop.
+	@see SocketServer
+*/
+public class SelectorServer extends Thread {
+	/** The interface to handle non-blocking connections.
+	*/
+	public interface Handler {
+		/** A connection was accepted.
+			@param connection	The new connection
+			@throws IOException	To close the connection
+		*/
+		public void opened(Connection connection) throws IOException;
+		/** Data arrived on a connection.
+			Data that is not consumed (ie a partial request) is kept and passed again, with more data, when it arrives.
+			@param connection	The connection the data arrived on
+			@param data			The data, ready to get from. Only valid during the call.
+			@throws IOException	To close the connection
+		*/
+		public void received(Connection connection, ByteBuffer data) throws IOException;
+		/** A connection was closed, by either side.
+			@param connection	The connection that was closed
+		*/
+		public void closed(Connection connection);
+		/** How to handle logging of events.
+			@param level	0 = vital information, 100 = trivial information
+			@param message	The message to log
+		*/
+		public void log(int level, String message);
+		/** Log that an exception occurred.
+			@param exception	The exception the occurred.
+		*/
+		public void log(Exception exception);
+	}
+	/** A connection being served by an event loop.
+	*/
+	public class Connection {
+		/** The server the connection was made to.
+			@return	The server
+		*/
+		public SelectorServer server() {
+			return SelectorServer.this;
+		}
+		/** The connection.
+			@return	The socket of the connection
+		*/
+		public Socket socket() {
+			return _channel.socket();
+		}
+		/** Gets the handler's state for the connection.
+			@return	The object last passed to attach(), or null
+		*/
+		public Object attachment() {
+			return _attachment;
+		}
+		/** Sets the handler's state for the connection.
+			@param attachment	Anything the handler wants to keep with the connection
+		*/
+		public void attach(Object attachment) {
+			_attachment= attachment;
+		}
+		/** Sends data.
+			As much as can be sent without blocking is sent now, the rest is sent by the event loop when the socket is ready.
+			@param data	The data to send, must not be modified until it is sent
+			@throws IOException	If the connection is closed or on io error
+		*/
+		public synchronized void write(ByteBuffer data) throws IOException {
+			if(_closing) {
+				throw new IOException("Connection closed");
+			}
+			if(null != _engine) {
+				if(null != _unsent) { // still handshaking
+					_unsent.add(data);
+				} else {
+					_wrap(data);
+				}
+				return;
+			}
+			_pending.add(data);
+			if(_pending.size() == 1) {
+				_flush();
+			} // otherwise the event loop is already waiting to write
+		}
+		/** Sends data.
+			@param data	The data to send, must not be modified until it is sent
+			@throws IOException	If the connection is closed or on io error
+		*/
+		public void write(byte[] data) throws IOException {
+			write(ByteBuffer.wrap(data));
+		}
+		/** Closes the connection once everything written so far has been sent.
+		*/
+		public synchronized void close() {
+			if( (null != _engine) && !_closing) {
+				_engine.closeOutbound();
+				try	{
+					_wrap(ByteBuffer.allocate(0)); // close_notify
+				} catch(IOException exception) {
+					_log(100, exception.toString()+" on "+socket());
+				}
+			}
+			_closing= true;
+			if(_pending.isEmpty()) {
+				_loop.execute(new Runnable() {
+					public void run() {
+						_close();
+					}
+				});
+			}
+		}
+		/** Is the connection still open.
+			@return	false once close() has been called or the other side closed the connection
+		*/
+		public boolean isOpen() {
+			return !_closing;
+		}
+		/** @param channel	The accepted connection
+			@param loop		The event loop to serve it on
+		*/
+		private Connection(SocketChannel channel, _Loop loop, SSLEngine engine) {
+			_channel= channel;
+			_loop= loop;
+			_engine= engine;
+			_unsent= (null == engine) ? null : new LinkedList<ByteBuffer>();
+			_handshakeStarted= System.currentTimeMillis();
+			_handshakeStartedNanoseconds= System.nanoTime();
+			_pending= new LinkedList<ByteBuffer>();
+			_closing= false;
+			_closed= false;
+		}
+		/** Writes pending data without blocking, and waits for the socket to be writable if there is more.
+			@throws IOException	On io error
+		*/
+		private synchronized void _flush() throws IOException {
+			while(!_pending.isEmpty()) {
+				ByteBuffer	data= _pending.getFirst();
+
+				_channel.write(data);
+				if(data.hasRemaining()) {
+					_loop.interest(this, SelectionKey.OP_WRITE); // stop reading until this is sent
+					return;
+				}
+				_pending.removeFirst();
+			}
+			if(_closing) {
+				_loop.execute(new Runnable() {
+					public void run() {
+						_close();
+					}
+				});
+			} else {
+				_loop.interest(this, SelectionKey.OP_READ);
+			}
+		}
+		/** Encrypts data (or handshake or close messages) and sends it.
+			@param data	The data to send, may be empty
+			@throws IOException	On io error, or a TLS error
+		*/
+		private synchronized void _wrap(ByteBuffer data) throws IOException {
+			boolean	waiting= !_pending.isEmpty();
+
+			do	{
+				ByteBuffer		packet= ByteBuffer.allocate(_engine.getSession().getPacketBufferSize());
+				SSLEngineResult	result= _engine.wrap(data, packet);
+
+				if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					throw new SSLException("Packet larger than the session packet size");
+				}
+				packet.flip();
+				if(packet.hasRemaining()) {
+					_pending.add(packet);
+				}
+				_handshook(result);
+				if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					break;
+				}
+			} while(data.hasRemaining() || (_engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP));
+			if(!waiting && !_pending.isEmpty()) {
+				_flush();
+			} // otherwise the event loop is already waiting to write
+		}
+		/** Follows up on a wrap or unwrap: runs handshake tasks, and sends what was written during the handshake once it is done.
+			@param result	The result of the wrap or unwrap
+			@return			true if handshake tasks were run
+			@throws IOException	On io error, or a TLS error
+		*/
+		private synchronized boolean _handshook(SSLEngineResult result) throws IOException {
+			boolean	ranTasks= false;
+
+			if(result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				for(Runnable task= _engine.getDelegatedTask(); null != task; task= _engine.getDelegatedTask()) {
+					task.run();
+				}
+				ranTasks= true;
+			}
+			if( (result.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.FINISHED) && (null != _unsent) ) {
+				LinkedList<ByteBuffer>	unsent= _unsent;
+
+				_unsent= null;
+				_handshakes.record(_handshakeStarted, System.nanoTime() - _handshakeStartedNanoseconds, _engine.getSession());
+				for(ByteBuffer data : unsent) {
+					_wrap(data);
+				}
+			}
+			return ranTasks;
+		}
+		/** Closes the channel and tells the handler. Only called on the event loop.
+		*/
+		private void _close() {
+			if(_closed) {
+				return;
+			}
+			_closed= true;
+			_closing= true;
+			if( (null != _engine) && (null != _unsent) ) {
+				_handshakes.recordFailure();
+			}
+			if(null != _key) {
+				_key.cancel();
+			}
+			try	{
+				_channel.close();
+			} catch(IOException exception) {
+				_log(exception);
+			}
+			_connections.decrementAndGet();
+			try	{
+				_instance.closed(this);
+			} catch(RuntimeException exception) {
+				_log(exception);
+			}
+		}
+		/** The socket */
+		private SocketChannel			_channel;
+		/** The event loop serving the socket */
+		private _Loop					_loop;
+		/** The registration of _channel with the event loop's Selector */
+		private SelectionKey			_key;
+		/** Data received that the handler did not consume yet, ready to put more in. null if there is none. */
+		private ByteBuffer				_partial;
+		/** Data waiting to be sent (encrypted, for TLS) */
+		private LinkedList<ByteBuffer>	_pending;
+		/** The TLS state of the connection, or null for a plain connection */
+		private SSLEngine				_engine;
+		/** Data written before the TLS handshake finished, null once it has */
+		private LinkedList<ByteBuffer>	_unsent;
+		/** Received TLS data that is not a whole record yet, ready to put more in. null if there is none. */
+		private ByteBuffer				_partialPacket;
+		/** System.currentTimeMillis() when the connection was accepted */
+		private long					_handshakeStarted;
+		/** System.nanoTime() when the connection was accepted */
+		private long					_handshakeStartedNanoseconds;
+		/** The handler's state */
+		private volatile Object			_attachment;
+		/** Has close() been called, or the connection closed */
+		private volatile boolean		_closing;
+		/** Has the channel been closed */
+		private boolean					_closed;
+	}
+	/** Listen on a port with an event loop per processor.
+		@param port		The port to listen on
+		@param instance	The object to handle connections.
+		@throws IOException	If the port cannot be listened on
+	*/
+	public SelectorServer(int port, Handler instance) throws IOException {
+		this(port, instance, Runtime.getRuntime().availableProcessors());
+	}
+	/** Listen on a port.
+		@param port		The port to listen on
+		@param instance	The object to handle connections.
+		@param loops	The number of event loop threads
+		@throws IOException	If the port cannot be listened on
+	*/
+	public SelectorServer(int port, Handler instance, int loops) throws IOException {
+		this(port, instance, loops, null);
+	}
+	/** Listen on a port for TLS connections.
+		@param port		The port to listen on
+		@param instance	The object to handle connections, it sees decrypted data.
+		@param loops	The number of event loop threads
+		@param tls		The server's certificate and session cache (ie from TLS.context()), or null for plain connections
+		@throws IOException	If the port cannot be listened on
+	*/
+	public SelectorServer(int port, Handler instance, int loops, SSLContext tls) throws IOException {
+		_done= false;
+		_tls= tls;
+		_handshakes= (null == tls) ? null : new TLS.Handshakes();
+		_instance= instance;
+		_port= port;
+		_connections= new AtomicInteger(0);
+		_listen= ServerSocketChannel.open();
+		_listen.socket().setReuseAddress(true);
+		_listen.socket().bind(new InetSocketAddress(port), _kBacklog);
+		_loops= new _Loop[Math.max(1, loops)];
+		for(int index= 0; index < _loops.length; ++index) {
+			_loops[index]= new _Loop();
+		}
+		_log(100, "Listening on port "+_port+" with "+_loops.length+" event loops");
+		start();
+	}
+	/** The port we are listening on.
+		@return	The port we are listening on
+	*/
+	public int port() {
+		return _port;
+	}
+	/** The number of open connections.
+		@return	The number of connections that have been accepted and not closed
+	*/
+	public int connections() {
+		return _connections.get();
+	}
+	/** Handshake counts and timing.
+		@return	The handshakes so far, or null if the server is not serving TLS
+	*/
+	public TLS.Handshakes handshakes() {
+		return _handshakes;
+	}
+	/** Requests the server to shutdown.
+		Open connections are closed.
+	*/
+	public void terminate() {
+		if(!_done) {
+			_log(100, "Terminating main thread");
+			_done= true;
+			try	{
+				_listen.close();
+			} catch(IOException e) {
+				_log(e);
+			}
+			for(_Loop loop : _loops) {
+				loop.terminate();
+			}
+		}
+	}
+	/** The accept thread.
+		Connections are handed to the event loops in turn.
+	*/
+	public void run() {
+		int	next= 0;
+
+		while(!_done) {
+			SocketChannel	channel= null;
+			SSLEngine		engine;
+
+			try	{
+				channel= _listen.accept();
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+				engine= _engine();
+				_connections.incrementAndGet();
+				_loops[next].add(channel, engine);
+				next= (next + 1) % _loops.length;
+			} catch(IOException exception) {
+				if(!_done) {
+					if(null != channel) {
+						try	{
+							channel.close();
+						} catch(IOException e2) {
+							_log(e2);
+						}
+					}
+					_log(exception);
+				}
+			}
+		}
+		_log(100, "Main server thread shut down, port "+_port);
+	}
+	/** Logs that an exception occurred.
+		@param message	The exception that occurred.
+	*/
+	private void _log(Exception message) {
+		_instance.log(message);
+	}
+	/** Logs a message to the handler.
+		@param level	The message level (0 = critical to report, 100 = trivial to report)
+		@param message	The message to log
+	*/
+	private void _log(int level, String message) {
+		_instance.log(level, message);
+	}
+	/** Makes the TLS state for a new connection.
+		@return	A server mode engine offering http/1.1, or null if the server is not serving TLS
+		@throws IOException	If the handshake cannot be started
+	*/
+	private SSLEngine _engine() throws IOException {
+		SSLEngine	engine;
+
+		if(null == _tls) {
+			return null;
+		}
+		engine= _tls.createSSLEngine();
+		engine.setUseClientMode(false);
+		TLS.applicationProtocols(engine, TLS.kHTTP11);
+		engine.beginHandshake();
+		return engine;
+	}
+	/** An event loop thread, serving many connections with a Selector.
+	*/
+	private class _Loop extends Thread {
+		/** Starts the event loop.
+			@throws IOException	If a Selector cannot be opened
+		*/
+		public _Loop() throws IOException {
+			_selector= Selector.open();
+			_tasks= new ConcurrentLinkedQueue<Runnable>();
+			_readBuffer= ByteBuffer.allocateDirect(_kReadBufferSize);
+			_stop= false;
+			setDaemon(true);
+			start();
+		}
+		/** Serves a new connection on this loop.
+			@param channel	The non-blocking connection
+			@param engine	The TLS state of the connection, or null for a plain connection
+		*/
+		public void add(final SocketChannel channel, final SSLEngine engine) {
+			execute(new Runnable() {
+				public void run() {
+					Connection	connection= new Connection(channel, _Loop.this, engine);
+
+					try	{
+						connection._key= channel.register(_selector, SelectionKey.OP_READ, connection);
+						_instance.opened(connection);
+					} catch(IOException exception) {
+						_log(exception);
+						connection._close();
+					}
+				}
+			});
+		}
+		/** Runs a task on the event loop thread.
+			@param task	The task to run
+		*/
+		public void execute(Runnable task) {
+			if(Thread.currentThread() == this) {
+				task.run();
+			} else {
+				_tasks.add(task);
+				_selector.wakeup();
+			}
+		}
+		/** Changes what the event loop waits for on a connection.
+			@param connection	The connection
+			@param operation	SelectionKey.OP_READ or SelectionKey.OP_WRITE
+		*/
+		public void interest(final Connection connection, final int operation) {
+			execute(new Runnable() {
+				public void run() {
+					if( (null != connection._key) && connection._key.isValid() && (connection._key.interestOps() != operation) ) {
+						connection._key.interestOps(operation);
+					}
+				}
+			});
+		}
+		/** Stops the event loop and closes its connections.
+		*/
+		public void terminate() {
+			_stop= true;
+			_selector.wakeup();
+		}
+		/** The event loop.
+		*/
+		public void run() {
+			while(!_stop) {
+				Runnable	task;
+
+				try	{
+					_selector.select();
+					for(task= _tasks.poll(); null != task; task= _tasks.poll()) {
+						task.run();
+					}
+					for(Iterator<SelectionKey> keys= _selector.selectedKeys().iterator(); keys.hasNext(); ) {
+						SelectionKey	key= keys.next();
+						Connection		connection= (Connection)key.attachment();
+
+						keys.remove();
+						try	{
+							if(key.isValid() && key.isWritable()) {
+								connection._flush();
+							}
+							if(key.isValid() && key.isReadable()) {
+								_read(connection);
+							}
+						} catch(IOException exception) {
+							_log(100, exception.toString()+" on "+connection.socket());
+							connection._close();
+						} catch(RuntimeException exception) {
+							_log(exception);
+							connection._close();
+						}
+					}
+				} catch(IOException exception) {
+					_log(exception);
+				}
+			}
+			for(SelectionKey key : _selector.keys()) {
+				((Connection)key.attachment())._close();
+			}
+			try	{
+				_selector.close();
+			} catch(IOException exception) {
+				_log(exception);
+			}
+		}
+		/** Reads what has arrived on a connection and passes it to the handler.
+			@param connection	The readable connection
+			@throws IOException	On io error, or if the handler leaves too much data unconsumed
+		*/
+		private void _read(Connection connection) throws IOException {
+			ByteBuffer	buffer;
+			int			read;
+
+			if(null != connection._engine) {
+				_readSecure(connection);
+				return;
+			}
+			buffer= connection._partial;
+			if(null == buffer) {
+				buffer= _readBuffer;
+				buffer.clear();
+			}
+			read= connection._channel.read(buffer);
+			if(read < 0) {
+				connection._close();
+				return;
+			}
+			buffer.flip();
+			_instance.received(connection, buffer);
+			connection._partial= _keep(buffer);
+		}
+		/** Reads what has arrived on a TLS connection, and passes what it decrypts to the handler.
+			@param connection	The readable connection
+			@throws IOException	On io error, a TLS error, or if the handler leaves too much data unconsumed
+		*/
+		private void _readSecure(Connection connection) throws IOException {
+			SSLEngine	engine= connection._engine;
+			ByteBuffer	packets= connection._partialPacket;
+			ByteBuffer	data= connection._partial;
+			boolean		closed= false;
+			int			read;
+
+			if(null == packets) {
+				packets= _readBuffer;
+				packets.clear();
+			}
+			if(null == data) {
+				data= _decrypted();
+				data.clear();
+			}
+			read= connection._channel.read(packets);
+			packets.flip();
+			while(true) {
+				SSLEngineResult	result= engine.unwrap(packets, data);
+				boolean			progress= (result.bytesConsumed() > 0) || (result.bytesProduced() > 0);
+
+				if(result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+					ByteBuffer	larger= ByteBuffer.allocate(data.capacity() + engine.getSession().getApplicationBufferSize());
+
+					data.flip();
+					larger.put(data);
+					data= larger;
+					continue;
+				}
+				if(connection._handshook(result)) {
+					progress= true;
+				}
+				if(engine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+					connection._wrap(ByteBuffer.allocate(0));
+					progress= true;
+				}
+				if(result.getStatus() == SSLEngineResult.Status.CLOSED) {
+					closed= true;
+					break;
+				}
+				if( (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) || !packets.hasRemaining() || !progress) {
+					break;
+				}
+			}
+			connection._partialPacket= _keep(packets);
+			data.flip();
+			if(data.hasRemaining()) {
+				_instance.received(connection, data);
+			}
+			connection._partial= _keep(data);
+			if(closed || (read < 0)) {
+				connection._close();
+			}
+		}
+		/** Where decrypted data is put before it is passed to the handler.
+			@return	A buffer shared by the TLS connections on this loop
+		*/
+		private ByteBuffer _decrypted() {
+			if(null == _decryptedBuffer) {
+				_decryptedBuffer= ByteBuffer.allocateDirect(_kReadBufferSize);
+			}
+			return _decryptedBuffer;
+		}
+		/** Keeps the data left in a buffer for the next read.
+			@param buffer	The data, ready to get from
+			@return			null if there is no data left, otherwise a buffer of the connection's own with the data, ready to put more in
+			@throws IOException	If there is too much data left
+		*/
+		private ByteBuffer _keep(ByteBuffer buffer) throws IOException {
+			ByteBuffer	kept;
+
+			if(!buffer.hasRemaining()) {
+				return null;
+			}
+			if( (buffer == _readBuffer) || (buffer == _decryptedBuffer) ) { // the loop's buffers are shared by every connection
+				kept= ByteBuffer.allocate(Math.max(_kMinPartial, 2 * buffer.remaining()));
+				kept.put(buffer);
+				return kept;
+			}
+			buffer.compact();
+			if(!buffer.hasRemaining()) {
+				if(buffer.capacity() >= _kMaxPartial) {
+					throw new IOException("Handler did not consume "+buffer.capacity()+" bytes");
+				}
+				buffer.flip();
+				kept= ByteBuffer.allocate(2 * buffer.capacity());
+				kept.put(buffer);
+				return kept;
+			}
+			return buffer;
+		}
+		/** The Selector for the connections on this loop */
+		private Selector						_selector;
+		/** Tasks from other threads to run on this loop */
+		private ConcurrentLinkedQueue<Runnable>	_tasks;
+		/** Where data is read, shared by the connections of this loop */
+		private ByteBuffer						_readBuffer;
+		/** Where TLS data is decrypted, shared by the connections of this loop, null until needed */
+		private ByteBuffer						_decryptedBuffer;
+		/** Has the loop been asked to stop */
+		private volatile boolean				_stop;
+	}
+	/** The number of connections that may be waiting to be accepted */
+	private static final int		_kBacklog= 1024;
+	/** The size of the read buffer of each event loop */
+	private static final int		_kReadBufferSize= 64 * 1024;
+	/** The smallest buffer to keep unconsumed data in */
+	private static final int		_kMinPartial= 4096;
+	/** The most unconsumed data to keep for a connection */
+	private static final int		_kMaxPartial= 1024 * 1024;
+	/** The port we are listening on */
+	private int						_port;
+	/** The socket we are listening on */
+	private ServerSocketChannel		_listen;
+	/** The connection handler */
+	private Handler					_instance;
+	/** The event loops */
+	private _Loop[]					_loops;
+	/** The number of open connections */
+	private AtomicInteger			_connections;
+	/** The server's certificate and session cache, or null if not serving TLS */
+	private SSLContext				_tls;
+	/** The handshakes of TLS connections, null if not serving TLS */
+	private TLS.Handshakes			_handshakes;
+	/** Are we shutting down */
+	private volatile boolean		_done;
+
+	/** Test class that echos anything sent to it.
+	*/
+	private static class Echo implements Handler {
+		/** New Echo handler.
+		*/
+		public Echo() {
+			System.out.println("Connect and send the letter 'd' and the server will shut down");
+		}
+		public void opened(Connection connection) {
+			log(100, "Opened "+connection.socket()+", "+connection.server().connections()+" open");
+		}
+		/** Echos back everything being sent to it.
+			To quit, send the letter 'd'.
+		*/
+		public void received(Connection connection, ByteBuffer data) throws IOException {
+			byte[]	copy= new byte[data.remaining()];
+
+			data.get(copy);
+			connection.write(copy);
+			for(byte b : copy) {
+				if(b == 'd') {
+					connection.server().terminate();
+				}
+			}
+		}
+		public void closed(Connection connection) {
+			TLS.Handshakes	handshakes= connection.server().handshakes();
+
+			log(100, "Closed "+connection.socket()+( (null == handshakes) ? "" : " "+handshakes));
+		}
+		public void log(Exception exception) {
+			exception.printStackTrace();
+			log(0, exception.toString());
+		}
+		public void log(int level, String message) {
+			System.err.println("LOG "+level+": "+message);
+		}
+	}
+	/** Test.
+		Creates an echo server on port specified by 1st argument passed on command line.
+		If there are 2nd and 3rd arguments, they are a keystore and its password, and the server uses TLS.
+		To kill the server, send it the letter 'd'.
+	*/
+	public static void main(String... args) {
+		try	{
+			SSLContext	tls= (args.length > 2) ? TLS.context(new File(args[1]), args[2].toCharArray()) : null;
+
+			new SelectorServer(Integer.parseInt(args[0]), new Echo(), 2, tls);
+		} catch(IOException exception) {
+			System.err.println(exception);
+		}
+	}
+}
@@ -1,16 +1,32 @@
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.ByteArrayOutputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.ServerSocket;
-import java.util.Vector;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLServerSocket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /** Multithreaded, socket based server.
-	<p><b>TODO</b>
-	<ul>
-		<li>Add a constructor that takes expectedConcurrentConnections (current constructor passes _kAverageWorkerThreads)
-	</ul>
+	Each connection has its own thread for as long as it is open, see SelectorServer for many mostly idle connections.
+	Connections can be handled by pooled Worker threads (unbounded), by a bounded pool with an Overload policy,
+	or by any ExecutorService (ie virtualThreadExecutor()).
+	Given an SSLContext (see TLS.context()) every connection is served over TLS,
+	the handshake is done on the connection's thread before it is handed to the Handler.
 */
 public class SocketServer extends Thread {
 	/** The interface to handle a connection.
@@ -24,15 +40,39 @@ public class SocketServer extends Thread {
 		*/
 		public void handle(SocketServer server, Socket connection) throws IOException;
 		/** How to handle logging of events.
+			Called from many threads at once, without any lock held.
+			Only messages at or below the server's logLevel() are built and passed here.
 			@param level	0 = vital information, 100 = trivial information
 			@param message	The message to log
 		*/
 		public void log(int level, String message);
 		/** Log that an exception occurred.
+			Called from many threads at once, without any lock held.
 			@param exception	The exception the occurred.
 		*/
 		public void log(Exception exception);
 	}
+	/** What to do with a connection when every worker is busy and the queue of waiting connections is full.
+	*/
+	public enum Overload {
+		/** Close the connection without a response */
+		CLOSE,
+		/** Stop accepting until there is room in the queue, connections wait in the operating system's backlog */
+		DELAY,
+		/** Let the Handler answer (ie HTTP 503) if it implements Overloaded, then close the connection (TLS connections are just closed) */
+		RESPOND
+	}
+	/** A Handler that can tell a client the server is too busy.
+	*/
+	public interface Overloaded {
+		/** Called on the accept thread when a connection is rejected, so it must be quick.
+			The connection is closed when this returns.
+			@param server		The server that rejected the connection
+			@param connection	The connection that will not be handled
+			@throws IOException	On io error
+		*/
+		public void overloaded(SocketServer server, Socket connection) throws IOException;
+	}
 	/** Helper function to read from an input stream with a timeout.
 		No maximum to the data to read.
 		Use default buffer size.
@@ -45,60 +85,227 @@ public class SocketServer extends Thread {
 		return read(in, timeoutInMilliseconds, -1, -1);
 	}
 	/** Helper function to read from an input stream with a timeout.
+		Returns as soon as maxData bytes or the end of the stream arrive, or when the timeout is reached.
+		Only reads what is available(), waiting between reads, so a read never blocks past the timeout
+		(and the end of the stream is not noticed until the timeout).
+		Pass the Socket to the other read() to read without polling.
 		@param in	The stream to read from
 		@param timeoutInMilliseconds	The timeout
 		@param maxData	The maximum number of bytes to read (-1 for unlimited)
 		@param bufferSize	The number of bytes to attempt to read at a time (-1 for default 4k)
 		@return		The data read
 		@throws IOException	If there was a problem
+		@see #read(InputStream,Socket,int,int,int)
 	*/
 	public static byte[] read(InputStream in, int timeoutInMilliseconds, int maxData, int bufferSize) throws IOException {
-		int						retryCount= timeoutInMilliseconds / 100;
-		ByteArrayOutputStream	commandInfo= new ByteArrayOutputStream();
-		byte					buffer[];
+		return read(in, null, timeoutInMilliseconds, maxData, bufferSize);
+	}
+	/** Helper function to read from a socket's input stream with a timeout.
+		Returns as soon as maxData bytes or the end of the stream arrive, or when the timeout is reached.
+		The socket's SO_TIMEOUT is set to the time left before each read (and restored after),
+		so the timeout is exact and no time is spent polling.
+		@param in			The stream to read from
+		@param connection	The socket <code>in</code> reads from (ie connection()), or null to poll available() as read() does
+		@param timeoutInMilliseconds	The timeout
+		@param maxData		The maximum number of bytes to read (-1 for unlimited)
+		@param bufferSize	The number of bytes to attempt to read at a time (-1 for default 4k)
+		@return				The data read
+		@throws IOException	If there was a problem
+	*/
+	public static byte[] read(InputStream in, Socket connection, int timeoutInMilliseconds, int maxData, int bufferSize) throws IOException {
+		long	deadline= System.currentTimeMillis() + Math.max(1, timeoutInMilliseconds);
+		int		originalTimeout= (null == connection) ? 0 : connection.getSoTimeout();
+		boolean	exact= (maxData >= 0) && (maxData <= _kMaxPooledBuffer);
+		byte[]	data= exact ? new byte[maxData] : _buffer(bufferSize);
+		byte[]	result;
+		int		size= 0;
 
-		if(bufferSize < 0) {
-			bufferSize= 4096;
-		}
-		if( (maxData > 0) && (bufferSize > maxData) ) {
-			bufferSize= maxData;
-		}
-		buffer= new byte[bufferSize];
-		if(retryCount < 1) {
-			retryCount= 1;
-		}
-		while(retryCount > 0) {
-			while( (in.available() == 0) && (retryCount > 0) ) {
-				try	{
-					Thread.sleep(100);
-				} catch(InterruptedException e) {
-					// ignore
-				}
-				retryCount-= 1;
-			}
-			int	available= in.available();
+		try	{
+			while( (maxData < 0) || (size < maxData) ) {
+				long	left= deadline - System.currentTimeMillis();
+				int		amount, read;
 
-			if( (maxData >= 0) && (available > maxData) ) {
-				available= maxData;
-			}
-			if(available > 0) {
-				int	amountRead= in.read(buffer, 0, available);
+				if(left <= 0) {
+					break;
+				}
+				if(size == data.length) {
+					byte[]	bigger= new byte[2 * data.length];
 
-				commandInfo.write(buffer, 0, amountRead);
-				maxData-= amountRead;
-				if(maxData == 0) {
+					System.arraycopy(data, 0, bigger, 0, size);
+					data= bigger;
+					if(data.length <= _kMaxPooledBuffer) {
+						_buffers.set(data); // keep the bigger buffer for the next read on this thread
+					}
+				}
+				amount= (maxData < 0) ? data.length - size : Math.min(data.length - size, maxData - size);
+				if(null != connection) {
+					connection.setSoTimeout((int)Math.min(left, Integer.MAX_VALUE));
+				} else if(in.available() > 0) {
+					amount= Math.min(amount, in.available()); // do not block on more than has arrived
+				} else {
+					try	{
+						Thread.sleep(Math.min(left, _kPollInMilliseconds));
+					} catch(InterruptedException exception) {
+						// check the deadline
+					}
+					continue;
+				}
+				read= in.read(data, size, amount);
+				if(read < 0) {
 					break;
 				}
+				size+= read;
+			}
+		} catch(SocketTimeoutException exception) {
+			// the deadline was reached, return what has arrived
+		} finally {
+			if(null != connection) {
+				connection.setSoTimeout(originalTimeout);
 			}
 		}
-		return commandInfo.toByteArray();
+		if(exact && (size == data.length)) {
+			return data;
+		}
+		result= new byte[size];
+		System.arraycopy(data, 0, result, 0, size);
+		return result;
+	}
+	/** The connection being handled on this thread.
+		@return	The Socket passed to Handler.handle() if this is a handler thread, otherwise null
+	*/
+	public static Socket connection() {
+		return _connection.get();
 	}
 	/** Listen on a port and hand off connections to a handler.
 		@param port		The port to listen on
 		@param instance	The object to handle connections.
 	*/
 	public SocketServer(int port, Handler instance) throws IOException {
-		_init(port, instance);
+		_init(port, instance, null, null);
+	}
+	/** Listen on a port and hand off each connection to an executor.
+		The executor is not shut down by the server.
+		@param port		The port to listen on
+		@param instance	The object to handle connections.
+		@param executor	Runs a task for each connection (ie virtualThreadExecutor())
+	*/
+	public SocketServer(int port, Handler instance, ExecutorService executor) throws IOException {
+		_init(port, instance, executor, null);
+	}
+	/** Listen on a port for TLS connections.
+		@param port		The port to listen on
+		@param instance	The object to handle connections, it sees the decrypted streams.
+		@param executor	Runs a task for each connection, or null to use Worker threads
+		@param tls		The server's certificate and session cache (ie from TLS.context()), or null for plain connections
+	*/
+	public SocketServer(int port, Handler instance, ExecutorService executor, SSLContext tls) throws IOException {
+		_init(port, instance, executor, tls);
+	}
+	/** Listen on a port with a bounded pool of worker threads.
+		As with a ThreadPoolExecutor, workers above minWorkers are only started when the queue is full,
+		and are stopped after they have been idle for a minute.
+		@param port			The port to listen on
+		@param instance		The object to handle connections.
+		@param minWorkers	The number of workers to keep, even when idle
+		@param maxWorkers	The most connections to handle at once
+		@param maxQueued	The most connections to wait for a worker, more are handled by policy
+		@param policy		What to do with a connection when there is no room for it
+	*/
+	public SocketServer(int port, Handler instance, int minWorkers, int maxWorkers, int maxQueued, Overload policy) throws IOException {
+		this(port, instance, minWorkers, maxWorkers, maxQueued, policy, null);
+	}
+	/** Listen on a port with a bounded pool of worker threads, optionally for TLS connections.
+		@param port			The port to listen on
+		@param instance		The object to handle connections.
+		@param minWorkers	The number of workers to keep, even when idle
+		@param maxWorkers	The most connections to handle at once
+		@param maxQueued	The most connections to wait for a worker, more are handled by policy
+		@param policy		What to do with a connection when there is no room for it
+		@param tls			The server's certificate and session cache (ie from TLS.context()), or null for plain connections
+	*/
+	public SocketServer(int port, Handler instance, int minWorkers, int maxWorkers, int maxQueued, final Overload policy, SSLContext tls) throws IOException {
+		ThreadPoolExecutor	pool= new ThreadPoolExecutor(minWorkers, maxWorkers, _kIdleWorkerSeconds, TimeUnit.SECONDS,
+																new ArrayBlockingQueue<Runnable>(Math.max(1, maxQueued)));
+
+		if(policy == Overload.DELAY) {
+			pool.setRejectedExecutionHandler(new RejectedExecutionHandler() {
+				public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+					try	{
+						if(executor.isShutdown()) {
+							throw new RejectedExecutionException("Server shut down");
+						}
+						_delayed.incrementAndGet();
+						executor.getQueue().put(task); // the accept thread waits here
+					} catch(InterruptedException exception) {
+						throw new RejectedExecutionException(exception.toString());
+					}
+				}
+			});
+		}
+		_pool= pool;
+		_policy= policy;
+		_init(port, instance, pool, tls); // _delayed is created before the pool can reject
+	}
+	/** The number of connections waiting for a worker.
+		@return	The depth of the queue, 0 if there is no bounded pool
+	*/
+	public int queued() {
+		return (null == _pool) ? 0 : _pool.getQueue().size();
+	}
+	/** The number of worker threads.
+		@return	The number of threads in the bounded pool, or the number of active connections if there is no bounded pool
+	*/
+	public int workers() {
+		return (null == _pool) ? _active.get() : _pool.getPoolSize();
+	}
+	/** The number of connections rejected because the server was overloaded.
+		@return	The number of connections closed (or answered by Overloaded) without being handled
+	*/
+	public long rejected() {
+		return _rejected.get();
+	}
+	/** The number of times accepting waited for room in the queue (Overload.DELAY).
+		@return	The number of connections that had to wait to be queued
+	*/
+	public long delayed() {
+		return _delayed.get();
+	}
+	/** Handshake counts and timing.
+		@return	The handshakes so far, or null if the server is not serving TLS
+	*/
+	public TLS.Handshakes handshakes() {
+		return _handshakes;
+	}
+	/** An executor that runs each task on a new virtual thread, where the JVM has them (Java 21 and later).
+		Blocking handlers (ie HTTPServer) can then serve many more connections than there can be platform threads.
+		@return	Executors.newVirtualThreadPerTaskExecutor() if available, otherwise Executors.newCachedThreadPool()
+	*/
+	public static ExecutorService virtualThreadExecutor() {
+		try	{
+			return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch(Exception exception) { // NoSuchMethodException before Java 21
+			return Executors.newCachedThreadPool();
+		}
+	}
+	/** Sets the most trivial level of message to log.
+		Messages above the level are never built, so they cost nothing.
+		@param level	0 = only vital messages, 100 = everything
+	*/
+	public void setLogLevel(int level) {
+		_logLevel= level;
+	}
+	/** The most trivial level of message that is logged.
+		@return	The level set with setLogLevel(), or the SocketServer.logLevel system property (default 100)
+	*/
+	public int logLevel() {
+		return _logLevel;
+	}
+	/** Determines if a message will be logged, check before building an expensive message.
+		@param level	The level of the message
+		@return			true if messages at that level are passed to the Handler
+	*/
+	public boolean logs(int level) {
+		return level <= _logLevel;
 	}
 	/** The port we are listening on.
 		@return	The port we are listening on
@@ -129,17 +336,22 @@ public class SocketServer extends Thread {
 			try	{
 				_log(100, "Waiting for connection");
 				connection= _listen.accept();
-				if(_idleWorkers.isEmpty()) {
-					_log(100, "Creating new worker thread");
-					new Worker(connection);
+				if(null != _executor) {
+					_log(100, "Handing connection to executor");
+					_execute(connection);
 				} else {
-					_log(100, "Recycling worker thread");
-					_idleWorkers.remove(0).start(connection);
-				}
-				synchronized(this) {
-					_active+= 1;
+					Worker	worker= _idleWorkers.poll();
+
+					_active.incrementAndGet(); // before the worker starts, so it cannot be recycled first
+					if(null == worker) {
+						_log(100, "Creating new worker thread");
+						new Worker(connection);
+					} else {
+						_log(100, "Recycling worker thread");
+						worker.start(connection);
+					}
 				}
-				_log(100, "Active threads: "+_active);
+				_log(100, "Active threads: ", _active);
 			} catch(Exception e) {
 				if(!_done) {
 					if(null != connection) {
@@ -155,48 +367,148 @@ public class SocketServer extends Thread {
 				}
 			}
 		}
-		_log(100, "Main server thread shutting down, port "+_port);
-		while(_active > 0) {
-			_log(100, "Waiting for workers to be recycled");
-			try	{
-				Thread.sleep(1000);
-			} catch(InterruptedException e) {
-				_log(e);
+		_log(100, "Main server thread shutting down, port ", _port);
+		synchronized(_drained) {
+			while(_active.get() > 0) {
+				_log(100, "Waiting for workers to be recycled");
+				try	{
+					_drained.wait(); // notified by _finished(Worker)
+				} catch(InterruptedException e) {
+					_log(e);
+				}
 			}
 		}
 		for(Worker w : _idleWorkers) {
 			w.terminate();
 		}
-		_log(100, "Main server thread shut down, port "+_port);
+		if(null != _pool) {
+			_pool.shutdown(); // the bounded pool was made by us
+		}
+		_log(100, "Main server thread shut down, port ", _port);
+	}
+	/** Hands a connection to the executor.
+		The active count must be incremented before the task can finish, so it is done here.
+		@param connection	The connection to handle
+	*/
+	private void _execute(final Socket connection) {
+		_active.incrementAndGet();
+		try	{
+			_executor.execute(new Runnable() {
+				public void run() {
+					_serve(connection);
+					_finished(null);
+				}
+			});
+		} catch(RejectedExecutionException exception) {
+			_finished(null);
+			_reject(connection);
+		}
+	}
+	/** Turns away a connection the executor had no room for.
+		@param connection	The connection to close
+	*/
+	private void _reject(Socket connection) {
+		_rejected.incrementAndGet();
+		_log(10, "Overloaded, rejecting ", connection);
+		try	{
+			if( (_policy == Overload.RESPOND) && (_instance instanceof Overloaded)
+					&& !(connection instanceof SSLSocket) ) { // answering would need a handshake on the accept thread
+				((Overloaded)_instance).overloaded(this, connection);
+			}
+		} catch(IOException exception) {
+			_log(exception);
+		}
+		try	{
+			connection.close();
+		} catch(IOException exception) {
+			_log(exception);
+		}
+	}
+	/** Handles a connection and closes it.
+		@param connection	The connection to handle
+	*/
+	private void _serve(Socket connection) {
+		_log(100, "Starting a handle connection ", connection);
+		_connection.set(connection);
+		try	{
+			if(connection instanceof SSLSocket) {
+				_handshake((SSLSocket)connection);
+			}
+			_instance.handle(this, connection);
+		} catch(Exception e) {
+			_log(0, connection);
+			_log(e);
+		} finally {
+			_connection.remove();
+		}
+		_log(100, "Done handling connection ", connection);
+		try	{
+			connection.close();
+		} catch(Exception e) {
+			_log(e);
+		}
+	}
+	/** A connection is done, recycles worker objects.
+		Only takes a lock when the last active connection is done, to wake up run() if it is shutting down.
+		@param worker	The worker object to recycle, or null if the connection was handled by the executor.
+	*/
+	private void _finished(Worker worker) {
+		if(null != worker) {
+			_log(100, "Recycling worker ", worker);
+			_idleWorkers.add(worker);
+		}
+		if(_active.decrementAndGet() == 0) {
+			synchronized(_drained) {
+				_drained.notifyAll();
+			}
+		}
 	}
-	/** Recycles worker objects.
-		@param worker	The worker object to recycle.
+	/** Gets this thread's read buffer.
+		@param size	The size of a new buffer, -1 for the default
+		@return		The buffer last used by read() on this thread, or a new one
 	*/
-	private synchronized void _recycle(Worker worker) {
-		_log(100, "Recycling worker "+worker);
-		_active-= 1;
-		_idleWorkers.add(worker);
-		_log(100, "Active threads: "+_active);
+	private static byte[] _buffer(int size) {
+		byte[]	buffer= _buffers.get();
+
+		if(null == buffer) {
+			buffer= new byte[(size > 0) ? size : 4096];
+			_buffers.set(buffer);
+		}
+		return buffer;
 	}
 	/** Logs Socket to the Handler log method.
 		@param level	The message level
 		@param message	The socket connection to log
 	*/
-	private synchronized void _log(int level, Socket message) {
-		_log(level, message.toString());
+	private void _log(int level, Socket message) {
+		if(logs(level)) {
+			_instance.log(level, message.toString());
+		}
 	}
 	/** Logs that an exception occurred.
 		@param message	The exception that occurred.
 	*/
-	private synchronized void _log(Exception message) {
+	private void _log(Exception message) {
 		_instance.log(message);
 	}
 	/** Logs a message to the handler.
 		@param level	The message level (0 = critical to report, 100 = trivial to report)
 		@param message	The message to log
 	*/
-	private synchronized void _log(int level, String message) {
-		_instance.log(level, message);
+	private void _log(int level, String message) {
+		if(logs(level)) {
+			_instance.log(level, message);
+		}
+	}
+	/** Logs a message to the handler, only building the message if it will be logged.
+		@param level	The message level (0 = critical to report, 100 = trivial to report)
+		@param message	The start of the message
+		@param detail	Appended to the message (with toString()) only if the level is logged
+	*/
+	private void _log(int level, String message, Object detail) {
+		if(logs(level)) {
+			_instance.log(level, message + detail);
+		}
 	}
 	/** A thread to handle each connection.
 		Each Handler call will be on a unique Worker.
@@ -214,83 +526,145 @@ public class SocketServer extends Thread {
 			After calling, this worker can no longer be used.
 		*/
 		public void terminate() {
-			_log(100, "Terminating worker "+this);
-			_done= true;
+			_log(100, "Terminating worker ", this);
 			synchronized(this) {
+				_done= true;
 				notify();
 			}
 		}
 		/** Restart a recycled worker on a new connection.
 			@param connection	The connection to start working on
 		*/
-		public void start(Socket connection) throws Exception {
+		public synchronized void start(Socket connection) throws Exception {
 			if(null != _connection) {
 				throw new Exception("Worker still working");
 			}
 			_connection= connection;
-			synchronized(this) {
-				notify();
-			}
+			notify();
 		}
 		/** The thread to handle the connection.
+			Only this worker's own lock is used, so workers never wait on each other or the server.
 		*/
 		public void run() {
-			_log(100, "Starting thread "+this);
-			while(!_done) {
-				_log(100, "Starting a handle connection "+_connection);
-				try	{
-					_instance.handle(SocketServer.this, _connection);
-				} catch(Exception e) {
-					_log(0, _connection);
-					_log(e);
-				}
-				_log(100, "Done handling connection "+_connection);
-				try	{
-					_connection.close();
-				} catch(Exception e) {
-					_log(e);
-				}
-				_connection= null;
-				_recycle(this);
+			_log(100, "Starting thread ", this);
+			while(true) {
+				Socket	connection;
+
 				synchronized(this) {
-					try {
-						_log(100, "Waiting in Worker "+this);
-						wait();
-					} catch(InterruptedException e) {
-						_log(e);
+					while(!_done && (null == _connection)) { // start() may have been called before we got here
+						try {
+							_log(100, "Waiting in Worker ", this);
+							wait();
+						} catch(InterruptedException e) {
+							_log(e);
+						}
 					}
-					_log(100, "Done waiting in Worker "+this);
+					if(_done) {
+						break;
+					}
+					connection= _connection;
+				}
+				_serve(connection);
+				synchronized(this) {
+					_connection= null;
 				}
+				_finished(this);
 			}
-			_log(100, "Shutting down thread "+this);
+			_log(100, "Shutting down thread ", this);
 		}
 		/** The connection we are currently handling. */
 		private Socket 	_connection;
 		/** Are we shutting down. */
 		private boolean	_done;
 	}
-	/** How many concurrent active connections we are expecting */
-	static private int		_kAverageWorkerThreads= 4;
+	/** The largest buffer read() keeps for a thread, or allocates before data arrives */
+	static private final int	_kMaxPooledBuffer= 1024 * 1024;
+	/** How long read() waits for a stream that is not a socket to have more available */
+	static private final int	_kPollInMilliseconds= 10;
+	/** The connection being handled by each handler thread */
+	static private final ThreadLocal<Socket>	_connection= new ThreadLocal<Socket>();
+	/** The buffer read() uses on each thread */
+	static private final ThreadLocal<byte[]>	_buffers= new ThreadLocal<byte[]>();
 	/** The port we are listening on */
 	private int				_port;
 	/** Keep track of the number of active worker threads */
-	private int				_active;
+	private AtomicInteger	_active;
+	/** Locked only to wait for, and signal, _active getting to 0 */
+	private Object			_drained;
+	/** The most trivial level of message to log */
+	private volatile int	_logLevel;
 	/** The socket we are listening on */
 	private ServerSocket	_listen;
 	/** The connection handler */
 	private Handler			_instance;
 	/** The pool of Worker threads not currently in use */
-	private Vector<Worker>	_idleWorkers;
+	private ConcurrentLinkedQueue<Worker>	_idleWorkers;
+	/** How long an idle worker above minWorkers is kept */
+	static private int		_kIdleWorkerSeconds= 60;
+	/** Runs each connection, or null to use Worker threads */
+	private ExecutorService	_executor;
+	/** The bounded pool, if there is one (also _executor) */
+	private ThreadPoolExecutor	_pool;
+	/** What to do when the bounded pool is full */
+	private Overload		_policy;
+	/** The number of connections rejected */
+	private AtomicLong		_rejected;
+	/** The number of connections that waited for room in the queue */
+	private AtomicLong		_delayed;
 	/** Are we shutting down */
 	private boolean			_done;
-	private void _init(int port, Handler instance) throws IOException {
+	/** The handshakes of TLS connections, null if not serving TLS */
+	private TLS.Handshakes	_handshakes;
+	/** The number of connections that may be waiting to be accepted, as for new ServerSocket(port) */
+	static private final int	_kBacklog= 50;
+	/** The longest a TLS client can take to finish its handshake */
+	static private final int	_kHandshakeTimeout= 10000;
+	/** Does the TLS handshake now, rather than on the Handler's first read, to time it.
+		@param connection	The TLS connection
+		@throws IOException	If the handshake fails or the client takes too long
+	*/
+	private void _handshake(SSLSocket connection) throws IOException {
+		int		timeout= connection.getSoTimeout();
+		long	startMilliseconds= System.currentTimeMillis();
+		long	start= System.nanoTime();
+
+		try	{
+			connection.setSoTimeout(_kHandshakeTimeout);
+			connection.startHandshake();
+			connection.setSoTimeout(timeout);
+		} catch(IOException exception) {
+			_handshakes.recordFailure();
+			throw exception;
+		}
+		_handshakes.record(startMilliseconds, System.nanoTime() - start, connection.getSession());
+		_log(100, "Handshake finished ", connection.getSession().getCipherSuite());
+	}
+	/** @param port		The port to listen on
+		@param instance	The connection handler
+		@param executor	Runs each connection, or null for Worker threads
+		@param tls		Listens for TLS connections, or null for plain sockets
+	*/
+	private void _init(int port, Handler instance, ExecutorService executor, SSLContext tls) throws IOException {
 		_done= false;
+		_logLevel= Integer.getInteger("SocketServer.logLevel", 100);
 		_instance= instance;
+		_executor= executor;
+		_rejected= new AtomicLong();
+		_delayed= new AtomicLong();
+		_active= new AtomicInteger(0);
+		_drained= new Object();
 		_port= port;
-		_log(100, "Listening on port "+_port);
-		_idleWorkers= new Vector<Worker>(_kAverageWorkerThreads);
-		_log(100, "Average simultaneous connections expected= "+_kAverageWorkerThreads);
-		_listen= new ServerSocket(port);
+		_log(100, "Listening on port ", _port);
+		_idleWorkers= new ConcurrentLinkedQueue<Worker>();
+		if(null == tls) { // accepted through a channel, so connections have one for FileChannel.transferTo() (see HTTPServer.sendFile())
+			_listen= ServerSocketChannel.open().socket();
+			_listen.setReuseAddress(true);
+			_listen.bind(new InetSocketAddress(port), _kBacklog);
+		} else {
+			_handshakes= new TLS.Handshakes();
+			_listen= tls.getServerSocketFactory().createServerSocket(port);
+			TLS.applicationProtocols((SSLServerSocket)_listen, TLS.kHTTP11);
+		}
 		start();
 	}
 	/** Test class that echos anything sent to it.
@@ -315,7 +689,8 @@ public class SocketServer extends Thread {
 			@throws IOException	If there is an error
 		*/
 		public void handle(SocketServer server, Socket connection) throws IOException {
-			System.out.println("Handling new connection on port "+server.port()+" from "+connection);
+			System.out.println("Handling new connection on port "+server.port()+" from "+connection
+								+( (null == server.handshakes()) ? "" : " "+server.handshakes()));
 			InputStream		in= connection.getInputStream();
 			OutputStream	out= connection.getOutputStream();
 
@@ -344,11 +719,22 @@ public class SocketServer extends Thread {
 	}
 	/** Test.
 		Creats an echo server on port specified by 1st argument passed on command line.
+		If the 2nd argument is virtual, each connection is handled by virtualThreadExecutor().
+		If the 2nd argument is bounded, at most 2 connections are handled and 2 wait, the rest are closed.
+		If the 2nd argument is tls, the 3rd and 4th are a keystore and its password (ie openssl s_client -connect localhost:port).
 		To kill the server, send it the letter 'd'.
 	*/
 	public static void main(String... args) {
 		try	{
-			new SocketServer(Integer.parseInt(args[0]), new Echo());
+			if( (args.length > 1) && args[1].equals("virtual") ) {
+				new SocketServer(Integer.parseInt(args[0]), new Echo(), virtualThreadExecutor());
+			} else if( (args.length > 1) && args[1].equals("bounded") ) {
+				new SocketServer(Integer.parseInt(args[0]), new Echo(), 1, 2, 2, Overload.CLOSE);
+			} else if( (args.length > 3) && args[1].equals("tls") ) {
+				new SocketServer(Integer.parseInt(args[0]), new Echo(), null, TLS.context(new File(args[2]), args[3].toCharArray()));
+			} else {
+				new SocketServer(Integer.parseInt(args[0]), new Echo());
+			}
 		} catch(IOException exception) {
 			System.err.println(exception);
 		}
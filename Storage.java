@@ -1,4 +1,5 @@
 import java.io.IOException;
+import java.util.ArrayList;
 
 /** Interface for key/value storage
 
@@ -16,6 +17,25 @@ public interface Storage {
 		@throws IOException	If there are any IO errors
 	*/
 	public byte[] get(String key) throws IOException;
+	/** Get part of the data for a given key.
+		@param key		The unique key in the file.
+		@param offset	The offset in the data to start at
+		@param length	The maximum number of bytes to get
+		@return			The data from offset (fewer than length bytes if the data ends first), or null if not found.
+		@throws IOException	If there are any IO errors
+	*/
+	public byte[] get(String key, long offset, int length) throws IOException;
+	/** Gets the size of the data for a key.
+		@param key	The unique key in the file.
+		@return		The number of bytes get(key) would return, or -1 if not found.
+		@throws IOException	If there are any IO errors
+	*/
+	public long length(String key) throws IOException;
+	/** Gets all the keys.
+		@return		The keys that currently have data
+		@throws IOException	If there are any IO errors
+	*/
+	public ArrayList<String> keys() throws IOException;
 	/** Determines if the key exists in the file.
 		@param key	The key to look for.
 		@return		true if the key is in the file, false if not
@@ -46,6 +66,33 @@ public interface Storage {
 		@throws IOException	If there are any IO errors
 	*/
 	public boolean put(String key, byte[] data, boolean doNotGrow) throws IOException;
+	/** Stores a given key/data pair that will be removed after a period of time.
+		If the key exists already, nothing will be done.
+		Once expired, the key is no longer returned by get or has, and its space is reclaimed.
+		@param key			The key for the data.
+		@param data			The data to store.
+		@param timeToLiveInMilliseconds	How long until the key expires, 0 means never
+		@return				true if the key/data were added, false if the key already exists
+		@throws IOException	If there are any IO errors
+		@see #expire(int)
+	*/
+	public boolean put(String key, byte[] data, long timeToLiveInMilliseconds) throws IOException;
+	/** Gets when a key expires.
+		@param key	The key to look up
+		@return		Milliseconds since the epoch when the key expires, 0 if it never expires or is not found
+		@throws IOException	If there are any IO errors
+		@see #put(String, byte[], long)
+	*/
+	public long expires(String key) throws IOException;
+	/** Removes expired keys.
+		Does a limited amount of work per call so it can be called periodically without stalling other callers.
+		Each call picks up where the previous call left off.
+		@param maxToExamine	The maximum number of entries to look at
+		@return				The number of keys removed
+		@throws IOException	If there are any IO errors
+		@see StorageReaper
+	*/
+	public int expire(int maxToExamine) throws IOException;
 	/** Gets the number of bytes used on disk for this storage file.
 		@return	The number of bytes on disk.
 		@throws IOException	If there are any IO errors
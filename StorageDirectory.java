@@ -1,13 +1,32 @@
 import java.io.IOException;
+import java.util.ArrayList;
 import java.io.File;
 import java.net.URLEncoder;
+import java.net.URLDecoder;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.EOFException;
 import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.ByteArrayInputStream;
+import java.io.RandomAccessFile;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.UnsupportedEncodingException;
+import java.nio.channels.FileChannel;
 
+/** Key Store directory.
+	Stores each value in a file named for the URL encoded key.
+	Keys that expire have a file of the same name in the @expires directory
+	holding the expiration time (8 bytes, big endian, milliseconds since the epoch).
+	Values stored from a stream, and expiration times, are written in the @uploads directory until they are complete.
+	An expiration time is moved into place before its value is written, so a value is never seen without it.
+	URL encoding never produces @, so the @expires and @uploads directories cannot collide with a key.
+*/
 public class StorageDirectory implements Storage {
 	public StorageDirectory(File directory) throws IOException {
 		_location= directory;
+		_expirations= new File(_location, _expiresDirectory);
 		if(!_location.exists()) {
 			_location.mkdirs();
 		}
@@ -26,7 +45,7 @@ public class StorageDirectory implements Storage {
 		byte[]			buffer;
 		int				read= 0, offset= 0;
 
-		if(!valueFile.isFile()) {
+		if(!valueFile.isFile() || _expired(key)) {
 			return null;
 		}
 		valueStream= new FileInputStream(valueFile);
@@ -41,6 +60,78 @@ public class StorageDirectory implements Storage {
 		valueStream.close();
 		return buffer;
 	}
+	/** Get part of the data for a given key.
+		@param key		The unique key in the file.
+		@param offset	The offset in the data to start at
+		@param length	The maximum number of bytes to get
+		@return			The data from offset (fewer than length bytes if the data ends first), or null if not found.
+		@throws IOException	If there are any IO errors
+	*/
+	public byte[] get(String key, long offset, int length) throws IOException {
+		File				valueFile= new File(_location, _encode(key));
+		RandomAccessFile	valueStream;
+		byte[]				buffer;
+
+		if(!valueFile.isFile() || _expired(key)) {
+			return null;
+		}
+		valueStream= new RandomAccessFile(valueFile, "r");
+		try	{
+			buffer= new byte[(int)Math.max(0, Math.min(length, valueStream.length() - offset))];
+			valueStream.seek(offset);
+			valueStream.readFully(buffer);
+		} finally {
+			valueStream.close();
+		}
+		return buffer;
+	}
+	/** Opens the file of a key, to send it without reading it into memory (ie HTTPServer.sendFile()).
+		Values are never changed in place, so the open file keeps the value even if the key is removed.
+		@param key	The unique key in the file.
+		@return		The value's file, open for reading (close it when done), or null if not found.
+		@throws IOException	If there are any IO errors
+	*/
+	public FileChannel open(String key) throws IOException {
+		File	valueFile= new File(_location, _encode(key));
+
+		if(!valueFile.isFile() || _expired(key)) {
+			return null;
+		}
+		try	{
+			return new FileInputStream(valueFile).getChannel();
+		} catch(FileNotFoundException exception) { // removed since it was checked
+			return null;
+		}
+	}
+	/** Gets the size of the data for a key.
+		@param key	The unique key in the file.
+		@return		The number of bytes get(key) would return, or -1 if not found.
+		@throws IOException	If there are any IO errors
+	*/
+	public long length(String key) throws IOException {
+		File		valueFile= new File(_location, _encode(key));
+
+		if(!valueFile.isFile() || _expired(key)) {
+			return -1;
+		}
+		return valueFile.length();
+	}
+	/** Gets all the keys in the directory.
+		@return		The keys that have not been removed or expired
+		@throws IOException	If there are any IO errors
+	*/
+	public ArrayList<String> keys() throws IOException {
+		ArrayList<String>	keys= new ArrayList<String>();
+
+		for(File value : _location.listFiles()) {
+			String	key= _decode(value.getName());
+
+			if(value.isFile() && !_expired(key)) {
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
 	/** Determines if the key exists in the file.
 		@param key	The key to look for.
 		@return		true if the key is in the file, false if not
@@ -49,7 +140,7 @@ public class StorageDirectory implements Storage {
 	public boolean has(String key) throws IOException {
 		File		valueFile= new File(_location, _encode(key));
 
-		return valueFile.isFile();
+		return valueFile.isFile() && !_expired(key);
 	}
 	/** Removes a key from the file (marks the space reusable).
 		@param key	The key to remove.
@@ -63,6 +154,7 @@ public class StorageDirectory implements Storage {
 			return false;
 		}
 		valueFile.delete();
+		new File(_expirations, _encode(key)).delete();
 		return true;
 	}
 	/** Stores a given key/data pair in the file.
@@ -77,14 +169,69 @@ public class StorageDirectory implements Storage {
 		File				valueFile= new File(_location, _encode(key));
 		FileOutputStream	valueStream;
 
-		if(valueFile.isFile()) {
+		if(has(key)) {
 			return false;
 		}
+		new File(_expirations, _encode(key)).delete(); // clear any stale expiration
 		valueStream= new FileOutputStream(valueFile);
 		valueStream.write(data);
 		valueStream.close();
 		return true;
 	}
+	/** Stores a value read from a stream, without holding it in memory.
+		The value is written to the @uploads directory and moved into place once it is complete,
+		so a value that is cut short is never seen.
+		If the key exists already, nothing is read.
+		@param key		The key for the data.
+		@param in		The data to store
+		@param length	The number of bytes to read, or -1 to read to the end of <code>in</code>
+		@return			true if the key/data were added, false if the key already exists
+		@throws IOException	If there are any IO errors, or if <code>in</code> ends before <code>length</code> bytes
+	*/
+	public boolean put(String key, InputStream in, long length) throws IOException {
+		File				valueFile= new File(_location, _encode(key));
+		File				partial;
+		FileOutputStream	valueStream;
+		byte[]				buffer= new byte[_kCopyBufferSize];
+		long				left= length;
+		boolean				moved= false;
+
+		if(has(key)) {
+			return false;
+		}
+		new File(_location, _uploadsDirectory).mkdirs();
+		partial= File.createTempFile("upload", null, new File(_location, _uploadsDirectory));
+		valueStream= new FileOutputStream(partial);
+		try	{
+			while( (length < 0) || (left > 0) ) {
+				int	read= in.read(buffer, 0, (int)( ((length < 0) || (left > buffer.length)) ? buffer.length : left ));
+
+				if(read < 0) {
+					if(length < 0) {
+						break;
+					}
+					throw new IOException("Stream ended after "+(length - left)+" of "+length+" bytes of "+key);
+				}
+				valueStream.write(buffer, 0, read);
+				left-= read;
+			}
+			valueStream.close();
+			if(has(key)) { // stored while we were reading
+				return false;
+			}
+			new File(_expirations, _encode(key)).delete(); // clear any stale expiration
+			moved= partial.renameTo(valueFile);
+			if(!moved) {
+				throw new IOException("Unable to move "+partial+" to "+valueFile);
+			}
+			return true;
+		} finally {
+			valueStream.close();
+			if(!moved) {
+				partial.delete();
+			}
+		}
+	}
 	/** Stores a given key/data pair in the file.
 		If the key exists already in the file, nothing will be done.
 		@param key			The key for the data.
@@ -96,6 +243,90 @@ public class StorageDirectory implements Storage {
 	public boolean put(String key, byte[] data, boolean doNotGrow) throws IOException {
 		return put(key, data);
 	}
+	/** Stores a given key/data pair that will be removed after a period of time.
+		If the key exists already, nothing will be done.
+		@param key			The key for the data.
+		@param data			The data to store.
+		@param timeToLiveInMilliseconds	How long until the key expires, 0 means never
+		@return				true if the key/data were added, false if the key already exists
+		@throws IOException	If there are any IO errors
+	*/
+	public boolean put(String key, byte[] data, long timeToLiveInMilliseconds) throws IOException {
+		File				expiresFile= new File(_expirations, _encode(key));
+		File				partial;
+		DataOutputStream	expiresStream;
+		FileOutputStream	valueStream;
+		boolean				stored= false;
+
+		if(timeToLiveInMilliseconds <= 0) {
+			return put(key, data);
+		}
+		if(has(key)) {
+			return false;
+		}
+		// the expiration is in place before the value is seen, so the value is never seen without it
+		new File(_location, _uploadsDirectory).mkdirs();
+		_expirations.mkdirs();
+		partial= File.createTempFile("expires", null, new File(_location, _uploadsDirectory));
+		expiresStream= new DataOutputStream(new FileOutputStream(partial));
+		try	{
+			expiresStream.writeLong(System.currentTimeMillis() + timeToLiveInMilliseconds);
+		} finally {
+			expiresStream.close();
+		}
+		if(!partial.renameTo(expiresFile) && !(expiresFile.delete() && partial.renameTo(expiresFile))) {
+			partial.delete();
+			throw new IOException("Unable to move "+partial+" to "+expiresFile);
+		}
+		try	{
+			valueStream= new FileOutputStream(new File(_location, _encode(key)));
+			try	{
+				valueStream.write(data);
+			} finally {
+				valueStream.close();
+			}
+			stored= true;
+		} finally {
+			if(!stored) {
+				expiresFile.delete();
+			}
+		}
+		return true;
+	}
+	/** Gets when a key expires.
+		@param key	The key to look up
+		@return		Milliseconds since the epoch when the key expires, 0 if it never expires or is not found
+		@throws IOException	If there are any IO errors
+	*/
+	public long expires(String key) throws IOException {
+		if(!has(key)) {
+			return 0;
+		}
+		return _expires(key);
+	}
+	/** Removes expired keys, examining a limited number of expiring keys per call.
+		@param maxToExamine	The maximum number of expiring keys to look at
+		@return				The number of keys removed
+		@throws IOException	If there are any IO errors
+	*/
+	public synchronized int expire(int maxToExamine) throws IOException {
+		String[]	expiring= _expirations.list();
+		int			removed= 0;
+
+		if(null == expiring) {
+			return 0;
+		}
+		for(int examined= 0; (examined < maxToExamine) && (examined < expiring.length); ++examined) {
+			if(_reapIndex >= expiring.length) {
+				_reapIndex= 0;
+			}
+			if(_expired(_decode(expiring[_reapIndex]))) {
+				++removed;
+			}
+			++_reapIndex;
+		}
+		return removed;
+	}
 	/** Gets the number of bytes used on disk for this storage file.
 		@return	The number of bytes on disk.
 		@throws IOException	If there are any IO errors
@@ -104,7 +335,9 @@ public class StorageDirectory implements Storage {
 		long	total= 0;
 
 		for(File key : _location.listFiles()) {
-			total+= key.length();
+			if(key.isFile()) {
+				total+= key.length();
+			}
 		}
 		return total;
 	}
@@ -121,6 +354,52 @@ public class StorageDirectory implements Storage {
 	}
 	/// The path to the directory that has the key/values
 	private File	_location;
+	/// The path to the directory that has the expiration times
+	private File	_expirations;
+	/// The index in the expiration listing that the next call to expire() starts at
+	private int		_reapIndex;
+	/// The name of the directory in _location with the expiration times
+	private static final String	_expiresDirectory= "@expires";
+	/// The name of the directory in _location that values being stored from a stream are written to
+	private static final String	_uploadsDirectory= "@uploads";
+	/// The size of the buffer used to copy a stream to a value
+	private static final int	_kCopyBufferSize= 64 * 1024;
+	/** Checks if a key has expired, and if so removes it.
+		@param key	The raw key value
+		@return		true if the key had an expiration time that has passed
+		@throws IOException	If there are any IO errors
+	*/
+	private boolean _expired(String key) throws IOException {
+		long	expires= _expires(key);
+
+		if( (0 == expires) || (expires > System.currentTimeMillis()) ) {
+			return false;
+		}
+		new File(_location, _encode(key)).delete();
+		new File(_expirations, _encode(key)).delete();
+		return true;
+	}
+	/** Reads the expiration time of a key.
+		@param key	The raw key value
+		@return		Milliseconds since the epoch when the key expires, 0 if it has no expiration time (or it is incomplete)
+		@throws IOException	If there are any IO errors
+	*/
+	private long _expires(String key) throws IOException {
+		DataInputStream	expiresStream;
+
+		try	{
+			expiresStream= new DataInputStream(new FileInputStream(new File(_expirations, _encode(key))));
+		} catch(FileNotFoundException exception) { // never expires, or removed since
+			return 0;
+		}
+		try	{
+			return expiresStream.readLong();
+		} catch(EOFException exception) { // cut short, ie by a crash while it was written in place
+			return 0;
+		} finally {
+			expiresStream.close();
+		}
+	}
 	/**
 		@param key	The raw key value
 		@return		URL encoded value of the key
@@ -132,6 +411,17 @@ public class StorageDirectory implements Storage {
 			throw new IOException(e.toString());
 		}
 	}
+	/**
+		@param name	URL encoded value of the key
+		@return		The raw key value
+	*/
+	private static String _decode(String name) throws IOException {
+		try	{
+			return URLDecoder.decode(name, "UTF-8");
+		} catch(UnsupportedEncodingException e) {
+			throw new IOException(e.toString());
+		}
+	}
 	/** Test.
 		@param args	One argument, the path to the directory to work with
 	*/
@@ -150,6 +440,35 @@ public class StorageDirectory implements Storage {
 			if(store.has("hash/md5/543fa543226")) {
 				System.err.println("Should not again have hash/md5/543fa543226");
 			}
+			if(!store.put("streamed", new ByteArrayInputStream("streamed value".getBytes()), -1)
+					|| !"streamed value".equals(new String(store.get("streamed")))) {
+				System.err.println("Streamed value was not stored");
+			}
+			if(store.put("streamed", new ByteArrayInputStream("again".getBytes()), -1)) {
+				System.err.println("Streamed value replaced an existing key");
+			}
+			try	{
+				store.put("short", new ByteArrayInputStream("short".getBytes()), 10);
+				System.err.println("Short stream was stored");
+			} catch(IOException exception) {
+			}
+			if(store.has("short") || (new File(args[0], _uploadsDirectory).list().length != 0)) {
+				System.err.println("Short stream left a value or an upload");
+			}
+			store.remove("streamed");
+			store.put("expiring", "soon".getBytes(), 1);
+			store.put("lasting", "forever".getBytes(), 60000);
+			try	{
+				Thread.sleep(10);
+			} catch(InterruptedException e) {
+			}
+			if(store.expire(10) != 1) {
+				System.err.println("Should have expired one key");
+			}
+			if(store.has("expiring") || !store.has("lasting")) {
+				System.err.println("Wrong key expired");
+			}
+			store.remove("lasting");
 		} catch(IOException e) {
 			e.printStackTrace();
 		}
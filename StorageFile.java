@@ -2,9 +2,14 @@ import java.io.File;
 import java.util.Arrays;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.zip.DataFormatException;
 
 /** Key Store file.
@@ -19,20 +24,26 @@ import java.util.zip.DataFormatException;
 			</ol>
 		<li>Block Header:<ol>
 			<li>Flags:	1 byte, If High bit is set, then it is a free block the size of the 7 bit value (everything after Flags)
-					If high bit is not set, then bit 0 == free, bit 1 == zip compressed
+					If high bit is not set, then bit 0 == free, bit 1 == zip compressed, bit 2 == compressed key, bit 4 == expires
 			<li>Size:	4 bytes, big endian, If Flags high bit not set, then this is the size of Value
 						if free, the size of everything after Size (free space)
 			<li>kSize:	2 bytes, big endian, the number of bytes for the Key
-			<li>Key:	kSize bytes The key, as UTF-8 data
+			<li>Key:	kSize bytes The key, as UTF-8 data, or if the compressed key flag is set:<ol>
+				<li>Prefix:	1 byte, index+1 into the built-in prefix dictionary (ie hash/SHA-512/),
+							or 0 followed by 1 byte prefix length and the prefix as UTF-8 data
+				<li>Hex:	The rest of the key, lowercase hex digits packed two to a byte
+				</ol>
+			<li>Expires:	8 bytes, big endian, only if the expires flag is set. Milliseconds since the epoch after which the key is removed.
 			<li>Value:	Size bytes of something, possibly zip compressed with no wrap, per GZIP and PKZIP
 		</ol></ul>
+	Readers that need a consistent view while others write (ie backups) should use snapshot().
+	Space freed while a snapshot is open is not reused until every older snapshot is closed.
 	TODO
 	<ul>
 	<li>implement compaction<br>
 		Have put take a boolean (doNotExpand).
 		If doNotExpand compact (get key right after a free block, remove it and re-add it with doNotExpand= false)
 		until we find a free block big enough. If no free block big enough is found, return false.
-	<li>implement compression of keys (flag for compressed key)
 	<li>implement link() API from Storage (see key redirection, next item)
 	<li>implement key redirection (flag for redirect, data is the key of where the data really is)
 	<li>implement hash for all data, and use that key, with key-redirection to get it
@@ -47,6 +58,8 @@ public class StorageFile implements Storage {
 	public StorageFile(File location) throws IOException {
 		_storage= new RandomAccessFile(location, "rw" /*rwd*/);
 		_chunks= new ArrayList<_Chunk>();
+		_snapshots= new ArrayList<Snapshot>();
+		_pinned= new ArrayList<_Range>();
 		if(_storage.length() == 0) {
 			_storage.write(_signature);
 			_firstChunk= _signature.length + 4; // offset of first chunk in the file, right after signature
@@ -67,62 +80,142 @@ public class StorageFile implements Storage {
 		@return		The data for the key, or null if not found.
 		@throws IOException	If there are any IO errors
 	*/
-	public byte[] get(String key) throws IOException {
+	public synchronized byte[] get(String key) throws IOException {
+		int	index= _find(key);
+
+		if(index < 0) {
+			return null;
+		}
+		return _readChunk(_chunks.get(index));
+	}
+	/** Get part of the data for a given key.
+		Data that is not compressed is read directly from the offset, compressed data must be decompressed first.
+		@param key		The unique key in the file.
+		@param offset	The offset in the data to start at
+		@param length	The maximum number of bytes to get
+		@return			The data from offset (fewer than length bytes if the data ends first), or null if not found.
+		@throws IOException	If there are any IO errors
+	*/
+	public synchronized byte[] get(String key, long offset, int length) throws IOException {
+		int		index= _find(key);
+		_Chunk	chunk;
+
+		if(index < 0) {
+			return null;
+		}
+		chunk= _chunks.get(index);
+		if(chunk.compressed()) {
+			return _slice(_readChunk(chunk), offset, length);
+		}
+		return chunk.get(offset, length);
+	}
+	/** Gets the size of the data for a key.
+		@param key	The unique key in the file.
+		@return		The number of bytes get(key) would return, or -1 if not found.
+		@throws IOException	If there are any IO errors
+	*/
+	public synchronized long length(String key) throws IOException {
+		int		index= _find(key);
+		_Chunk	chunk;
+
+		if(index < 0) {
+			return -1;
+		}
+		chunk= _chunks.get(index);
+		if(chunk.compressed()) {
+			return _readChunk(chunk).length;
+		}
+		return chunk.size();
+	}
+	/** Gets the data for a key as it is compressed on disk.
+		This lets a server send the compressed bytes (ie HTTP Content-Encoding) without decompressing and compressing again.
+		@param key	The unique key in the file.
+		@return		The raw deflate (RFC 1951) data for the key,
+						or null if not found or the data was stored uncompressed (compressing did not make it smaller).
+		@throws IOException	If there are any IO errors
+	*/
+	public synchronized byte[] getDeflated(String key) throws IOException {
+		int		index= _find(key);
+
+		if( (index < 0) || !_chunks.get(index).compressed() ) {
+			return null;
+		}
+		return _chunks.get(index).get();
+	}
+	/** Gets all the keys in the file.
+		@return		The keys that have not been removed or expired, in file order
+		@throws IOException	If there are any IO errors
+	*/
+	public synchronized ArrayList<String> keys() throws IOException {
+		ArrayList<String>	keys= new ArrayList<String>(_chunks.size());
+		long				now= System.currentTimeMillis();
+
 		for(_Chunk chunk : _chunks) {
-			if(chunk.key().equals(key)) {
-				return _readChunk(chunk);
+			if(!chunk.free() && !chunk.expired(now)) {
+				keys.add(chunk.key());
 			}
 		}
-		return null;
+		return keys;
 	}
-	/** Determines if the key exists in the file.
-		@param key	The key to look for.
-		@return		true if the key is in the file, false if not
+	/** Orders keys by where their data is in the file, so reading them in that order is sequential I/O.
+		Every key given is returned, a key given more than once is returned as many times.
+		@param keys		The keys to order
+		@return			The keys in the file, in file order, followed by the keys not in the file, in the order given
 		@throws IOException	If there are any IO errors
 	*/
-	public boolean has(String key) throws IOException {
+	public synchronized ArrayList<String> inFileOrder(Collection<String> keys) throws IOException {
+		HashMap<String,ArrayList<String>>	encoded= new HashMap<String,ArrayList<String>>(keys.size() * 2);
+		ArrayList<String>					identities= new ArrayList<String>(keys.size());
+		ArrayList<String>					ordered= new ArrayList<String>(keys.size());
+		int									index= 0;
+
+		for(String key : keys) {
+			String				identity= _keyIdentity(key);
+			ArrayList<String>	same= encoded.get(identity);
+
+			if(null == same) {
+				same= new ArrayList<String>(1);
+				encoded.put(identity, same);
+			}
+			same.add(key);
+			identities.add(identity);
+		}
 		for(_Chunk chunk : _chunks) {
-			if(!chunk.free() && chunk.key().equals(key)) {
-				return true;
+			if(!chunk.free()) {
+				ArrayList<String>	found= encoded.remove(chunk.identity());
+
+				if(null != found) {
+					ordered.addAll(found);
+				}
 			}
 		}
-		return false;
+		for(String key : keys) {
+			if(encoded.containsKey(identities.get(index++))) {
+				ordered.add(key);
+			}
+		}
+		return ordered;
+	}
+	/** Determines if the key exists in the file.
+		@param key	The key to look for.
+		@return		true if the key is in the file, false if not
+		@throws IOException	If there are any IO errors
+	*/
+	public synchronized boolean has(String key) throws IOException {
+		return _find(key) >= 0;
 	}
 	/** Removes a key from the file (marks the space reusable).
 		@param key	The key to remove.
 		@return		true if the key existed, false otherwise.
 		@throws IOException	If there are any IO errors
 	*/
-	public boolean remove(String key) throws IOException {
-		int	index= 0, prefixFree, suffixFree;
+	public synchronized boolean remove(String key) throws IOException {
+		int	index= _find(key);
 
-		while( (index < _chunks.size()) && (_chunks.get(index).key() != key) ) {
-			++index;
-		}
-		if(index == _chunks.size()) {
+		if(index < 0) {
 			return false;
 		}
-		prefixFree= index;
-		while( (prefixFree - 1 > 0) && _chunks.get(prefixFree - 1).free() ) {
-			--index;
-		}
-		suffixFree= index;
-		while( (suffixFree + 1 < _chunks.size()) && _chunks.get(suffixFree + 1).free() ) {
-			++suffixFree;
-		}
-		if(suffixFree - prefixFree == 0) { // no surrounding free blocks
-			_chunks.get(index).makeFree();
-		} else {
-			_Chunk	firstBlock= _chunks.get(prefixFree);
-
-			if(!firstBlock.free()) {
-				firstBlock.makeFree(); // no free blocks before removed one
-			}
-			firstBlock.expandTo(0, _chunks.get(suffixFree).next()); // expand 1st empty block
-			for(index= prefixFree + 1; index <= suffixFree; ++index) {
-				_chunks.remove(prefixFree + 1); // remove free blocks consolidated into this one
-			}
-		}
+		_remove(index);
 		return true;
 	}
 	/** Stores a given key/data pair in the file.
@@ -136,6 +229,23 @@ public class StorageFile implements Storage {
 	public boolean put(String key, byte[] data) throws IOException {
 		return put(key, data, false);
 	}
+	/** Stores a given key/data pair in the file that will be removed after a period of time.
+		If the key exists already in the file, nothing will be done.
+		Allows the buffer to grow (doNotGrow = false).
+		@param key			The key for the data.
+		@param data			The data to store in the file.
+		@param timeToLiveInMilliseconds	How long until the key expires, 0 means never
+		@return				true if the key/data were added, false if the key already exists in the file
+		@throws IOException	If there are any IO errors
+	*/
+	public synchronized boolean put(String key, byte[] data, long timeToLiveInMilliseconds) throws IOException {
+		long	expires= 0;
+
+		if(timeToLiveInMilliseconds > 0) {
+			expires= System.currentTimeMillis() + timeToLiveInMilliseconds;
+		}
+		return _put(key, data, false, expires);
+	}
 	/** Stores a given key/data pair in the file.
 		If the key exists already in the file, nothing will be done.
 		@param key			The key for the data.
@@ -144,54 +254,49 @@ public class StorageFile implements Storage {
 		@return				true if the key/data were added, false if the key already exists in the file
 		@throws IOException	If there are any IO errors
 	*/
-	public boolean put(String key, byte[] data, boolean doNotGrow) throws IOException {
-		boolean		compressed;
-		byte[]		keyData= key.getBytes("UTF-8"), compressedData;
-		int			index= 0;
-		int			dataLength= data.length, compressedLength;
-		Deflater	compress;
+	public synchronized boolean put(String key, byte[] data, boolean doNotGrow) throws IOException {
+		return _put(key, data, doNotGrow, 0);
+	}
+	/** Gets when a key expires.
+		@param key	The key to look up
+		@return		Milliseconds since the epoch when the key expires, 0 if it never expires or is not found
+		@throws IOException	If there are any IO errors
+	*/
+	public synchronized long expires(String key) throws IOException {
+		int	index= _find(key);
 
-		if(has(key)) {
-			return false;
-		}
-		compress= new Deflater(Deflater.BEST_COMPRESSION, true);
-		compress.setInput(data);
-		compress.finish();
-		compressedData= new byte[dataLength];
-		compressedLength= compress.deflate(compressedData);
-		compressed= compressedLength < dataLength;
-		if(compressed) {
-			data= compressedData;
-			dataLength= compressedLength;
-		}
-		while( (index < _chunks.size()) && // look for a free chunk
-				(!_chunks.get(index).free() || (_chunks.get(index).size(keyData) < dataLength) ) ) {
-			++index;
+		if(index < 0) {
+			return 0;
 		}
-		if(index == _chunks.size()) { // no room to add it
-			if(doNotGrow) {
-				return false; // cannot grow the file
-			} else {
-				_chunks.add(new _Chunk(_storage.length(), key, keyData, data, 0, dataLength, compressed));
-			}
-		} else { // overwrite an existing free block
-			_Chunk	next= _chunks.get(index).allocate(key, keyData, data, 0, dataLength, compressed);
+		return _chunks.get(index).expires();
+	}
+	/** Removes expired keys, examining a limited number of chunks per call.
+		Each call continues where the last one left off, wrapping around at the end of the file.
+		@param maxToExamine	The maximum number of chunks to look at
+		@return				The number of keys removed
+		@throws IOException	If there are any IO errors
+	*/
+	public synchronized int expire(int maxToExamine) throws IOException {
+		long	now= System.currentTimeMillis();
+		int		removed= 0;
 
-			if(null != next) { // there is a free block after this one, add it
-				if( (index + 1 < _chunks.size()) && _chunks.get(index + 1).free() ) {
-					_chunks.get(index + 1).expandTo(next.offset(), 0); // the next block is free, expand it down
-				} else {
-					_chunks.add(index + 1, next);
-				}
+		for(int examined= 0; (examined < maxToExamine) && (_chunks.size() > 0); ++examined) {
+			if(_reapIndex >= _chunks.size()) {
+				_reapIndex= 0;
+			}
+			if(_chunks.get(_reapIndex).expired(now)) {
+				_reapIndex= _remove(_reapIndex);
+				++removed;
 			}
+			++_reapIndex;
 		}
-		return true;
+		return removed;
 	}
 	/** Gets the number of bytes used on disk for this storage file.
 		@return	The number of bytes on disk.
 		@throws IOException	If there are any IO errors
 	*/
-	public long size() throws IOException {
+	public synchronized long size() throws IOException {
 		return _storage.length();
 	}
 	/** Returns the total size in the storage file used for either free or key/data blocks.
@@ -199,7 +304,7 @@ public class StorageFile implements Storage {
 		@return			The number of bytes used
 		@throws IOException	If there are any IO errors
 	*/
-	public long size(boolean free) throws IOException {
+	public synchronized long size(boolean free) throws IOException {
 		long	size= 0;
 
 		for(_Chunk chunk : _chunks) {
@@ -209,16 +314,192 @@ public class StorageFile implements Storage {
 		}
 		return size;
 	}
+	/** Gets a point-in-time, read-only view of the file.
+		Changes made after the snapshot is taken are not visible through it.
+		The snapshot must be closed when done, or freed space will never be reused.
+		@return				A snapshot of the current keys and values
+		@throws IOException	If there are any IO errors
+	*/
+	public synchronized Snapshot snapshot() throws IOException {
+		Snapshot	snapshot= new Snapshot(_version);
+
+		_snapshots.add(snapshot);
+		return snapshot;
+	}
+	/** Pins the data of a key where it is in the file, so it can be sent straight from the file (ie HTTPServer.sendFile()).
+		The space is not reused until the slice is closed, even if the key is removed.
+		@param key	The unique key in the file.
+		@return		The data of the key in the file, or null if not found or the data is compressed (see getDeflated())
+		@throws IOException	If there are any IO errors
+	*/
+	public synchronized Slice slice(String key) throws IOException {
+		int		index= _find(key);
+		Slice	slice;
+
+		if( (index < 0) || _chunks.get(index).compressed() ) {
+			return null;
+		}
+		slice= new Slice(_chunks.get(index));
+		_snapshots.add(slice._pin);
+		return slice;
+	}
+	/** The data of a key, where it is in the file.
+		@see #slice(String)
+	*/
+	public class Slice {
+		/** The file, to read from (ie FileChannel.transferTo()) at position().
+			It is shared, so only use reads and transfers that take a position.
+			@return	The file's channel
+		*/
+		public FileChannel channel() {
+			return _storage.getChannel();
+		}
+		/** Where the data is.
+			@return	The offset in the file of the first byte of data
+		*/
+		public long position() {
+			return _position;
+		}
+		/** The size of the data.
+			@return	The number of bytes of data
+		*/
+		public long length() {
+			return _length;
+		}
+		/** Maps the data into memory, read-only.
+			@return	The data, valid until the slice is closed
+			@throws IOException	If there are any IO errors
+		*/
+		public MappedByteBuffer map() throws IOException {
+			return channel().map(FileChannel.MapMode.READ_ONLY, _position, _length);
+		}
+		/** Releases the slice, allowing the space to be reused once the key is removed.
+		*/
+		public void close() {
+			_pin.close();
+		}
+		/** <br>Precondition: The StorageFile lock must be held.
+			@param chunk	The chunk with the data
+			@throws IOException	If there are any IO errors
+		*/
+		private Slice(_Chunk chunk) throws IOException {
+			_position= chunk.offset() + chunk.headerSize();
+			_length= chunk.size();
+			_pin= new Snapshot(_version, false);
+		}
+		/** The offset of the data in the file */
+		private long		_position;
+		/** The size of the data */
+		private long		_length;
+		/** Holds space freed while the slice is open, as a snapshot does */
+		private Snapshot	_pin;
+	}
+	/** A point-in-time, read-only view of a StorageFile.
+		Each read only holds the file lock long enough to read that value, so writers are not blocked for the life of the snapshot.
+	*/
+	public class Snapshot {
+		/** The version of the file when this snapshot was taken.
+			@return	The number of changes made to the file (since it was opened) when the snapshot was taken
+		*/
+		public long version() {
+			return _snapshotVersion;
+		}
+		/** The keys in the snapshot.
+			@return	The keys, in file order
+			@throws IOException	If the snapshot has been closed
+		*/
+		public ArrayList<String> keys() throws IOException {
+			return new ArrayList<String>(_open().keySet());
+		}
+		/** Determines if the key was in the file when the snapshot was taken.
+			@param key	The key to look for.
+			@return		true if the key is in the snapshot, false if not
+			@throws IOException	If the snapshot has been closed
+		*/
+		public boolean has(String key) throws IOException {
+			return _open().containsKey(key);
+		}
+		/** Get the data for a given key as of when the snapshot was taken.
+			@param key	The unique key in the file.
+			@return		The data for the key, or null if not found.
+			@throws IOException	If there are any IO errors or the snapshot has been closed
+		*/
+		public byte[] get(String key) throws IOException {
+			_Chunk	chunk= _open().get(key);
+
+			if(null == chunk) {
+				return null;
+			}
+			synchronized(StorageFile.this) {
+				return _readChunk(chunk);
+			}
+		}
+		/** Releases the snapshot, allowing space freed since it was taken to be reused.
+		*/
+		public void close() {
+			synchronized(StorageFile.this) {
+				if(null != _snapshotChunks) {
+					_snapshotChunks= null;
+					_snapshots.remove(this);
+					_unpin();
+				}
+			}
+		}
+		/** Copies the allocated, unexpired chunks.
+			<br>Precondition: The StorageFile lock must be held.
+			@param version		The version of the file
+			@throws IOException	If there are any IO errors
+		*/
+		private Snapshot(long version) throws IOException {
+			this(version, true);
+		}
+		/** <br>Precondition: The StorageFile lock must be held.
+			@param version		The version of the file
+			@param copy			false to only hold freed space (see Slice), without copying the chunks
+			@throws IOException	If there are any IO errors
+		*/
+		private Snapshot(long version, boolean copy) throws IOException {
+			long	now= System.currentTimeMillis();
+
+			_snapshotVersion= version;
+			_snapshotChunks= new LinkedHashMap<String,_Chunk>();
+			if(!copy) {
+				return;
+			}
+			for(_Chunk chunk : _chunks) {
+				if(!chunk.free() && !chunk.expired(now)) {
+					_snapshotChunks.put(chunk.key(), new _Chunk(chunk));
+				}
+			}
+		}
+		/** The version of the file when this snapshot was taken */
+		private long							_snapshotVersion;
+		/** Copies of the chunks as they were when the snapshot was taken, null when closed */
+		private volatile LinkedHashMap<String,_Chunk>	_snapshotChunks;
+
+		/** Gets the chunks, once, so close() can not clear them between the check and the use.
+			@return	The chunks as they were when the snapshot was taken
+			@throws IOException	If the snapshot has been closed
+		*/
+		private LinkedHashMap<String,_Chunk> _open() throws IOException {
+			LinkedHashMap<String,_Chunk>	chunks= _snapshotChunks;
+
+			if(null == chunks) {
+				throw new IOException("Snapshot closed");
+			}
+			return chunks;
+		}
+	}
 	/** Dumps the layout of the file to System.err.
 		@throws IOException	If there are any IO errors
 	*/
-	public void dump() throws IOException {
+	public synchronized void dump() throws IOException {
 		System.err.println("_firstChunk="+_firstChunk+" size="+_storage.length());
 		for(_Chunk chunk : _chunks) {
 			if(chunk.free()) {
 				System.err.println("\t"+"(offset="+chunk.offset()+" next="+chunk.next()+" size="+chunk.size()+")");
 			} else {
-				System.err.println("\t"+chunk.key()+"="+(new String(_readChunk(chunk)))+" (offset="+chunk.offset()+" next="+chunk.next()+" compressed="+chunk.compressed()+" size="+chunk.size()+")");
+				System.err.println("\t"+chunk.key()+"="+(new String(_readChunk(chunk)))+" (offset="+chunk.offset()+" next="+chunk.next()+" compressed="+chunk.compressed()+" keyCompressed="+chunk.keyCompressed()+" expires="+chunk.expires()+" size="+chunk.size()+")");
 			}
 		}
 	}
@@ -234,58 +515,53 @@ public class StorageFile implements Storage {
 			_offset= offset;
 			_readFlags(); // sets _flags
 			if( (_flags & _smallFreeFlag) != 0 ) {
-				_smallFreeBlock(); // sets _next, _key, _headerSize
+				_smallFreeBlock(); // sets _next, _keyData, _headerSize
 			} else {
-				long	size= _readSizeBlock(); // sets _next, _key, _headerSize if free
+				long	size= _readSizeBlock(); // sets _next, _keyData, _headerSize if free
 
 				if(size >= 0) { // not a free block
 					_readKey(); // sets _headerSize
+					_readExpires(); // updates _headerSize
 					_next= _offset + _headerSize + size;
 				}
 			}
 		}
-		/** Writes a chunk at the given offset, with the key and data.
-			These chunks are only intended to be appended to the end or completely fill a block.
-			@param offset		The offset in the file to store key/data
-			@param key			The key as a String
-			@param keyData		The key as a byte[], this is to cut down on the conversions to byte[]
-			@param data			The data to associate with the key
-			@param compressed	Is data compressed
-			@throws IOException	If there are any IO errors or if we split a free block
+		/** Copy of a chunk, so it will not change if the original is freed or reallocated.
+			@param other	The chunk to copy
 		*/
-		public _Chunk(long offset, String key, byte[] keyData, byte[] data, boolean compressed) throws IOException {
-			_offset= offset;
-			_key= null;
-			_flags= _freeFlag;
-			_next= _offset
-				+ 1 // flags
-				+ 4 // data length
-				+ 2 // key length
-				+ keyData.length + data.length;
-			if(null != allocate(key, keyData, data, 0, data.length, compressed)) {
-				throw new IOException("Tail allocation added chunk!");
-			}
+		public _Chunk(_Chunk other) {
+			_offset= other._offset;
+			_next= other._next;
+			_keyData= other._keyData;
+			_expires= other._expires;
+			_flags= other._flags;
+			_headerSize= other._headerSize;
 		}
 		/** Writes a chunk at the given offset, with the key and data.
+			These chunks are only intended to be appended to the end or completely fill a block.
 			@param offset		The offset in the file to store key/data
-			@param key			The key as a String
-			@param keyData		The key as a byte[], this is to cut down on the conversions to byte[]
+			@param keyData		The key as stored on disk
+			@param keyCompressed	Is keyData compressed
+			@param expires		When the key expires in milliseconds since the epoch, 0 means never
 			@param data			The data to associate with the key
 			@param off			The offset in data where the real data begins
 			@param len			The number of actual data bytes to use
 			@param compressed	Is data compressed
 			@throws IOException	If there are any IO errors or if we split a free block
 		*/
-		public _Chunk(long offset, String key, byte[] keyData, byte[] data, int off, int len, boolean compressed) throws IOException {
+		public _Chunk(long offset, byte[] keyData, boolean keyCompressed, long expires, byte[] data, int off, int len, boolean compressed) throws IOException {
 			_offset= offset;
-			_key= null;
+			_keyData= null;
 			_flags= _freeFlag;
 			_next= _offset
 				+ 1 // flags
 				+ 4 // data length
 				+ 2 // key length
-				+ keyData.length + data.length;
-			if(null != allocate(key, keyData, data, off, len, compressed)) {
+				+ keyData.length + len;
+			if(0 != expires) {
+				_next+= 8; // expiration time
+			}
+			if(null != allocate(keyData, keyCompressed, expires, data, off, len, compressed)) {
 				throw new IOException("Tail allocation added chunk!");
 			}
 		}
@@ -307,17 +583,9 @@ public class StorageFile implements Storage {
 			_free();
 		}
 		/** Allocates a data chunk.
-			@param key			The key as a String
-			@param data			The data to associate with the key
-			@param compressed	Is data compressed
-			@return no-null if there is a free chunk created after this one
-			@throws IOException	If there are any IO errors, we're allocating an already allocated block or will not contain the key/data
-		*/
-		public _Chunk allocate(String key, byte[] data, boolean compressed) throws IOException {
-			return allocate(key, key.getBytes("UTF-8"), data, 0, data.length, compressed);
-		}
-		/** Allocates a data chunk.
-			@param key			The key as a String
+			@param keyData		The key as stored on disk
+			@param keyCompressed	Is keyData compressed
+			@param expires		When the key expires in milliseconds since the epoch, 0 means never
 			@param data			The data to associate with the key
 			@param offset		The offset in data where the real data begins
 			@param length		The number of actual data bytes to use
@@ -325,33 +593,13 @@ public class StorageFile implements Storage {
 			@return no-null if there is a free chunk created after this one
 			@throws IOException	If there are any IO errors, we're allocating an already allocated block or will not contain the key/data
 		*/
-		public _Chunk allocate(String key, byte[] data, int offset, int length, boolean compressed) throws IOException {
-			return allocate(key, key.getBytes("UTF-8"), data, offset, length, compressed);
-		}
-		/** Allocates a data chunk.
-			@param key			The key as a String
-			@param keyData		The key as a byte[], this is to cut down on the conversions to byte[]
-			@param data			The data to associate with the key
-			@param compressed	Is data compressed
-			@return no-null if there is a free chunk created after this one
-			@throws IOException	If there are any IO errors, we're allocating an already allocated block or will not contain the key/data
-		*/
-		public _Chunk allocate(String key, byte[] keyData, byte[] data, boolean compressed) throws IOException {
-			return allocate(key, keyData, data, 0, data.length, compressed);
-		}
-		/** Allocates a data chunk.
-			@param key			The key as a String
-			@param keyData		The key as a byte[], this is to cut down on the conversions to byte[]
-			@param data			The data to associate with the key
-			@param offset		The offset in data where the real data begins
-			@param length		The number of actual data bytes to use
-			@param compressed	Is data compressed
-			@return no-null if there is a free chunk created after this one
-			@throws IOException	If there are any IO errors, we're allocating an already allocated block or will not contain the key/data
-		*/
-		public _Chunk allocate(String key, byte[] keyData, byte[] data, int offset, int length, boolean compressed) throws IOException {
+		public _Chunk allocate(byte[] keyData, boolean keyCompressed, long expires, byte[] data, int offset, int length, boolean compressed) throws IOException {
 			int		proposedHeaderSize= 1 + 4 + 2 + keyData.length;
 
+			if(0 != expires) {
+				proposedHeaderSize+= 8; // expiration time
+			}
+
 			if(!free()) {
 				throw new IOException("Trying to allocate an already allocated block");
 			}
@@ -359,17 +607,26 @@ public class StorageFile implements Storage {
 				throw new IOException("Data does not fit in free block");
 			}
 			_headerSize= proposedHeaderSize;
+			_flags= 0;
 			if(compressed) {
-				_flags= _compressedFlag;
-			} else {
-				_flags= 0;
+				_flags|= _compressedFlag;
+			}
+			if(keyCompressed) {
+				_flags|= _compressedKeyFlag;
+			}
+			if(0 != expires) {
+				_flags|= _expiresFlag;
 			}
-			_key= key;
+			_keyData= keyData;
+			_expires= expires;
 			_storage.seek(_offset);
 			_storage.writeByte(_flags);
 			_storage.writeInt(length);
 			_storage.writeShort(keyData.length);
 			_storage.write(keyData);
+			if(0 != expires) {
+				_storage.writeLong(expires);
+			}
 			_storage.write(data, offset, length);
 			if(_offset + _headerSize + length < _next) { // create free block for space after this block
 				_Chunk	next= new _Chunk(_offset + _headerSize + length, _next);
@@ -382,7 +639,7 @@ public class StorageFile implements Storage {
 			@return 	true if this chunk is available for use, false if it currently has a key
 		*/
 		public boolean free() {
-			return null == _key;
+			return null == _keyData;
 		}
 		/** Determines if the data in this chunk is compressed.
 			@return		true if the data returned by get should be decompressed, false if it can be used as is
@@ -390,6 +647,43 @@ public class StorageFile implements Storage {
 		public boolean compressed() {
 			return (_flags & _compressedFlag) != 0;
 		}
+		/** Determines if the key in this chunk is compressed.
+			@return		true if the key on disk (and in memory) is in the compressed key format
+		*/
+		public boolean keyCompressed() {
+			return (_flags & _compressedKeyFlag) != 0;
+		}
+		/** When this chunk's key expires.
+			@return		Milliseconds since the epoch when the key expires, 0 if it never expires or the chunk is free
+		*/
+		public long expires() {
+			return _expires;
+		}
+		/** Determines if this chunk holds a key that has expired.
+			@param now	The current time in milliseconds since the epoch
+			@return		true if the chunk is allocated and its key expired at or before now
+		*/
+		public boolean expired(long now) {
+			return !free() && (0 != _expires) && (_expires <= now);
+		}
+		/** A string that is unique to this chunk's key, without decompressing the key.
+			@return	The identity of the key, as _keyIdentity would return, or null if free
+			@throws IOException	If there are any IO errors
+		*/
+		public String identity() throws IOException {
+			if(free()) {
+				return null;
+			}
+			return _identity(_keyData, keyCompressed());
+		}
+		/** Determines if this chunk holds the given key.
+			@param keyData			The key as it would be stored on disk
+			@param keyCompressed	Is keyData compressed
+			@return					true if this chunk is allocated to that key
+		*/
+		public boolean matches(byte[] keyData, boolean keyCompressed) {
+			return !free() && (keyCompressed() == keyCompressed) && Arrays.equals(_keyData, keyData);
+		}
 		/** Marks this block as available for use
 			@throws IOException	If there are any IO errors, or this chunk is already free
 		*/
@@ -423,6 +717,12 @@ public class StorageFile implements Storage {
 		public long offset() {
 			return _offset;
 		}
+		/** The size of the header.
+			@return	The number of bytes from offset() to the data
+		*/
+		public int headerSize() {
+			return _headerSize;
+		}
 		/** The offset of the next block.
 			@return	The offset of the next block, or the end of the file if this is the last chunk.
 		*/
@@ -431,9 +731,16 @@ public class StorageFile implements Storage {
 		}
 		/** The key for this chunk, or null if this chunk is not allocated
 			@return	The key for this chunk, or null if this chunk is not allocated
+			@throws IOException	If the key is corrupt
 		*/
-		public String key() {
-			return _key;
+		public String key() throws IOException {
+			if(free()) {
+				return null;
+			}
+			if(keyCompressed()) {
+				return _decompressKey(_keyData);
+			}
+			return new String(_keyData, "UTF-8");
 		}
 		/** Gets the data for this chunk.
 			@return	The raw bytes for this chunk from the disk
@@ -446,12 +753,27 @@ public class StorageFile implements Storage {
 			_storage.readFully(data);
 			return data;
 		}
+		/** Gets part of the data for this chunk.
+			@param offset	The offset in the data to start at
+			@param length	The maximum number of bytes to get
+			@return			The raw bytes from the disk, fewer than length if the chunk ends first
+			@throws IOException	If there are any IO errors
+		*/
+		public byte[] get(long offset, int length) throws IOException {
+			byte[]	data= new byte[(int)Math.max(0, Math.min(length, size() - offset))];
+
+			_storage.seek(_offset + _headerSize + offset);
+			_storage.readFully(data);
+			return data;
+		}
 		/** The offset of this chunk in the file */
 		private long	_offset;
 		/** The offset of the next chunk in the file */
 		private long	_next;
-		/** The key of the chunk, or if null == _key, it's a free block */
-		private String	_key;
+		/** The key of the chunk as stored on disk, or if null == _keyData, it's a free block */
+		private byte[]	_keyData;
+		/** When the key expires in milliseconds since the epoch, 0 means never */
+		private long	_expires;
 		/** The flags stored with the chunk on disk */
 		private int		_flags;
 		/** The size of the header. _offset + _headerSize would be the offset of the data */
@@ -488,7 +810,7 @@ public class StorageFile implements Storage {
 		private void _smallFreeBlock() {
 			long	size= _flags & ~_smallFreeFlag;
 
-			_key= null; // free block
+			_keyData= null; // free block
 			_headerSize= 1;
 			_next= _offset + _headerSize + size; // size does not include flags byte
 		}
@@ -496,7 +818,7 @@ public class StorageFile implements Storage {
 			<br>Precondition:	_flags must be set correctly.
 			<br>Precondition: Must have just read the flags byte from the chunk
 			<br>Precondition: must not be called for a small free block
-			<br>Postcondition:	_key is set if it is free.
+			<br>Postcondition:	_keyData is set if it is free.
 			<br>Postcondition:	_headerSize is set if it is free.
 			<br>Postcondition:	_next is set if it is free.
 			@return	The size of the data if the block is allocated, -1 if it is a free block
@@ -505,8 +827,8 @@ public class StorageFile implements Storage {
 		private long _readSizeBlock() throws IOException {
 			long	size= _storage.readInt();
 
-			if( (_flags & _freeFlag) == 0 ) {
-				_key= null;
+			if( (_flags & _freeFlag) != 0 ) {
+				_keyData= null;
 				_headerSize= 1 + 4;
 				_next= _offset + _headerSize + size;
 				return -1;
@@ -515,22 +837,33 @@ public class StorageFile implements Storage {
 		}
 		/** Reads the key from the block.
 			<br>Precondition: Must have just read the data size
-			<br>Postcondition:	_key is set.
+			<br>Postcondition:	_keyData is set.
 			<br>Postcondition:	_headerSize is set.
 			@throws IOException	If there are any IO errors
 		*/
 		private void _readKey() throws IOException {
 			int		keySize= _storage.readShort();
-			byte[]	keyBuffer;
 
 			if(keySize < 0) {
 				keySize+= 65536; // make it unsigned
 			}
-			keyBuffer= new byte[keySize];
-			_storage.readFully(keyBuffer);
-			_key= new String(keyBuffer, "UTF-8");
+			_keyData= new byte[keySize];
+			_storage.readFully(_keyData);
 			_headerSize= 1 + 4 + 2 + keySize;
 		}
+		/** Reads the expiration time from the block, if it has one.
+			<br>Precondition: Must have just read the key
+			<br>Postcondition:	_expires is set.
+			<br>Postcondition:	_headerSize is updated.
+			@throws IOException	If there are any IO errors
+		*/
+		private void _readExpires() throws IOException {
+			_expires= 0;
+			if( (_flags & _expiresFlag) != 0 ) {
+				_expires= _storage.readLong();
+				_headerSize+= 8;
+			}
+		}
 		/** Marks a block as free in memory and on disk.
 			<br>Postcondition: _headerSize is set
 			<br>Postcondition: _flags set
@@ -552,7 +885,8 @@ public class StorageFile implements Storage {
 				_headerSize+= 4; // 4 == length number bytes
 				_storage.writeInt(fullSize - 4); // 4 == length number bytes
 			}
-			_key= null;
+			_keyData= null;
+			_expires= 0;
 		}
 	}
 	/** The file we are using for storage. */
@@ -561,22 +895,36 @@ public class StorageFile implements Storage {
 	private ArrayList<_Chunk>		_chunks;
 	/** The offset of the first chunk in the file */
 	private long					_firstChunk;
+	/** The index in _chunks that the next call to expire() starts at */
+	private int						_reapIndex;
+	/** The number of changes (put or remove) made since the file was opened */
+	private long					_version;
+	/** The snapshots that have not been closed */
+	private ArrayList<Snapshot>		_snapshots;
+	/** Space freed while snapshots were open, that older snapshots may still read */
+	private ArrayList<_Range>		_pinned;
 	/** The signature, first bytes, of a validate storage file */
 	private static final byte[]		_signature= new byte[]{-119,'S','T','O','R','0','0',13,10,26,10};
 	/** Large free block. This block is bigger than 128 bytes. */
 	private static final int		_freeFlag=			0x01;
 	/** The data is stored on disk in a zlib compressed format */
 	private static final int		_compressedFlag=	0x02;
-	/** The key is stored on disk in a zlib compressed format. Currently unused */
+	/** The key is stored on disk as a dictionary prefix followed by packed hex digits */
 	private static final int		_compressedKeyFlag=	0x04;
 	/** The data for this key is stored in another key. The other key is the data of this chunk. Currently unused */
 	private static final int		_indirectKeyFlag=	0x08;
+	/** The key has an expiration time stored after it */
+	private static final int		_expiresFlag=		0x10;
 	/** Flag in the flags byte on disk that means this block is a small free block (total size <= 128).
 		The rest of the flags byte is not flags but the number of free bytes following the flags byte.
 	*/
 	private static final int		_smallFreeFlag=		0x80;
 	/** The (non-small free block) flags that are not currently used. */
-	private static final int		_illegalFlags= ~(_freeFlag | _compressedFlag | _smallFreeFlag /* _compressedKeyFlag | _indirectKeyFlag */);
+	private static final int		_illegalFlags= ~(_freeFlag | _compressedFlag | _compressedKeyFlag | _expiresFlag | _smallFreeFlag /* _indirectKeyFlag */);
+	/** Common key prefixes, index+1 is stored as the first byte of a compressed key. Only append to this list. */
+	private static final String[]	_keyPrefixes= "hash/MD5/,hash/SHA-1/,hash/SHA-256/,hash/SHA-384/,hash/SHA-512/".split(",");
+	/** The hex digits that can be packed in a compressed key */
+	private static final String		_hexDigits= "0123456789abcdef";
 	/** The size of chunks to grow the decompression buffer by. @see _readChunk(_Chunk) */
 	private static final int		_decompresGrowthChunk= 4096;
 
@@ -594,6 +942,278 @@ public class StorageFile implements Storage {
 			next= nextChunk.next();
 		}
 	}
+	/** Finds the allocated chunk for a key.
+		If the key has expired, it is removed and treated as not found.
+		@param key			The key to look for
+		@return				The index in _chunks of the chunk for key, or -1 if not found
+		@throws IOException	If there are any IO errors
+	*/
+	private int _find(String key) throws IOException {
+		byte[]	keyData= _compressKey(key);
+		boolean	keyCompressed= null != keyData;
+
+		if(!keyCompressed) {
+			keyData= key.getBytes("UTF-8");
+		}
+		for(int index= 0; index < _chunks.size(); ++index) {
+			if(_chunks.get(index).matches(keyData, keyCompressed)) {
+				if(_chunks.get(index).expired(System.currentTimeMillis())) {
+					_remove(index);
+					return -1;
+				}
+				return index;
+			}
+		}
+		return -1;
+	}
+	/** Stores a given key/data pair in the file.
+		If the key exists already in the file, nothing will be done.
+		@param key			The key for the data.
+		@param data			The data to store in the file.
+		@param doNotGrow	If true, the file will not be expanded to add this key/data
+		@param expires		When the key expires in milliseconds since the epoch, 0 means never
+		@return				true if the key/data were added, false if the key already exists in the file
+		@throws IOException	If there are any IO errors
+	*/
+	private boolean _put(String key, byte[] data, boolean doNotGrow, long expires) throws IOException {
+		boolean		compressed, keyCompressed;
+		byte[]		keyData= _compressKey(key), compressedData;
+		int			index= 0, metadata= 0;
+		int			dataLength= data.length, compressedLength;
+		Deflater	compress;
+
+		if(_find(key) >= 0) {
+			return false;
+		}
+		keyCompressed= null != keyData;
+		if(!keyCompressed) {
+			keyData= key.getBytes("UTF-8");
+		}
+		if(0 != expires) {
+			metadata= 8; // expiration time
+		}
+		compress= new Deflater(Deflater.BEST_COMPRESSION, true);
+		compress.setInput(data);
+		compress.finish();
+		compressedData= new byte[dataLength];
+		compressedLength= compress.deflate(compressedData);
+		compressed= compressedLength < dataLength;
+		if(compressed) {
+			data= compressedData;
+			dataLength= compressedLength;
+		}
+		while( (index < _chunks.size()) && // look for a free chunk
+				(!_chunks.get(index).free() || (_chunks.get(index).size(keyData) < dataLength + metadata) || _isPinned(_chunks.get(index)) ) ) {
+			++index;
+		}
+		if(index == _chunks.size()) { // no room to add it
+			if(doNotGrow) {
+				return false; // cannot grow the file
+			} else {
+				_chunks.add(new _Chunk(_storage.length(), keyData, keyCompressed, expires, data, 0, dataLength, compressed));
+			}
+		} else { // overwrite an existing free block
+			_Chunk	next= _chunks.get(index).allocate(keyData, keyCompressed, expires, data, 0, dataLength, compressed);
+
+			if(null != next) { // there is a free block after this one, add it
+				if( (index + 1 < _chunks.size()) && _chunks.get(index + 1).free() ) {
+					_chunks.get(index + 1).expandTo(next.offset(), 0); // the next block is free, expand it down
+				} else {
+					_chunks.add(index + 1, next);
+				}
+			}
+		}
+		++_version;
+		return true;
+	}
+	/** Frees a chunk, consolidating it with any free chunks around it.
+		@param index		The index in _chunks of the allocated chunk to free
+		@return				The index in _chunks of the free chunk that now contains the freed space
+		@throws IOException	If there are any IO errors
+	*/
+	private int _remove(int index) throws IOException {
+		int	prefixFree= index, suffixFree= index;
+
+		++_version;
+		if(!_snapshots.isEmpty()) {
+			_pinned.add(new _Range(_chunks.get(index).offset(), _chunks.get(index).next(), _version));
+		}
+
+		while( (prefixFree - 1 >= 0) && _chunks.get(prefixFree - 1).free() ) {
+			--prefixFree;
+		}
+		while( (suffixFree + 1 < _chunks.size()) && _chunks.get(suffixFree + 1).free() ) {
+			++suffixFree;
+		}
+		if(suffixFree - prefixFree == 0) { // no surrounding free blocks
+			_chunks.get(index).makeFree();
+		} else {
+			_Chunk	firstBlock= _chunks.get(prefixFree);
+
+			if(!firstBlock.free()) {
+				firstBlock.makeFree(); // no free blocks before removed one
+			}
+			firstBlock.expandTo(0, _chunks.get(suffixFree).next()); // expand 1st empty block
+			for(index= prefixFree + 1; index <= suffixFree; ++index) {
+				_chunks.remove(prefixFree + 1); // remove free blocks consolidated into this one
+			}
+		}
+		return prefixFree;
+	}
+	/** Space in the file freed at a given version.
+	*/
+	private static class _Range {
+		/** @param offset	The start of the space
+			@param next		The end of the space
+			@param version	The version of the file when the space was freed
+		*/
+		public _Range(long offset, long next, long version) {
+			this.offset= offset;
+			this.next= next;
+			this.version= version;
+		}
+		/** The start of the space */
+		public long	offset;
+		/** The end of the space */
+		public long	next;
+		/** The version of the file when the space was freed */
+		public long	version;
+	}
+	/** Determines if any part of a chunk may still be read by an open snapshot.
+		@param chunk	The free chunk to check
+		@return			true if the chunk overlaps space freed after the oldest open snapshot was taken
+	*/
+	private boolean _isPinned(_Chunk chunk) {
+		for(_Range range : _pinned) {
+			if( (range.offset < chunk.next()) && (chunk.offset() < range.next) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+	/** Drops pinned space that no open snapshot can read anymore.
+		Space freed at version F is needed by snapshots taken at a version before F.
+	*/
+	private void _unpin() {
+		long	oldest= Long.MAX_VALUE;
+
+		for(Snapshot snapshot : _snapshots) {
+			if(snapshot.version() < oldest) {
+				oldest= snapshot.version();
+			}
+		}
+		for(int index= _pinned.size() - 1; index >= 0; --index) {
+			if(_pinned.get(index).version <= oldest) {
+				_pinned.remove(index);
+			}
+		}
+	}
+	/** A string unique to a key as it would be stored, cheap to compare with chunk identities.
+		@param key			The key
+		@return				The identity of the key
+		@throws IOException	If there are any IO errors
+	*/
+	private static String _keyIdentity(String key) throws IOException {
+		byte[]	keyData= _compressKey(key);
+
+		if(null == keyData) {
+			return _identity(key.getBytes("UTF-8"), false);
+		}
+		return _identity(keyData, true);
+	}
+	/** @param keyData			The key as stored on disk
+		@param keyCompressed	Is keyData compressed
+		@return					A string with one character per byte of keyData, prefixed by whether it is compressed
+		@throws IOException		If there are any IO errors
+	*/
+	private static String _identity(byte[] keyData, boolean keyCompressed) throws IOException {
+		return (keyCompressed ? "C" : "U") + new String(keyData, "ISO-8859-1");
+	}
+	/** Compresses a key that is a prefix (ie hash/SHA-512/) followed by an even number of lowercase hex digits.
+		@param key			The key to compress
+		@return				The compressed key, or null if the key does not compress
+		@throws IOException	If there are any IO errors
+	*/
+	private static byte[] _compressKey(String key) throws IOException {
+		int		hexStart= key.lastIndexOf('/') + 1;
+		int		hexLength= key.length() - hexStart;
+		int		dictionary= 0;
+		byte[]	prefix, compressed;
+		int		offset;
+
+		if( (hexLength == 0) || (hexLength % 2 != 0) ) {
+			return null;
+		}
+		for(int index= hexStart; index < key.length(); ++index) {
+			if(_hexDigits.indexOf(key.charAt(index)) < 0) {
+				return null;
+			}
+		}
+		for(int index= 0; (dictionary == 0) && (index < _keyPrefixes.length); ++index) {
+			if( (_keyPrefixes[index].length() == hexStart) && key.startsWith(_keyPrefixes[index]) ) {
+				dictionary= index + 1;
+			}
+		}
+		if(dictionary != 0) {
+			prefix= new byte[0];
+			compressed= new byte[1 + hexLength / 2];
+			offset= 1;
+		} else {
+			prefix= key.substring(0, hexStart).getBytes("UTF-8");
+			if(prefix.length > 255) {
+				return null;
+			}
+			compressed= new byte[2 + prefix.length + hexLength / 2];
+			compressed[1]= (byte)prefix.length;
+			System.arraycopy(prefix, 0, compressed, 2, prefix.length);
+			offset= 2 + prefix.length;
+		}
+		compressed[0]= (byte)dictionary;
+		for(int index= hexStart; index < key.length(); index+= 2) {
+			compressed[offset]= (byte)((_hexDigits.indexOf(key.charAt(index)) << 4) | _hexDigits.indexOf(key.charAt(index + 1)));
+			++offset;
+		}
+		return compressed;
+	}
+	/** Expands a key compressed with _compressKey.
+		@param compressed	The compressed key data
+		@return				The original key
+		@throws IOException	If there are any IO errors or the compressed key is corrupt
+	*/
+	private static String _decompressKey(byte[] compressed) throws IOException {
+		int				dictionary= compressed[0] & 0xFF;
+		int				offset= 1;
+		StringBuilder	key= new StringBuilder();
+
+		if(dictionary > _keyPrefixes.length) {
+			throw new IOException("Corrupt Storage File: unknown key prefix "+dictionary);
+		}
+		if(dictionary > 0) {
+			key.append(_keyPrefixes[dictionary - 1]);
+		} else {
+			int	prefixLength= compressed[1] & 0xFF;
+
+			key.append(new String(compressed, 2, prefixLength, "UTF-8"));
+			offset= 2 + prefixLength;
+		}
+		for(; offset < compressed.length; ++offset) {
+			key.append(_hexDigits.charAt((compressed[offset] >> 4) & 0x0F));
+			key.append(_hexDigits.charAt(compressed[offset] & 0x0F));
+		}
+		return key.toString();
+	}
+	/** Gets part of an array.
+		@param data		The whole array
+		@param offset	The offset in data to start at
+		@param length	The maximum number of bytes to get
+		@return			The bytes from offset, fewer than length if data ends first
+	*/
+	private static byte[] _slice(byte[] data, long offset, int length) {
+		byte[]	slice= new byte[(int)Math.max(0, Math.min(length, data.length - offset))];
+
+		System.arraycopy(data, (int)Math.min(offset, data.length), slice, 0, slice.length);
+		return slice;
+	}
 	/** Reads the data from the given chunk, handling compression if necessary.
 		@param chunk		The chunk to read the data from
 		@throws IOException	If there are any IO errors
@@ -678,6 +1298,84 @@ public class StorageFile implements Storage {
 			if(!f.remove("trying")) {
 				System.err.println("Says it did not removed trying");
 			}
+			String	hashKey= "hash/SHA-1/0123456789abcdef0123456789abcdef01234567";
+			String	otherKey= "other/prefix/00ff";
+
+			f.put(hashKey, "hashed".getBytes());
+			f.put(otherKey, "other".getBytes());
+			f= new StorageFile(new File(args[0]));
+			if(!f.has(hashKey) || !"hashed".equals(new String(f.get(hashKey)))) {
+				System.err.println("compressed key not found after reopen");
+			}
+			if(!f.has(otherKey) || !"other".equals(new String(f.get(otherKey)))) {
+				System.err.println("compressed key with literal prefix not found after reopen");
+			}
+			ArrayList<String>	ordered= f.inFileOrder(Arrays.asList(otherKey, "missing", hashKey, otherKey, "missing"));
+
+			if( (ordered.size() != 5) || !ordered.subList(3, 5).equals(Arrays.asList("missing", "missing")) ) {
+				System.err.println("inFileOrder did not return every key: "+ordered);
+			}
+			if(f.has("hash/SHA-1/0123456789ABCDEF0123456789ABCDEF01234567")) {
+				System.err.println("compressed key should be case sensitive");
+			}
+			if(!f.remove(hashKey) || !f.remove(otherKey)) {
+				System.err.println("Says it did not remove compressed keys");
+			}
+			long	fileSize;
+
+			f.put("expiring", "expiring value".getBytes(), 1);
+			fileSize= f.size();
+			try	{
+				Thread.sleep(10);
+			} catch(InterruptedException e) {
+			}
+			f= new StorageFile(new File(args[0]));
+			if(f.has("expiring")) {
+				System.err.println("Says it has expiring, but it should have expired");
+			}
+			f.put("reusing", "expired space".getBytes());
+			if(f.size() != fileSize) {
+				System.err.println("Expired space was not reused");
+			}
+			f.remove("reusing");
+			f.put("before", "snapshot".getBytes());
+			StorageFile.Snapshot	snapshot= f.snapshot();
+
+			f.remove("before");
+			f.put("after", "snapshot".getBytes());
+			if(!snapshot.has("before") || snapshot.has("after")) {
+				System.err.println("Snapshot does not have the point-in-time keys");
+			}
+			if(!"snapshot".equals(new String(snapshot.get("before")))) {
+				System.err.println("Snapshot data was overwritten after remove");
+			}
+			snapshot.close();
+			try	{
+				snapshot.has("after");
+				System.err.println("Closed snapshot did not throw");
+			} catch(IOException exception) {
+				// expected
+			}
+			StorageFile.Slice	slice= f.slice("after");
+
+			f.remove("after");
+			f.put("overwrite", "the slice".getBytes());
+			buffer= new byte[(int)slice.length()];
+			slice.map().get(buffer);
+			if(!"snapshot".equals(new String(buffer))) {
+				System.err.println("Slice data was overwritten after remove");
+			}
+			slice.close();
+			f.remove("overwrite");
+			f.put("deflated", "                              ".getBytes());
+			buffer= f.getDeflated("deflated");
+			if( (null == buffer) || (buffer.length >= 30) ) {
+				System.err.println("deflated value should be stored compressed");
+			}
+			if(null != f.getDeflated("after")) {
+				System.err.println("Says it has deflated data for a removed key");
+			}
+			f.remove("deflated");
 		} catch(IOException exception) {
 			exception.printStackTrace();
 			System.err.println(exception);
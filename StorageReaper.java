@@ -0,0 +1,109 @@
+import java.io.File;
+import java.io.IOException;
+
+/** Background thread that periodically removes expired keys from a Storage.
+	Each tick only examines a limited number of entries so the store is never locked for long.
+	@see Storage#expire(int)
+*/
+public class StorageReaper extends Thread {
+	/** Starts reaping a store.
+		@param store					The store to remove expired keys from
+		@param intervalInMilliseconds	The time to wait between ticks
+		@param maxPerTick				The maximum number of entries to examine each tick
+	*/
+	public StorageReaper(Storage store, long intervalInMilliseconds, int maxPerTick) {
+		_store= store;
+		_interval= intervalInMilliseconds;
+		_maxPerTick= maxPerTick;
+		_done= false;
+		_removed= 0;
+		_exception= null;
+		setDaemon(true);
+		start();
+	}
+	/** Requests the reaper to stop.
+	*/
+	public void terminate() {
+		_done= true;
+		interrupt();
+	}
+	/** The number of keys removed so far.
+		@return	The number of expired keys this reaper has removed
+	*/
+	public long removed() {
+		return _removed;
+	}
+	/** The last error from the store.
+		@return	The last exception thrown by the store, or null if there have been none
+	*/
+	public IOException exception() {
+		return _exception;
+	}
+	/** The reaper thread.
+		If a tick examines its full quota and finds expired keys, the next tick starts immediately.
+	*/
+	public void run() {
+		while(!_done) {
+			int	removed= 0;
+
+			try	{
+				removed= _store.expire(_maxPerTick);
+				_removed+= removed;
+			} catch(IOException exception) {
+				_exception= exception;
+			}
+			if(removed < _maxPerTick) {
+				try	{
+					Thread.sleep(_interval);
+				} catch(InterruptedException e) {
+					// terminate() or spurious, check _done
+				}
+			}
+		}
+	}
+	/** The store to remove expired keys from */
+	private Storage				_store;
+	/** The time to wait between ticks */
+	private long				_interval;
+	/** The maximum number of entries to examine each tick */
+	private int					_maxPerTick;
+	/** Are we shutting down */
+	private volatile boolean	_done;
+	/** The number of keys removed so far */
+	private volatile long		_removed;
+	/** The last error from the store */
+	private volatile IOException	_exception;
+
+	/** Test.
+		@param args	One argument, the path to the storage file.
+	*/
+	public static void main(String... args) {
+		try	{
+			StorageFile		store= new StorageFile(new File(args[0]));
+			StorageReaper	reaper;
+
+			for(int i= 0; i < 100; ++i) {
+				store.put("expiring"+i, ("value "+i).getBytes(), 50);
+			}
+			store.put("lasting", "forever".getBytes());
+			reaper= new StorageReaper(store, 10, 16);
+			Thread.sleep(500);
+			reaper.terminate();
+			if(reaper.removed() != 100) {
+				System.err.println("Expected 100 removed, but removed "+reaper.removed());
+			}
+			if(null != reaper.exception()) {
+				System.err.println(reaper.exception());
+			}
+			if(!store.has("lasting")) {
+				System.err.println("Should still have lasting");
+			}
+			if(store.size(false) != store.size() - 15 - store.size(true)) {
+				System.err.println("Freed space not accounted for");
+			}
+			store.remove("lasting");
+		} catch(Exception exception) {
+			exception.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,200 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.security.KeyStore;
+import java.security.GeneralSecurityException;
+import java.security.cert.Certificate;
+import java.util.Enumeration;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+
+/** Terminates TLS in SocketServer and SelectorServer, instead of in a separate proxy.
+	A server given an SSLContext from context() serves every connection over TLS.
+	Sessions are cached, so a client that reconnects resumes its session and skips the public key operations.
+	<p>Generate a self-signed keystore for testing with:
+	<code>keytool -genkeypair -keyalg EC -alias server -dname CN=localhost -keystore test.p12 -storepass secret</code>
+*/
+public class TLS {
+	/** The application protocol offered with ALPN */
+	public static final String	kHTTP11= "http/1.1";
+
+	/** Handshake counts and timing for a server.
+		Thread safe, handshakes are recorded from every connection's thread.
+	*/
+	public static class Handshakes {
+		/** No handshakes yet.
+		*/
+		public Handshakes() {
+			_count= new AtomicLong();
+			_resumed= new AtomicLong();
+			_failed= new AtomicLong();
+			_nanoseconds= new AtomicLong();
+		}
+		/** Records a successful handshake.
+			@param startMilliseconds	System.currentTimeMillis() when the handshake started
+			@param elapsedNanoseconds	How long the handshake took
+			@param session				The session negotiated
+		*/
+		public void record(long startMilliseconds, long elapsedNanoseconds, SSLSession session) {
+			_count.incrementAndGet();
+			_nanoseconds.addAndGet(elapsedNanoseconds);
+			if(session.getCreationTime() < startMilliseconds) { // the session is older than the handshake
+				_resumed.incrementAndGet();
+			}
+		}
+		/** Records a handshake that did not complete.
+		*/
+		public void recordFailure() {
+			_failed.incrementAndGet();
+		}
+		/** The number of successful handshakes.
+			@return	The number of handshakes that completed, including resumed sessions
+		*/
+		public long count() {
+			return _count.get();
+		}
+		/** The number of handshakes that resumed a cached session.
+			@return	The number of handshakes that did not need a new session
+		*/
+		public long resumed() {
+			return _resumed.get();
+		}
+		/** The number of handshakes that failed.
+			@return	The number of connections closed (or that timed out) before the handshake completed
+		*/
+		public long failed() {
+			return _failed.get();
+		}
+		/** The time spent in successful handshakes.
+			@return	The total of the handshake times, in microseconds
+		*/
+		public long microseconds() {
+			return _nanoseconds.get() / 1000;
+		}
+		/** The average time of a successful handshake.
+			@return	The average handshake time in microseconds, 0 if there have been none
+		*/
+		public long averageMicroseconds() {
+			long	count= _count.get();
+
+			return (0 == count) ? 0 : _nanoseconds.get() / 1000 / count;
+		}
+		/** A summary for logs.
+			@return	The counts and average time
+		*/
+		public String toString() {
+			return "handshakes="+count()+" resumed="+resumed()+" failed="+failed()+" average="+averageMicroseconds()+"us";
+		}
+		/** The number of handshakes that completed */
+		private AtomicLong	_count;
+		/** The number of handshakes that resumed a session */
+		private AtomicLong	_resumed;
+		/** The number of handshakes that failed */
+		private AtomicLong	_failed;
+		/** The total time of the handshakes that completed */
+		private AtomicLong	_nanoseconds;
+	}
+	/** Loads a server certificate and key, and caches sessions for resumption.
+		@param keystore	A PKCS12 (.p12 or .pfx) or JKS keystore with the server's key and certificate chain
+		@param password	The password of the keystore and of the key
+		@return			A context to pass to SocketServer or SelectorServer
+		@throws IOException	If the keystore cannot be read or the context cannot be created
+	*/
+	public static SSLContext context(File keystore, char[] password) throws IOException {
+		try	{
+			KeyManagerFactory	managers= KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			SSLContext			context= SSLContext.getInstance("TLS");
+
+			managers.init(_load(keystore, password), password);
+			context.init(managers.getKeyManagers(), null, null);
+			cacheSessions(context, _kSessionCacheSize, _kSessionTimeoutSeconds);
+			return context;
+		} catch(GeneralSecurityException exception) {
+			throw new IOException(exception.toString());
+		}
+	}
+	/** Sets how many sessions the server remembers, and for how long, so clients can resume them.
+		@param context		The server's context
+		@param sessions		The most sessions to cache (0 = no limit)
+		@param seconds		How long a session can be resumed (0 = no limit)
+	*/
+	public static void cacheSessions(SSLContext context, int sessions, int seconds) {
+		SSLSessionContext	cache= context.getServerSessionContext();
+
+		cache.setSessionCacheSize(sessions);
+		cache.setSessionTimeout(seconds);
+	}
+	/** Offers application protocols with ALPN.
+		ALPN needs Java 9 or later (or 8u252), so the parameters are set by reflection and this does nothing on older JVMs.
+		@param socketOrEngine	An SSLServerSocket (for all the sockets it accepts), SSLSocket or SSLEngine, before the handshake
+		@param protocols		The protocols, most preferred first (ie kHTTP11)
+		@return					true if the protocols will be offered, false if this JVM does not have ALPN
+	*/
+	public static boolean applicationProtocols(Object socketOrEngine, String... protocols) {
+		try	{
+			Class<?>	type= (socketOrEngine instanceof SSLEngine) ? SSLEngine.class
+								: (socketOrEngine instanceof SSLServerSocket) ? SSLServerSocket.class : SSLSocket.class;
+			Object		parameters= type.getMethod("getSSLParameters").invoke(socketOrEngine);
+			Method		set= parameters.getClass().getMethod("setApplicationProtocols", String[].class);
+
+			set.invoke(parameters, (Object)protocols);
+			type.getMethod("setSSLParameters", parameters.getClass()).invoke(socketOrEngine, parameters);
+			return true;
+		} catch(Exception exception) { // NoSuchMethodException before ALPN
+			return false;
+		}
+	}
+	/** The most sessions cached by context() */
+	private static final int	_kSessionCacheSize= 10000;
+	/** How long a session cached by context() can be resumed */
+	private static final int	_kSessionTimeoutSeconds= 24 * 60 * 60;
+
+	/** Reads a keystore.
+		@param keystore	A PKCS12 (.p12 or .pfx) or JKS keystore
+		@param password	The password of the keystore
+		@return			The loaded keystore
+		@throws IOException	If the keystore cannot be read
+		@throws GeneralSecurityException	If the keystore type is not supported or the keystore is damaged
+	*/
+	private static KeyStore _load(File keystore, char[] password) throws IOException, GeneralSecurityException {
+		String			name= keystore.getName().toLowerCase();
+		KeyStore		keys= KeyStore.getInstance( (name.endsWith(".p12") || name.endsWith(".pfx")) ? "PKCS12" : "JKS");
+		FileInputStream	in= new FileInputStream(keystore);
+
+		try	{
+			keys.load(in, password);
+		} finally {
+			in.close();
+		}
+		return keys;
+	}
+
+	/** Test. Lists the certificates in a keystore, and checks a context can be made from it.
+		@param args	The keystore and its password
+	*/
+	public static void main(String... args) {
+		try	{
+			File		file= new File(args[0]);
+			SSLContext	context= context(file, args[1].toCharArray());
+			KeyStore	keys= _load(file, args[1].toCharArray());
+
+			for(Enumeration<String> aliases= keys.aliases(); aliases.hasMoreElements(); ) {
+				String		alias= aliases.nextElement();
+				Certificate	certificate= keys.getCertificate(alias);
+
+				System.out.println(alias+": "+certificate.getType()+" "+certificate.getPublicKey().getAlgorithm());
+			}
+			System.out.println("Protocol: "+context.getProtocol()+" ALPN: "
+								+applicationProtocols(context.createSSLEngine(), kHTTP11));
+		} catch(Exception exception) {
+			exception.printStackTrace();
+		}
+	}
+}